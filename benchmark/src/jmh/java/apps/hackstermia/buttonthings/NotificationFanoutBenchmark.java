@@ -0,0 +1,62 @@
+package apps.hackstermia.buttonthings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+
+/**
+ * Publishing a frame to every subscriber, with acknowledgements arriving right away and with
+ * every subscriber still waiting on its previous notification.
+ */
+@State(Scope.Thread)
+public class NotificationFanoutBenchmark {
+
+    private static final UUID LED_DATA = RemoteLedProfile.REMOTE_LED_DATA;
+
+    @Param({"1", "4", "16"})
+    public int subscribers;
+
+    private final byte[] mFrame = new byte[RemoteLedCodec.FRAME_LENGTH];
+    private String[] mDevices;
+    private NotificationFanout<String> mFanout;
+    private long mBytesSent;
+
+    @Setup
+    public void setUp() {
+        SubscriberRegistry<String> registry = new SubscriberRegistry<>();
+        mDevices = new String[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            mDevices[i] = String.format("00:11:22:33:44:%02X", i);
+            registry.setSubscription(LED_DATA, mDevices[i],
+                    SubscriberRegistry.FLAG_NOTIFY);
+        }
+        mFanout = new NotificationFanout<>(registry, LED_DATA,
+                new NotificationFanout.Transport<String>() {
+                    @Override
+                    public boolean send(String device, byte[] value, int length, boolean confirm) {
+                        mBytesSent += length;
+                        return true;
+                    }
+                }, RemoteLedCodec.FRAME_LENGTH);
+        RemoteLedCodec.encode(mFrame, 0, true, 1, 1571234567890L);
+    }
+
+    @Benchmark
+    public long publishAcknowledged() {
+        mFanout.publish(mFrame, RemoteLedCodec.FRAME_LENGTH);
+        for (String device : mDevices) {
+            mFanout.onNotificationSent(device, 0);
+        }
+        return mBytesSent;
+    }
+
+    @Benchmark
+    public long publishInFlight() {
+        mFanout.publish(mFrame, RemoteLedCodec.FRAME_LENGTH);
+        return mBytesSent;
+    }
+}
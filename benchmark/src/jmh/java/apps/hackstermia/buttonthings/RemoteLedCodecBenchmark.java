@@ -0,0 +1,53 @@
+package apps.hackstermia.buttonthings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of the LED state frame, once per notification on each side.
+ */
+@State(Scope.Thread)
+public class RemoteLedCodecBenchmark {
+
+    private final byte[] mFrame = new byte[RemoteLedCodec.FRAME_LENGTH];
+    private final byte[] mLegacy = "false".getBytes();
+    private final StringBuilder mHex = new StringBuilder();
+    private int mSequence;
+
+    @Setup
+    public void setUp() {
+        RemoteLedCodec.encode(mFrame, 0, true, 42, 1571234567890L);
+    }
+
+    @Benchmark
+    public int encode() {
+        mSequence = RemoteLedCodec.nextSequence(mSequence);
+        return RemoteLedCodec.encode(mFrame, 0, (mSequence & 1) != 0, mSequence, 1571234567890L);
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        blackhole.consume(RemoteLedCodec.getVersion(mFrame));
+        blackhole.consume(RemoteLedCodec.isLedOn(mFrame));
+        blackhole.consume(RemoteLedCodec.getSequence(mFrame));
+        blackhole.consume(RemoteLedCodec.getTimestamp(mFrame));
+    }
+
+    @Benchmark
+    public boolean decodeLegacy() {
+        return RemoteLedCodec.getVersion(mLegacy) == RemoteLedCodec.VERSION_LEGACY
+                && RemoteLedCodec.isLedOn(mLegacy);
+    }
+
+    /**
+     * The debug formatting done by {@code BluetoothLeService#broadcastUpdate}.
+     */
+    @Benchmark
+    public int formatHex() {
+        mHex.setLength(0);
+        return RemoteLedCodec.appendHex(mFrame, mHex).length();
+    }
+}
@@ -0,0 +1,40 @@
+package apps.hackstermia.buttonthings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+
+/**
+ * Filtering scan results, which runs for every advertisement received while scanning.
+ */
+@State(Scope.Thread)
+public class ScanRecordFilterBenchmark {
+
+    private final ScanRecordFilter mFilter = new ScanRecordFilter(
+            UUID.fromString("00001805-0000-1000-8000-00805f9b34fb"));
+
+    // Flags, 16-bit service list with the Remote LED service last, then a local name.
+    private final byte[] mMatching = {
+            0x02, 0x01, 0x06,
+            0x07, 0x03, 0x0f, 0x18, 0x0a, 0x18, 0x05, 0x18,
+            0x07, 0x09, 'B', 'u', 't', 't', 'o', 'n'};
+
+    // A typical unrelated advertiser: flags, manufacturer data and a 128-bit service.
+    private final byte[] mUnrelated = {
+            0x02, 0x01, 0x1a,
+            0x09, (byte) 0xff, 0x4c, 0x00, 0x10, 0x05, 0x01, 0x18, 0x44, 0x22,
+            0x11, 0x07, 0x10, 0x32, 0x54, 0x76, (byte) 0x98, (byte) 0xba, (byte) 0xdc, (byte) 0xfe,
+            0x01, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef};
+
+    @Benchmark
+    public boolean matching() {
+        return mFilter.matches(mMatching);
+    }
+
+    @Benchmark
+    public boolean unrelated() {
+        return mFilter.matches(mUnrelated);
+    }
+}
@@ -1,28 +1,10 @@
 package apps.hackstermia.buttonthings;
 
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattServer;
-import android.bluetooth.BluetoothGattServerCallback;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.AdvertiseCallback;
-import android.bluetooth.le.AdvertiseData;
-import android.bluetooth.le.AdvertiseSettings;
-import android.bluetooth.le.BluetoothLeAdvertiser;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.ParcelUuid;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -31,134 +13,56 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = MainActivity.class.getSimpleName();
 
-    private Set<BluetoothDevice> mRegisteredDevices = new HashSet<>();
-
     Boolean toggleLight = false;
 
     private BluetoothAdapter mBluetoothAdapter;
-    private boolean mScanning;
-    private Handler mHandler;
 
     private BluetoothLeService mBluetoothLeService;
-    private boolean mConnected = false;
-    private BluetoothGattCharacteristic mNotifyCharacteristic;
+    // The service's link layer, null until the service is bound.
+    private volatile RemoteLedLink mLink;
 
-    private String mDeviceAddress;
+    private final MetricsRegistry mMetrics = MetricsRegistry.getDefault();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        mHandler = new Handler();
-        BluetoothHelper.setBluetoothManager((BluetoothManager) getSystemService(BLUETOOTH_SERVICE));
-
-        IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
-        registerReceiver(mBluetoothReceiver, filter);
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-
-        if (mBluetoothAdapter != null) {
-            if (mBluetoothAdapter.isEnabled()) {
-                Log.d(TAG, "Bluetooth enabled...starting services");
-                BluetoothHelper.startAdvertising();
-                BluetoothHelper.startServer(this, mGattServerCallback);
-            }else {
-                Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
-                startActivityForResult(enableBtIntent, 0);
-            }
+        if (mBluetoothAdapter != null && !mBluetoothAdapter.isEnabled()) {
+            // The link comes up once the adapter is on.
+            Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
+            startActivityForResult(enableBtIntent, 0);
         }
 
+        // The service runs the link in the foreground, independent of this activity.
+        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        startForegroundService(gattServiceIntent);
+        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+
         Button toggleButton = findViewById(R.id.toggle_button);
         toggleButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                final RemoteLedLink link = mLink;
+                if (link == null) {
+                    return;
+                }
+                final long span = Tracer.begin(Tracer.STEP_BUTTON);
                 toggleLight = !toggleLight;
-                notifyRegisteredDevices(toggleLight);
+                link.submitState(toggleLight ? 1 : 0);
+                Tracer.end(Tracer.STEP_BUTTON, link.getStateTime(), span);
             }
         });
     }
 
-    /**
-     * Listens for Bluetooth adapter events to enable/disable
-     * advertising and server functionality.
-     */
-    private BroadcastReceiver mBluetoothReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
-
-            switch (state) {
-                case BluetoothAdapter.STATE_ON:
-                    BluetoothHelper.startAdvertising();
-                    BluetoothHelper.startServer(MainActivity.this, mGattServerCallback);
-                    break;
-                case BluetoothAdapter.STATE_OFF:
-                    BluetoothHelper.stopServer();
-                    BluetoothHelper.stopAdvertising();
-                    break;
-                default:
-                    // Do nothing
-            }
-        }
-    };
-
-    private void initScan() {
-        if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
-            Log.e(TAG, "Bluetooth adapter not available or not enabled.");
-            return;
-        }
-        //setupBTProfiles();
-        Log.d(TAG, "Set up Bluetooth Adapter name and profile");
-        mBluetoothAdapter.setName(BluetoothHelper.MOBILE_DEVICE_NAME);
-        scanLeDevice();
-    }
-
-    private void scanLeDevice() {
-        // Stops scanning after a pre-defined scan period.
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                mScanning = false;
-                mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            }
-        }, BluetoothHelper.SCAN_PERIOD);
-
-        mScanning = true;
-        mBluetoothAdapter.startLeScan(mLeScanCallback);
-    }
-
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
-                @Override
-                public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    Boolean isDeviceFound = false;
-                    if(device != null){
-                        final String deviceName = device.getName();
-                        if (deviceName != null && deviceName.length() > 0) {
-                            if(deviceName.equals(BluetoothHelper.ANDROID_THINGS_DEVICE_NAME)){
-                                isDeviceFound = true;
-                                mDeviceAddress = device.getAddress();
-                            }
-                        }
-                    }
-
-                    if(isDeviceFound && !mConnected){
-                        Intent gattServiceIntent = new Intent(MainActivity.this, BluetoothLeService.class);
-                        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
-                        mConnected = true;
-                    }
-                }
-            };
-
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
         @Override
@@ -167,157 +71,45 @@ public class MainActivity extends AppCompatActivity {
             if (!mBluetoothLeService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
+                return;
             }
-
-            Boolean result = mBluetoothLeService.connect(mDeviceAddress);
-            Log.d(TAG, "Connect request result=" + result);
-            mConnected = true;
-            if(mScanning) {
-                mScanning = false;
-                mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            }
+            final RemoteLedLink link = mBluetoothLeService.getLink();
+            link.setListener(mLinkListener);
+            // The phone's toggle is a single channel, off until it is first pressed.
+            link.start(RemoteLedLink.ROLE_CONTROLLER, BluetoothHelper.MOBILE_DEVICE_NAME, 1,
+                    toggleLight ? 1 : 0);
+            mLink = link;
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mLink = null;
             mBluetoothLeService = null;
         }
     };
 
-    /**
-     * Send a remote led service notification to any devices that are subscribed
-     * to the characteristic.
-     */
-    private void notifyRegisteredDevices(Boolean toggle) {
-        if (mRegisteredDevices.isEmpty()) {
-            Log.i(TAG, "No subscribers registered");
-            return;
-        }
-
-        Log.i(TAG, "Sending update to " + mRegisteredDevices.size() + " subscribers");
-        for (BluetoothDevice device : mRegisteredDevices) {
-            BluetoothGattCharacteristic ledDataCharacteristic = BluetoothHelper.getBluetoothGattServer()
-                    .getService(RemoteLedProfile.REMOTE_LED_SERVICE)
-                    .getCharacteristic(RemoteLedProfile.REMOTE_LED_DATA);
-            ledDataCharacteristic.setValue(toggle.toString());
-            BluetoothHelper.getBluetoothGattServer().notifyCharacteristicChanged(device, ledDataCharacteristic, false);
-        }
-    }
-
-    /**
-     * Callback to handle incoming requests to the GATT server.
-     * All read/write requests for characteristics and descriptors are handled here.
-     */
-    private BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
-
-        @Override
-        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.i(TAG, "BluetoothDevice CONNECTED: " + device);
-                mRegisteredDevices.add(device);
-                initScan();
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.i(TAG, "BluetoothDevice DISCONNECTED: " + device);
-                //Remove device from any active subscriptions
-                mRegisteredDevices.remove(device);
-            }
-        }
-
+    // Link events arrive on the service's link thread.
+    private final RemoteLedLink.Listener mLinkListener = new RemoteLedLink.Listener() {
         @Override
-        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
-                                                BluetoothGattCharacteristic characteristic) {
-            long now = System.currentTimeMillis();
-            if (RemoteLedProfile.REMOTE_LED_DATA.equals(characteristic.getUuid())) {
-                Log.i(TAG, "Read data");
-                BluetoothHelper.getBluetoothGattServer().sendResponse(device,
-                        requestId,
-                        BluetoothGatt.GATT_SUCCESS,
-                        0,
-                        null);
-            } else {
-                // Invalid characteristic
-                Log.w(TAG, "Invalid Characteristic Read: " + characteristic.getUuid());
-                BluetoothHelper.getBluetoothGattServer().sendResponse(device,
-                        requestId,
-                        BluetoothGatt.GATT_FAILURE,
-                        0,
-                        null);
-            }
+        public boolean onLedFrame(String address, byte[] value) {
+            showToggled();
+            return true;
         }
 
         @Override
-        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
-                                            BluetoothGattDescriptor descriptor) {
-            BluetoothHelper.getBluetoothGattServer().sendResponse(device,
-                    requestId,
-                    BluetoothGatt.GATT_FAILURE,
-                    0,
-                    null);
-        }
-
-        @Override
-        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
-                                             BluetoothGattDescriptor descriptor,
-                                             boolean preparedWrite, boolean responseNeeded,
-                                             int offset, byte[] value) {
-            if (responseNeeded) {
-                BluetoothHelper.getBluetoothGattServer().sendResponse(device,
-                        requestId,
-                        BluetoothGatt.GATT_FAILURE,
-                        0,
-                        null);
-            }
+        public void onLedStateBroadcast(String address, int deviceId, boolean ledOn,
+                                        int sequence) {
+            showToggled();
         }
     };
 
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
-
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                mConnected = false;
-
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Show all the supported services and characteristics on the user interface.
-                List<BluetoothGattService> services = mBluetoothLeService.getSupportedGattServices();
-                if(services != null){
-                    for (BluetoothGattService gattService : services) {
-                        if(gattService.getUuid().equals(RemoteLedProfile.REMOTE_LED_SERVICE)){
-                            final BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(RemoteLedProfile.REMOTE_LED_DATA);
-                            if (characteristic != null) {
-                                final int charaProp = characteristic.getProperties();
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
-                                    // If there is an active notification on a characteristic, clear
-                                    // it first so it doesn't update the data field on the user interface.
-                                    if (mNotifyCharacteristic != null) {
-                                        mBluetoothLeService.setCharacteristicNotification(
-                                                mNotifyCharacteristic, false);
-                                        mNotifyCharacteristic = null;
-                                    }
-                                    mBluetoothLeService.readCharacteristic(characteristic);
-                                }
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                                    mNotifyCharacteristic = characteristic;
-                                    mBluetoothLeService.setCharacteristicNotification(
-                                            characteristic, true);
-                                }
-                            }
-                        }
-                    }
-                }
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                Toast.makeText(context, "Raspberry Pi Toggled!", Toast.LENGTH_LONG).show();
+    private void showToggled() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(MainActivity.this, "Raspberry Pi Toggled!", Toast.LENGTH_LONG).show();
             }
-        }
-    };
-
-    @Override
-    protected void onStart() {
-        super.onStart();
-        registerReceiver(mGattUpdateReceiver, BluetoothHelper.makeGattUpdateIntentFilter());
+        });
     }
 
     @Override
@@ -340,22 +132,27 @@ public class MainActivity extends AppCompatActivity {
     }
 
     @Override
-    protected void onPause(){
-        super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.println(prefix + "Metrics:");
+        mMetrics.dump(writer, prefix + "  ");
+        Tracer.dump(writer, prefix);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
 
-        if (BluetoothHelper.getBluetoothManager().getAdapter().isEnabled()) {
-            BluetoothHelper.stopServer();
-            BluetoothHelper.stopAdvertising();
+        final RemoteLedLink link = mLink;
+        mLink = null;
+        if (link != null) {
+            link.removeListener(mLinkListener);
         }
-
-        unregisterReceiver(mBluetoothReceiver);
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
+        if (isFinishing()) {
+            // Leaving the app takes the link down, a configuration change does not.
+            stopService(new Intent(this, BluetoothLeService.class));
+        }
     }
 }
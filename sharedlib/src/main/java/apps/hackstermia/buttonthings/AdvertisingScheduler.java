@@ -0,0 +1,189 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when and how to advertise.  Advertising runs in a fast mode for a while after it
+ * starts or a peer disconnects, when a quick reconnect matters, then drops to a slow
+ * low-power mode.  It stops altogether while every expected peer is connected.  Time spent
+ * in each mode is accumulated so the power cost can be inspected.
+ */
+public class AdvertisingScheduler {
+
+    public static final int MODE_OFF = 0;
+    public static final int MODE_FAST = 1;
+    public static final int MODE_SLOW = 2;
+
+    private static final long DEFAULT_FAST_PERIOD = 30000;
+
+    /**
+     * Starts and stops the actual advertisement, see {@code BluetoothHelper} on device.
+     */
+    public interface Advertiser {
+        /**
+         * @param mode {@link #MODE_FAST} or {@link #MODE_SLOW}.
+         * @return false if advertising could not be started.
+         */
+        boolean start(int mode);
+
+        /**
+         * Replace the data of the running advertisement without stopping it.
+         *
+         * @return false if the data cannot be replaced in place, the advertisement is then
+         * restarted.
+         */
+        boolean update();
+
+        void stop();
+    }
+
+    private final Advertiser mAdvertiser;
+    private final TaskScheduler mScheduler;
+
+    // Guarded by "this".
+    private long mFastPeriod = DEFAULT_FAST_PERIOD;
+    private int mExpectedPeers = 1;
+    private final Set<String> mConnectedPeers = new HashSet<>();
+    private boolean mEnabled;
+    private boolean mBroadcasting;
+    private int mMode = MODE_OFF;
+    private long mModeSince;
+    private final long[] mModeNanos = new long[3];
+    // Invalidates the scheduled end of an earlier fast window.
+    private int mFastWindow;
+
+    public AdvertisingScheduler(Advertiser advertiser, TaskScheduler scheduler) {
+        mAdvertiser = advertiser;
+        mScheduler = scheduler;
+        mModeSince = System.nanoTime();
+    }
+
+    /**
+     * Set how long advertising stays in the fast mode before dropping to the slow one.
+     */
+    public synchronized void setFastPeriod(long fastPeriodMillis) {
+        mFastPeriod = fastPeriodMillis;
+    }
+
+    /**
+     * Set how many connected peers make advertising unnecessary.
+     */
+    public synchronized void setExpectedPeers(int expectedPeers) {
+        mExpectedPeers = expectedPeers;
+        update(false);
+    }
+
+    /**
+     * Keep advertising in the slow mode while every expected peer is connected, for
+     * observers following state broadcast in the advertisement.
+     */
+    public synchronized void setBroadcasting(boolean broadcasting) {
+        mBroadcasting = broadcasting;
+        update(false);
+    }
+
+    /**
+     * Start advertising in the fast mode, e.g. at boot or once the adapter turned on.
+     */
+    public synchronized void start() {
+        mEnabled = true;
+        update(true);
+    }
+
+    /**
+     * Stop advertising and forget the connected peers, e.g. once the adapter turned off.
+     */
+    public synchronized void stop() {
+        mEnabled = false;
+        mConnectedPeers.clear();
+        setMode(MODE_OFF);
+    }
+
+    public synchronized void onPeerConnected(String address) {
+        if (mConnectedPeers.add(address)) {
+            update(false);
+        }
+    }
+
+    public synchronized void onPeerDisconnected(String address) {
+        if (mConnectedPeers.remove(address)) {
+            update(true);
+        }
+    }
+
+    /**
+     * Pick up changed advertised data, in place where the advertiser supports it and by a
+     * restart in the current mode otherwise.
+     */
+    public synchronized void refresh() {
+        if (mMode != MODE_OFF && !mAdvertiser.update()) {
+            mAdvertiser.stop();
+            if (!mAdvertiser.start(mMode)) {
+                setMode(MODE_OFF);
+            }
+        }
+    }
+
+    public synchronized int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Return the total time spent advertising in the given mode, in milliseconds.
+     */
+    public synchronized long getModeTime(int mode) {
+        long nanos = mModeNanos[mode];
+        if (mode == mMode) {
+            nanos += System.nanoTime() - mModeSince;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "mode=" + mMode + " fast=" + getModeTime(MODE_FAST)
+                + " ms slow=" + getModeTime(MODE_SLOW) + " ms";
+    }
+
+    private void update(boolean fast) {
+        if (!mEnabled) {
+            setMode(MODE_OFF);
+        } else if (mConnectedPeers.size() >= mExpectedPeers) {
+            setMode(mBroadcasting ? MODE_SLOW : MODE_OFF);
+        } else if (fast || mMode == MODE_OFF) {
+            setMode(MODE_FAST);
+        }
+    }
+
+    private void setMode(int mode) {
+        if (mode == MODE_FAST) {
+            // (Re)start the fast window, even if already advertising fast.
+            final int window = ++mFastWindow;
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (AdvertisingScheduler.this) {
+                        if (window == mFastWindow && mMode == MODE_FAST) {
+                            setMode(MODE_SLOW);
+                        }
+                    }
+                }
+            }, mFastPeriod);
+        }
+        if (mode == mMode) {
+            return;
+        }
+        if (mMode != MODE_OFF) {
+            mAdvertiser.stop();
+        }
+        if (mode != MODE_OFF && !mAdvertiser.start(mode)) {
+            mode = MODE_OFF;
+        }
+        final long now = System.nanoTime();
+        mModeNanos[mMode] += now - mModeSince;
+        mModeSince = now;
+        mMode = mode;
+    }
+}
@@ -0,0 +1,79 @@
+package apps.hackstermia.buttonthings;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * {@link GattServerLink} over the GATT server started by {@link BluetoothHelper#startServer}.
+ * Characteristics are looked up once per server instance instead of once per notification.
+ */
+public class AndroidGattServerLink implements GattServerLink<BluetoothDevice> {
+
+    private BluetoothGattServer mServer;
+    private final Map<UUID, BluetoothGattCharacteristic> mCharacteristics = new HashMap<>();
+    // Values of the exact length handed to setValue, reused per length.
+    private byte[] mValue = new byte[0];
+
+    private final MetricsRegistry.Counter mNotifyFailures =
+            MetricsRegistry.getDefault().counter("gatt.server.notify.failures");
+    private final MetricsRegistry.KeyedCounter mResponseStatus =
+            MetricsRegistry.getDefault().keyedCounter("gatt.status.response");
+
+    @Override
+    public synchronized boolean notifyCharacteristicChanged(BluetoothDevice device,
+                                                            UUID characteristicUuid,
+                                                            byte[] value, int length,
+                                                            boolean confirm) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(characteristicUuid);
+        if (characteristic == null) {
+            return false;
+        }
+        if (mValue.length != length) {
+            mValue = new byte[length];
+        }
+        System.arraycopy(value, 0, mValue, 0, length);
+        // The stack copies the value synchronously, so the shared characteristic can be reused.
+        characteristic.setValue(mValue);
+        if (!mServer.notifyCharacteristicChanged(device, characteristic, confirm)) {
+            mNotifyFailures.increment();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void sendResponse(BluetoothDevice device, int requestId, int status, int offset,
+                             byte[] value) {
+        mResponseStatus.increment(status);
+        final BluetoothGattServer server = BluetoothHelper.getBluetoothGattServer();
+        if (server != null) {
+            server.sendResponse(device, requestId, status, offset, value);
+        }
+    }
+
+    private BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        final BluetoothGattServer server = BluetoothHelper.getBluetoothGattServer();
+        if (server != mServer) {
+            mServer = server;
+            mCharacteristics.clear();
+        }
+        if (server == null) {
+            return null;
+        }
+        BluetoothGattCharacteristic characteristic = mCharacteristics.get(uuid);
+        if (characteristic == null) {
+            BluetoothGattService service = server.getService(RemoteLedProfile.REMOTE_LED_SERVICE);
+            if (service != null) {
+                characteristic = service.getCharacteristic(uuid);
+                mCharacteristics.put(uuid, characteristic);
+            }
+        }
+        return characteristic;
+    }
+}
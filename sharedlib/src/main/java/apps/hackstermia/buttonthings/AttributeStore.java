@@ -0,0 +1,106 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the current value of each server characteristic as an immutable, versioned
+ * {@link Snapshot}.  Read requests and notifications are both served from the latest
+ * snapshot, so a client reading after a reconnect sees exactly what subscribers were last
+ * notified with.  Updating a value replaces the snapshot, readers holding the old one are
+ * unaffected.
+ */
+public class AttributeStore {
+
+    /**
+     * A characteristic value at one version.  Never modified once created.
+     */
+    public static final class Snapshot {
+        private final UUID mCharacteristic;
+        private final long mVersion;
+        private final byte[] mValue;
+
+        Snapshot(UUID characteristic, long version, byte[] value) {
+            mCharacteristic = characteristic;
+            mVersion = version;
+            mValue = value;
+        }
+
+        public UUID getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        /**
+         * Return the version, starting at 1 and incremented with every update.
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        public int getLength() {
+            return mValue.length;
+        }
+
+        /**
+         * Return a copy of the value from the given offset, as a (long) read request asks
+         * for it.
+         *
+         * @return the remaining bytes, empty at the end of the value, or null if the offset
+         *         lies beyond it.
+         */
+        public byte[] read(int offset) {
+            if (offset < 0 || offset > mValue.length) {
+                return null;
+            }
+            byte[] value = new byte[mValue.length - offset];
+            System.arraycopy(mValue, offset, value, 0, value.length);
+            return value;
+        }
+
+        // The shared value, must not be modified.
+        byte[] getValue() {
+            return mValue;
+        }
+    }
+
+    private final ConcurrentHashMap<UUID, Snapshot> mSnapshots = new ConcurrentHashMap<>();
+
+    /**
+     * Replace the value of a characteristic.  The value is copied.
+     *
+     * @return the new snapshot.
+     */
+    public Snapshot put(UUID characteristic, byte[] value, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(value, 0, copy, 0, length);
+        while (true) {
+            Snapshot previous = mSnapshots.get(characteristic);
+            if (previous == null) {
+                Snapshot snapshot = new Snapshot(characteristic, 1, copy);
+                if (mSnapshots.putIfAbsent(characteristic, snapshot) == null) {
+                    return snapshot;
+                }
+            } else {
+                Snapshot snapshot = new Snapshot(characteristic, previous.getVersion() + 1, copy);
+                if (mSnapshots.replace(characteristic, previous, snapshot)) {
+                    return snapshot;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the current snapshot of a characteristic, or null if it has no value yet.
+     */
+    public Snapshot get(UUID characteristic) {
+        return mSnapshots.get(characteristic);
+    }
+
+    /**
+     * Return the current version of a characteristic, 0 if it has no value yet.
+     */
+    public long getVersion(UUID characteristic) {
+        Snapshot snapshot = mSnapshots.get(characteristic);
+        return snapshot == null ? 0 : snapshot.getVersion();
+    }
+}
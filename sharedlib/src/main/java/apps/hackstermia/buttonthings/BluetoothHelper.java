@@ -1,15 +1,22 @@
 package apps.hackstermia.buttonthings;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
-import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
+import android.provider.Settings;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
 import android.util.Log;
 
@@ -22,10 +29,30 @@ public class BluetoothHelper {
     public static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
     public static final long SCAN_PERIOD = 10000;
+    // Lets the controller batch scan results for half a second where supported.
+    public static final long SCAN_REPORT_DELAY = 500;
+    // Counted as an advertising failure next to the AdvertisingSetCallback error codes.
+    private static final int ADVERTISE_FAILED_NO_ADVERTISER = -1;
 
     private static BluetoothManager mBluetoothManager;
     private static BluetoothGattServer mBluetoothGattServer;
     private static BluetoothLeAdvertiser mBluetoothLeAdvertiser;
+    // The running advertising set, null until the stack reports it started.
+    private static AdvertisingSet mAdvertisingSet;
+    // The data changed while the set was starting, it is applied once it started.
+    private static boolean mAdvertisingDataChanged;
+    private static AdvertisingScheduler mAdvertisingScheduler;
+    // Runs the advertising timers and callbacks, the main thread until setHandler is called.
+    private static Handler mHandler;
+    // State broadcast in the advertisement's service data, null while not broadcasting.
+    private static byte[] mBroadcastData;
+
+    private static final MetricsRegistry.Counter mAdvertiseStarts =
+            MetricsRegistry.getDefault().counter("advertise.starts");
+    private static final MetricsRegistry.KeyedCounter mAdvertiseFailures =
+            MetricsRegistry.getDefault().keyedCounter("advertise.failures");
+    private static final MetricsRegistry.Counter mServerStarts =
+            MetricsRegistry.getDefault().counter("gatt.server.starts");
 
     public static BluetoothManager getBluetoothManager()
     {
@@ -52,42 +79,183 @@ public class BluetoothHelper {
     }
 
     /**
-     * Begin advertising over Bluetooth that this device is connectable
-     * and supports the Remote LED Service.
+     * Run advertising timers and callbacks on the given handler's thread, e.g. the link
+     * thread of {@link BluetoothLeService}.  Call while not advertising, the scheduler is
+     * recreated on the new thread.
      */
-    public static void startAdvertising() {
-        BluetoothAdapter bluetoothAdapter = BluetoothHelper.getBluetoothManager().getAdapter();
-        mBluetoothLeAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+    public static synchronized void setHandler(Handler handler) {
+        mHandler = handler;
+        mAdvertisingScheduler = null;
+    }
 
-        if (mBluetoothLeAdvertiser == null) {
-            Log.w(TAG, "Failed to create advertiser");
-            return;
+    private static synchronized Handler getHandler() {
+        if (mHandler == null) {
+            mHandler = new Handler(Looper.getMainLooper());
         }
+        return mHandler;
+    }
 
-        AdvertiseSettings settings = new AdvertiseSettings.Builder()
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED)
-                .setConnectable(true)
-                .setTimeout(0)
-                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
-                .build();
-
-        AdvertiseData data = new AdvertiseData.Builder()
-                .setIncludeDeviceName(true)
-                .setIncludeTxPowerLevel(false)
-                .addServiceUuid(new ParcelUuid(RemoteLedProfile.REMOTE_LED_SERVICE))
-                .build();
+    /**
+     * Return the scheduler deciding the advertising mode, see {@link AdvertisingScheduler}.
+     */
+    public static synchronized AdvertisingScheduler getAdvertisingScheduler() {
+        if (mAdvertisingScheduler == null) {
+            mAdvertisingScheduler = new AdvertisingScheduler(mAdvertiser,
+                    new HandlerTaskScheduler(getHandler()));
+        }
+        return mAdvertisingScheduler;
+    }
 
-        mBluetoothLeAdvertiser
-                .startAdvertising(settings, data, mAdvertiseCallback);
+    /**
+     * Begin advertising over Bluetooth that this device is connectable
+     * and supports the Remote LED Service.  Advertises in low-latency mode for a while,
+     * then in low-power mode, and not at all while the expected peers are connected.
+     */
+    public static void startAdvertising() {
+        getAdvertisingScheduler().start();
     }
 
     /**
      * Stop Bluetooth advertisements.
      */
     public static void stopAdvertising() {
-        if (mBluetoothLeAdvertiser == null) return;
+        getAdvertisingScheduler().stop();
+    }
 
-        mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
+    /**
+     * Report a peer connecting to the GATT server, advertising stops once all expected
+     * peers are connected.
+     */
+    public static void onPeerConnected(String address) {
+        getAdvertisingScheduler().onPeerConnected(address);
+    }
+
+    /**
+     * Report a peer disconnecting from the GATT server, advertising restarts in fast mode.
+     */
+    public static void onPeerDisconnected(String address) {
+        getAdvertisingScheduler().onPeerDisconnected(address);
+    }
+
+    /**
+     * Return a short ID telling this device's state broadcasts apart from others, stable
+     * across restarts.
+     */
+    public static int getShortDeviceId(Context context) {
+        String id = Settings.Secure.getString(context.getContentResolver(),
+                Settings.Secure.ANDROID_ID);
+        return id == null ? 0 : id.hashCode() & 0xFFFF;
+    }
+
+    /**
+     * Put the LED state into the service data of the Remote LED Service advertisement, so
+     * scanners can follow it without connecting.  The running advertisement is updated in
+     * place right away and kept up while peers are connected.
+     */
+    public static void broadcastLedState(int deviceId, boolean ledOn, int sequence) {
+        byte[] data = new byte[RemoteLedCodec.BROADCAST_LENGTH];
+        RemoteLedCodec.encodeBroadcast(data, 0, ledOn, sequence, deviceId);
+        synchronized (BluetoothHelper.class) {
+            mBroadcastData = data;
+        }
+        AdvertisingScheduler scheduler = getAdvertisingScheduler();
+        scheduler.setBroadcasting(true);
+        scheduler.refresh();
+    }
+
+    /**
+     * Stop broadcasting state, the advertisement goes back to the service UUID only.
+     */
+    public static void stopBroadcast() {
+        synchronized (BluetoothHelper.class) {
+            mBroadcastData = null;
+        }
+        AdvertisingScheduler scheduler = getAdvertisingScheduler();
+        scheduler.setBroadcasting(false);
+        scheduler.refresh();
+    }
+
+    private static synchronized byte[] getBroadcastData() {
+        return mBroadcastData;
+    }
+
+    private static final AdvertisingScheduler.Advertiser mAdvertiser =
+            new AdvertisingScheduler.Advertiser() {
+        @Override
+        public boolean start(int mode) {
+            BluetoothAdapter bluetoothAdapter = BluetoothHelper.getBluetoothManager().getAdapter();
+            mBluetoothLeAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+
+            if (mBluetoothLeAdvertiser == null) {
+                Log.w(TAG, "Failed to create advertiser");
+                mAdvertiseFailures.increment(ADVERTISE_FAILED_NO_ADVERTISER);
+                return false;
+            }
+
+            // Legacy advertising PDUs, so scanners without extended advertising see it.
+            AdvertisingSetParameters parameters = new AdvertisingSetParameters.Builder()
+                    .setLegacyMode(true)
+                    .setConnectable(true)
+                    .setScannable(true)
+                    .setInterval(mode == AdvertisingScheduler.MODE_FAST
+                            ? AdvertisingSetParameters.INTERVAL_LOW
+                            : AdvertisingSetParameters.INTERVAL_HIGH)
+                    .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_MEDIUM)
+                    .build();
+
+            // The name does not fit next to the service data, send it in the scan response.
+            AdvertiseData scanResponse = new AdvertiseData.Builder()
+                    .setIncludeDeviceName(true)
+                    .build();
+
+            synchronized (BluetoothHelper.class) {
+                mAdvertisingSet = null;
+                mAdvertisingDataChanged = false;
+            }
+            mBluetoothLeAdvertiser.startAdvertisingSet(parameters, buildAdvertiseData(),
+                    scanResponse, null, null, mAdvertisingSetCallback, getHandler());
+            return true;
+        }
+
+        @Override
+        public boolean update() {
+            synchronized (BluetoothHelper.class) {
+                if (mAdvertisingSet == null) {
+                    // Still starting, the data is applied once the set started.
+                    mAdvertisingDataChanged = true;
+                    return mBluetoothLeAdvertiser != null;
+                }
+                mAdvertisingSet.setAdvertisingData(buildAdvertiseData());
+                return true;
+            }
+        }
+
+        @Override
+        public void stop() {
+            if (mBluetoothLeAdvertiser == null) return;
+
+            synchronized (BluetoothHelper.class) {
+                mAdvertisingSet = null;
+                mAdvertisingDataChanged = false;
+            }
+            mBluetoothLeAdvertiser.stopAdvertisingSet(mAdvertisingSetCallback);
+        }
+    };
+
+    /**
+     * Return the Remote LED Service advertisement, with the broadcast state if any.
+     */
+    private static AdvertiseData buildAdvertiseData() {
+        ParcelUuid service = new ParcelUuid(RemoteLedProfile.REMOTE_LED_SERVICE);
+        AdvertiseData.Builder data = new AdvertiseData.Builder()
+                .setIncludeDeviceName(false)
+                .setIncludeTxPowerLevel(false)
+                .addServiceUuid(service);
+        byte[] broadcast = getBroadcastData();
+        if (broadcast != null) {
+            data.addServiceData(service, broadcast);
+        }
+        return data.build();
     }
 
     /**
@@ -95,13 +263,60 @@ public class BluetoothHelper {
      * from the Remote LED Profile.
      */
     public static void startServer(Context context, BluetoothGattServerCallback mGattServerCallback) {
+        if (mBluetoothGattServer != null) {
+            Log.d(TAG, "GATT server already running");
+            return;
+        }
         mBluetoothGattServer = mBluetoothManager.openGattServer(context, mGattServerCallback);
         if (mBluetoothGattServer == null) {
             Log.w(TAG, "Unable to create GATT server");
             return;
         }
+        mServerStarts.increment();
+
+        mBluetoothGattServer.addService(createRemoteLedService());
+    }
+
+    /**
+     * Return a configured {@link BluetoothGattService} instance for the
+     * Remote LED Service.
+     */
+    private static BluetoothGattService createRemoteLedService() {
+        BluetoothGattService service = new BluetoothGattService(RemoteLedProfile.REMOTE_LED_SERVICE,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+
+        BluetoothGattCharacteristic ledData = new BluetoothGattCharacteristic(RemoteLedProfile.REMOTE_LED_DATA,
+                //Read-only characteristic, supports notifications
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        BluetoothGattDescriptor configDescriptor = new BluetoothGattDescriptor(RemoteLedProfile.CLIENT_CONFIG,
+                //Read/write descriptor
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
+        ledData.addDescriptor(configDescriptor);
+        BluetoothGattDescriptor channelCountDescriptor = new BluetoothGattDescriptor(
+                RemoteLedProfile.REMOTE_LED_CHANNEL_COUNT,
+                //Read-only descriptor
+                BluetoothGattDescriptor.PERMISSION_READ);
+        ledData.addDescriptor(channelCountDescriptor);
+
+        service.addCharacteristic(ledData);
+
+        BluetoothGattCharacteristic clock = new BluetoothGattCharacteristic(RemoteLedProfile.REMOTE_LED_CLOCK,
+                //Read-only characteristic
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+
+        service.addCharacteristic(clock);
+
+        BluetoothGattCharacteristic command = new BluetoothGattCharacteristic(RemoteLedProfile.REMOTE_LED_COMMAND,
+                //Write-only characteristic, supports writes without response
+                BluetoothGattCharacteristic.PROPERTY_WRITE
+                        | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE);
+
+        service.addCharacteristic(command);
 
-        mBluetoothGattServer.addService(RemoteLedProfile.createRemoteLedService());
+        return service;
     }
 
     /**
@@ -111,20 +326,38 @@ public class BluetoothHelper {
         if (mBluetoothGattServer == null) return;
 
         mBluetoothGattServer.close();
+        mBluetoothGattServer = null;
     }
 
     /**
      * Callback to receive information about the advertisement process.
      */
-    private static AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
+    private static AdvertisingSetCallback mAdvertisingSetCallback = new AdvertisingSetCallback() {
         @Override
-        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower,
+                                            int status) {
+            if (status != ADVERTISE_SUCCESS) {
+                Log.w(TAG, "LE Advertise Failed: "+status);
+                mAdvertiseFailures.increment(status);
+                return;
+            }
             Log.i(TAG, "LE Advertise Started.");
+            mAdvertiseStarts.increment();
+            synchronized (BluetoothHelper.class) {
+                mAdvertisingSet = advertisingSet;
+                if (mAdvertisingDataChanged) {
+                    mAdvertisingDataChanged = false;
+                    advertisingSet.setAdvertisingData(buildAdvertiseData());
+                }
+            }
         }
 
         @Override
-        public void onStartFailure(int errorCode) {
-            Log.w(TAG, "LE Advertise Failed: "+errorCode);
+        public void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+            if (status != ADVERTISE_SUCCESS) {
+                Log.w(TAG, "LE Advertise data update failed: "+status);
+                mAdvertiseFailures.increment(status);
+            }
         }
     };
 }
\ No newline at end of file
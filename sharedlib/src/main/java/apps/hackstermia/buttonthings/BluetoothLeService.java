@@ -1,34 +1,122 @@
 package apps.hackstermia.buttonthings;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
+    // Most controllers cap concurrent LE links somewhere between 4 and 8.
+    private static final int DEFAULT_MAX_CONNECTIONS = 4;
+    // Connection attempts are serialized by the controller, keep only a few in flight.
+    private static final int DEFAULT_MAX_PENDING_CONNECTIONS = 2;
+    // Links without GATT traffic for this long may be evicted.
+    private static final long DEFAULT_IDLE_TIMEOUT = 60000;
+    private static final long IDLE_SWEEP_PERIOD = 10000;
+    // Give up on a GATT operation the stack never completed after this long.
+    private static final long DEFAULT_OPERATION_TIMEOUT = 5000;
+    private static final int DEFAULT_OPERATION_RETRIES = 2;
+    // Clock samples taken right after service discovery, then one per period and link.
+    private static final int CLOCK_SYNC_BURST = 4;
+    private static final long CLOCK_SYNC_PERIOD = 60000;
+    // Reconnect after 0.5 s, doubling up to 30 s, at most 8 times per outage.
+    private static final long DEFAULT_RECONNECT_BASE_DELAY = 500;
+    private static final long DEFAULT_RECONNECT_MAX_DELAY = 30000;
+    private static final int DEFAULT_RECONNECT_ATTEMPTS = 8;
+    // A link that stays up this long earns a fresh reconnect budget, flapping links don't.
+    private static final long STABLE_CONNECTION_TIME = 10000;
+    // MTU requested once services are discovered, fits 244 bytes of value in one packet.
+    private static final int PREFERRED_MTU = 247;
+    // Links fall back to the low-power profile after this long without GATT traffic.
+    private static final long DEFAULT_LOW_LATENCY_HOLD = 5000;
+    private static final long LINK_PROFILE_CHECK_PERIOD = 1000;
+    // The ongoing notification that keeps the service, and the link, in the foreground.
+    private static final String NOTIFICATION_CHANNEL_ID = "link";
+    private static final int NOTIFICATION_ID = 1;
+
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
+    // Address of the most recently requested device, used by the single-device methods.
     private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
+    // GATT callbacks, timers and the link layer run on this thread, never on the UI thread.
+    private HandlerThread mLinkThread;
+    private Handler mHandler;
+    private PeerDirectory mPeerDirectory;
+    private RemoteLedLink mLink;
+
+    // Guarded by "this".
+    private final Map<String, GattConnection> mConnections = new HashMap<>();
+    private final Deque<String> mQueuedConnects = new ArrayDeque<>();
+    private final Map<String, ClockOffsetEstimator> mClockEstimators = new ConcurrentHashMap<>();
+
+    // Copy-on-write so dispatching an event never allocates or takes a lock.
+    private volatile GattEventListener[] mListeners = new GattEventListener[0];
+    private volatile boolean mBroadcastsEnabled = false;
+
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int mMaxPendingConnections = DEFAULT_MAX_PENDING_CONNECTIONS;
+    private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long mOperationTimeout = DEFAULT_OPERATION_TIMEOUT;
+    private int mOperationRetries = DEFAULT_OPERATION_RETRIES;
+    private boolean mAutoLinkProfile = true;
+    private long mLowLatencyHold = DEFAULT_LOW_LATENCY_HOLD;
+    private ReconnectPolicy mReconnectPolicy = new ReconnectPolicy(DEFAULT_RECONNECT_BASE_DELAY,
+            DEFAULT_RECONNECT_MAX_DELAY, DEFAULT_RECONNECT_ATTEMPTS);
+
+    private final LatencyHistogram mReconnectLatency = new LatencyHistogram("reconnect");
+    private final AtomicLong mReconnectAttemptCount = new AtomicLong();
+    private final AtomicLong mReconnectCount = new AtomicLong();
+    private final AtomicLong mReconnectGiveUpCount = new AtomicLong();
+
+    private final MetricsRegistry mMetrics = MetricsRegistry.getDefault();
+    private final MetricsRegistry.Counter mConnectAttempts =
+            mMetrics.counter("gatt.connect.attempts");
+    private final MetricsRegistry.KeyedCounter mConnectionStatus =
+            mMetrics.keyedCounter("gatt.status.connection");
+    private final MetricsRegistry.KeyedCounter mDiscoveryStatus =
+            mMetrics.keyedCounter("gatt.status.discovery");
+    private final MetricsRegistry.KeyedCounter mOperationStatus =
+            mMetrics.keyedCounter("gatt.status.operation");
+    private final MetricsRegistry.Counter mNotificationsReceived =
+            mMetrics.counter("gatt.notifications.received");
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -40,34 +128,83 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
+
+    /**
+     * Interface definition for in-process callbacks on GATT client events of any pooled link.
+     * Callbacks are invoked on the service's link thread, implementations must hand off
+     * anything that touches the UI and should not block.
+     */
+    public interface GattEventListener {
+        void onConnected(String address);
+
+        void onDisconnected(String address);
+
+        void onServicesDiscovered(String address);
+
+        /**
+         * Called for read responses and notifications.  The value array belongs to the
+         * characteristic and is only valid for the duration of the call.
+         */
+        void onDataAvailable(String address, BluetoothGattCharacteristic characteristic,
+                             byte[] value);
+    }
 
     // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
+    // connection change and services discovered.  A single callback is shared by every
+    // pooled connection, the originating link is looked up from the BluetoothGatt.
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
+            final String address = gatt.getDevice().getAddress();
+            final GattConnection connection = getConnection(address);
+            if (connection == null) {
+                Log.w(TAG, "Connection state change for unknown device " + address);
+                return;
+            }
+            mConnectionStatus.increment(status);
+
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
+                connection.setConnectionState(STATE_CONNECTED);
+                onLinkUp(connection);
+                // Service discovery and the initial GATT setup are latency bound.
+                setLinkProfile(address, LinkParameters.PROFILE_LOW_LATENCY);
+                mPeerDirectory.recordSeen(address,
+                        gatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDED);
+                dispatchConnected(address);
+                Log.i(TAG, "Connected to GATT server " + address + ".");
                 // Attempts to discover services after successful connection.
                 Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
+                        gatt.discoverServices());
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                connection.setConnectionState(STATE_DISCONNECTED);
+                connection.resetLinkParameters();
+                GattOperationQueue queue = connection.getOperationQueue();
+                if (queue != null) {
+                    queue.cancelAll(GattOperation.STATUS_DISCONNECTED);
+                }
+                Log.i(TAG, "Disconnected from GATT server " + address + ".");
+                dispatchDisconnected(address);
+                onLinkDown(connection);
             }
+            // Either way the attempt for this link is no longer pending, let the next one go.
+            startQueuedConnects();
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            final String address = gatt.getDevice().getAddress();
+            mDiscoveryStatus.increment(status);
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+                touch(address);
+                recordLayout(address, gatt.getServices());
+                requestMtu(address, PREFERRED_MTU);
+                for (int i = 0; i < CLOCK_SYNC_BURST; i++) {
+                    syncClock(address);
+                }
+                dispatchServicesDiscovered(address);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
@@ -77,37 +214,420 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
+            final String address = gatt.getDevice().getAddress();
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                touch(address);
+                dispatchDataAvailable(address, characteristic);
+            }
+            onOperationComplete(address, GattOperation.TYPE_READ_CHARACTERISTIC,
+                    characteristic.getUuid(), status, characteristic.getValue());
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            onOperationComplete(gatt.getDevice().getAddress(),
+                    GattOperation.TYPE_WRITE_CHARACTERISTIC,
+                    characteristic.getUuid(), status, null);
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                     int status) {
+            onOperationComplete(gatt.getDevice().getAddress(),
+                    GattOperation.TYPE_READ_DESCRIPTOR,
+                    descriptor.getUuid(), status, descriptor.getValue());
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            onOperationComplete(gatt.getDevice().getAddress(),
+                    GattOperation.TYPE_WRITE_DESCRIPTOR,
+                    descriptor.getUuid(), status, null);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            final String address = gatt.getDevice().getAddress();
+            final GattConnection connection = getConnection(address);
+            if (connection != null && status == BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "MTU of " + address + " is now " + mtu);
+                connection.setMtu(mtu);
+            }
+            onOperationComplete(address, GattOperation.TYPE_REQUEST_MTU, null, status, null);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            final GattConnection connection = getConnection(gatt.getDevice().getAddress());
+            if (connection != null && status == BluetoothGatt.GATT_SUCCESS) {
+                connection.setPhy(txPhy, rxPhy);
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            final String address = gatt.getDevice().getAddress();
+            mNotificationsReceived.increment();
+            final long span = Tracer.begin(Tracer.STEP_GATT_CHANGED);
+            touch(address);
+            dispatchDataAvailable(address, characteristic);
+            Tracer.end(Tracer.STEP_GATT_CHANGED, characteristic.getUuid(),
+                    characteristic.getValue(), span);
         }
     };
 
-    private void broadcastUpdate(final String action) {
+    private synchronized void onLinkUp(GattConnection connection) {
+        final long now = SystemClock.uptimeMillis();
+        if (connection.getDisconnectedAt() != 0) {
+            mReconnectCount.incrementAndGet();
+            mReconnectLatency.record(
+                    TimeUnit.MILLISECONDS.toNanos(now - connection.getDisconnectedAt()));
+            connection.setDisconnectedAt(0);
+        }
+        connection.setConnectedAt(now);
+    }
+
+    private synchronized void onLinkDown(GattConnection connection) {
+        if (!connection.isReconnectEnabled() || connection.getConnectedAt() == 0
+                || mConnections.get(connection.getAddress()) != connection) {
+            // Disconnected on purpose, or never connected in the first place.
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (connection.getDisconnectedAt() == 0) {
+            connection.setDisconnectedAt(now);
+            if (now - connection.getConnectedAt() >= STABLE_CONNECTION_TIME) {
+                connection.setReconnectAttempts(0);
+            }
+        }
+        scheduleReconnect(connection);
+    }
+
+    /**
+     * Schedule the next reconnect attempt of a dropped link according to the reconnect
+     * policy, or give up once its budget for this outage is spent.
+     */
+    private void scheduleReconnect(GattConnection connection) {
+        final String address = connection.getAddress();
+        final long delay = mReconnectPolicy.getDelay(connection.getReconnectAttempts());
+        if (delay < 0) {
+            Log.w(TAG, "Giving up reconnecting " + address + " after "
+                    + connection.getReconnectAttempts() + " attempts");
+            mReconnectGiveUpCount.incrementAndGet();
+            return;
+        }
+        cancelReconnect(connection);
+        Runnable attempt = new Runnable() {
+            @Override
+            public void run() {
+                reconnect(address);
+            }
+        };
+        connection.setPendingReconnect(attempt);
+        Log.d(TAG, "Reconnecting " + address + " in " + delay + " ms");
+        mHandler.postDelayed(attempt, delay);
+    }
+
+    private synchronized void reconnect(String address) {
+        final GattConnection connection = mConnections.get(address);
+        if (connection == null || connection.isActive() || !connection.isReconnectEnabled()) {
+            return;
+        }
+        connection.setPendingReconnect(null);
+        connection.setReconnectAttempts(connection.getReconnectAttempts() + 1);
+        mReconnectAttemptCount.incrementAndGet();
+        if (!hasFreeSlot() && !evictIdleConnection()) {
+            Log.w(TAG, "Connection limit reached, unable to reconnect " + address);
+            scheduleReconnect(connection);
+            return;
+        }
+        // Reuse the client, connect() waits for the peer like an autoConnect link.
+        connection.setAutoConnect(true);
+        mConnectAttempts.increment();
+        if (connection.getGatt() != null && connection.getGatt().connect()) {
+            connection.setConnectionState(STATE_CONNECTING);
+            return;
+        }
+        Log.d(TAG, "Reusing the client failed, reopening " + address);
+        GattConnection stale = mConnections.remove(address);
+        stale.close();
+        if (openConnection(address, true)) {
+            GattConnection reopened = mConnections.get(address);
+            reopened.setReconnectAttempts(stale.getReconnectAttempts());
+            reopened.setConnectedAt(stale.getConnectedAt());
+            reopened.setDisconnectedAt(stale.getDisconnectedAt());
+        }
+    }
+
+    private void cancelReconnect(GattConnection connection) {
+        if (connection.getPendingReconnect() != null) {
+            mHandler.removeCallbacks(connection.getPendingReconnect());
+            connection.setPendingReconnect(null);
+        }
+    }
+
+    /**
+     * Set the backoff and per-outage budget used to reconnect links that dropped without
+     * being disconnected through this service.
+     */
+    public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Return the time from a link dropping to it being connected again.
+     */
+    public LatencyHistogram getReconnectLatency() {
+        return mReconnectLatency;
+    }
+
+    public long getReconnectAttemptCount() {
+        return mReconnectAttemptCount.get();
+    }
+
+    /**
+     * Return the number of dropped links that were brought back.
+     */
+    public long getReconnectCount() {
+        return mReconnectCount.get();
+    }
+
+    /**
+     * Return the number of outages given up on once their budget was spent.
+     */
+    public long getReconnectGiveUpCount() {
+        return mReconnectGiveUpCount.get();
+    }
+
+    /**
+     * Apply a link profile to a connected link.  With automatic profiles enabled, see
+     * {@link #setAutoLinkProfile}, links switch to low latency on GATT traffic and back to
+     * low power once idle.
+     *
+     * @param profile one of the {@link LinkParameters} PROFILE_ constants.
+     * @return false if the link is not connected.
+     */
+    public synchronized boolean setLinkProfile(String address, int profile) {
+        GattConnection connection = getConnection(address);
+        BluetoothGatt gatt = connection == null ? null : connection.getGatt();
+        if (gatt == null || connection.getConnectionState() != STATE_CONNECTED) {
+            return false;
+        }
+        if (connection.getLinkProfile() == profile) {
+            return true;
+        }
+        connection.setLinkProfile(profile);
+        switch (profile) {
+            case LinkParameters.PROFILE_LOW_LATENCY:
+                gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                // Shorter air time per packet, ignored by controllers without 2M support.
+                gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK,
+                        BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                break;
+            case LinkParameters.PROFILE_LOW_POWER:
+                gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+                break;
+            default:
+                gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+        Log.d(TAG, "Link " + address + " now " + connection.getLinkParameters());
+        return true;
+    }
+
+    /**
+     * Enable or disable automatic link profile switching, enabled by default.
+     *
+     * @param lowLatencyHold how long a link stays in the low-latency profile after its last
+     *                       GATT traffic.
+     */
+    public synchronized void setAutoLinkProfile(boolean enabled, long lowLatencyHold) {
+        mAutoLinkProfile = enabled;
+        mLowLatencyHold = lowLatencyHold;
+    }
+
+    /**
+     * Return the parameters negotiated on the link to the given device, or null if it is not
+     * connected.
+     */
+    public synchronized LinkParameters getLinkParameters(String address) {
+        GattConnection connection = getConnection(address);
+        if (connection == null || connection.getConnectionState() != STATE_CONNECTED) {
+            return null;
+        }
+        return connection.getLinkParameters();
+    }
+
+    /**
+     * Request a larger ATT MTU on the given link.  The request is queued like any other GATT
+     * operation, the result is visible through {@link #getLinkParameters}.
+     */
+    public GattOperation requestMtu(String address, int mtu) {
+        return enqueue(address, GattOperation.TYPE_REQUEST_MTU, null, null, null, mtu);
+    }
+
+    /**
+     * Switch a link with fresh GATT traffic to the low-latency profile.
+     */
+    private synchronized void onLinkTraffic(GattConnection connection) {
+        if (mAutoLinkProfile && connection.getConnectionState() == STATE_CONNECTED
+                && connection.getLinkProfile() != LinkParameters.PROFILE_LOW_LATENCY) {
+            setLinkProfile(connection.getAddress(), LinkParameters.PROFILE_LOW_LATENCY);
+        }
+    }
+
+    /**
+     * Periodically move links without recent GATT traffic to the low-power profile.
+     */
+    private final Runnable mLinkProfileCheck = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BluetoothLeService.this) {
+                if (mAutoLinkProfile) {
+                    final long now = SystemClock.uptimeMillis();
+                    for (GattConnection connection : mConnections.values()) {
+                        if (connection.getConnectionState() == STATE_CONNECTED
+                                && connection.getLinkProfile() == LinkParameters.PROFILE_LOW_LATENCY
+                                && connection.getIdleTime(now) >= mLowLatencyHold) {
+                            setLinkProfile(connection.getAddress(),
+                                    LinkParameters.PROFILE_LOW_POWER);
+                        }
+                    }
+                }
+            }
+            mHandler.postDelayed(this, LINK_PROFILE_CHECK_PERIOD);
+        }
+    };
+
+    private void recordLayout(String address, List<BluetoothGattService> services) {
+        Map<UUID, List<UUID>> layout = new HashMap<>();
+        for (BluetoothGattService service : services) {
+            List<UUID> characteristics = new ArrayList<>();
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                characteristics.add(characteristic.getUuid());
+            }
+            layout.put(service.getUuid(), characteristics);
+        }
+        mPeerDirectory.recordLayout(address, layout);
+    }
+
+    private void onOperationComplete(String address, int type, UUID uuid, int status,
+                                     byte[] value) {
+        mOperationStatus.increment(status);
+        GattConnection connection = getConnection(address);
+        if (connection == null || connection.getOperationQueue() == null) {
+            return;
+        }
+        connection.touch();
+        connection.getOperationQueue().onOperationComplete(type, uuid, status, value);
+    }
+
+    /**
+     * Register a listener for GATT events.  This is the preferred way for in-process
+     * consumers bound through {@link LocalBinder} to observe the service.
+     */
+    public synchronized void addGattEventListener(GattEventListener listener) {
+        GattEventListener[] listeners = mListeners;
+        for (GattEventListener existing : listeners) {
+            if (existing == listener) return;
+        }
+        GattEventListener[] updated = new GattEventListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        mListeners = updated;
+    }
+
+    /**
+     * Unregister a listener previously added with {@link #addGattEventListener}.
+     */
+    public synchronized void removeGattEventListener(GattEventListener listener) {
+        GattEventListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                GattEventListener[] updated = new GattEventListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, updated, 0, i);
+                System.arraycopy(listeners, i + 1, updated, i, listeners.length - i - 1);
+                mListeners = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Enable or disable the ACTION_ broadcasts for consumers outside of this process.
+     * Broadcasts are off by default, every event costs an Intent and a trip through the
+     * system server.
+     */
+    public void setBroadcastsEnabled(boolean enabled) {
+        mBroadcastsEnabled = enabled;
+    }
+
+    private void dispatchConnected(String address) {
+        for (GattEventListener listener : mListeners) {
+            listener.onConnected(address);
+        }
+        if (mBroadcastsEnabled) {
+            broadcastUpdate(ACTION_GATT_CONNECTED, address);
+        }
+    }
+
+    private void dispatchDisconnected(String address) {
+        for (GattEventListener listener : mListeners) {
+            listener.onDisconnected(address);
+        }
+        if (mBroadcastsEnabled) {
+            broadcastUpdate(ACTION_GATT_DISCONNECTED, address);
+        }
+    }
+
+    private void dispatchServicesDiscovered(String address) {
+        for (GattEventListener listener : mListeners) {
+            listener.onServicesDiscovered(address);
+        }
+        if (mBroadcastsEnabled) {
+            broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, address);
+        }
+    }
+
+    private void dispatchDataAvailable(String address,
+                                       BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue();
+        for (GattEventListener listener : mListeners) {
+            listener.onDataAvailable(address, characteristic, value);
+        }
+        if (mBroadcastsEnabled) {
+            broadcastUpdate(ACTION_DATA_AVAILABLE, address, characteristic);
+        }
+    }
+
+    private void broadcastUpdate(final String action, final String address) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,
+    private void broadcastUpdate(final String action, final String address,
                                  final BluetoothGattCharacteristic characteristic) {
+        final long span = Tracer.begin(Tracer.STEP_BROADCAST);
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
 
-        // For all other profiles, writes the data formatted in HEX.
+        // The raw value is passed on, see RemoteLedCodec for the layout.  It is only
+        // rendered as hex when debug logging is enabled for this tag.
         final byte[] data = characteristic.getValue();
         if (data != null && data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            for(byte byteChar : data)
-                stringBuilder.append(String.format("%02X ", byteChar));
-            intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+            intent.putExtra(EXTRA_DATA, data);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Data from " + address + ": "
+                        + RemoteLedCodec.appendHex(data, new StringBuilder(data.length * 3)));
+            }
         }
 
         sendBroadcast(intent);
+        Tracer.end(Tracer.STEP_BROADCAST, characteristic.getUuid(), data, span);
     }
 
     public class LocalBinder extends Binder {
@@ -116,6 +636,68 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mLinkThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mLinkThread.start();
+        mHandler = new Handler(mLinkThread.getLooper());
+        BluetoothHelper.setBluetoothManager(
+                (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE));
+        // Advertising mode changes and data updates run on the link thread too.
+        BluetoothHelper.setHandler(mHandler);
+        createNotificationChannel();
+        mLink = new RemoteLedLink(this, mHandler);
+        mPeerDirectory = new PeerDirectory(
+                getSharedPreferences(PeerDirectory.PREFS_NAME, Context.MODE_PRIVATE));
+        mHandler.postDelayed(mIdleSweep, IDLE_SWEEP_PERIOD);
+        mHandler.postDelayed(mClockSync, CLOCK_SYNC_PERIOD);
+        mHandler.postDelayed(mLinkProfileCheck, LINK_PROFILE_CHECK_PERIOD);
+        mMetrics.gauge("gatt.connections", mConnectionGauge);
+        mMetrics.gauge("gatt.connects.queued", mQueuedConnectGauge);
+        mMetrics.gauge("gatt.operations.queued", mQueuedOperationGauge);
+    }
+
+    @Override
+    public void onDestroy() {
+        mMetrics.removeGauge("gatt.connections", mConnectionGauge);
+        mMetrics.removeGauge("gatt.connects.queued", mQueuedConnectGauge);
+        mMetrics.removeGauge("gatt.operations.queued", mQueuedOperationGauge);
+        mHandler.removeCallbacks(mIdleSweep);
+        mHandler.removeCallbacks(mClockSync);
+        mHandler.removeCallbacks(mLinkProfileCheck);
+        mLink.stop();
+        close();
+        mLinkThread.quitSafely();
+        super.onDestroy();
+    }
+
+    /**
+     * Started by the activities so the link outlives them, e.g. while the UI is in the
+     * background.  The service stays in the foreground until it is stopped.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, new Notification.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                .setContentTitle(getString(R.string.link_notification_title))
+                .setOngoing(true)
+                .build());
+        // The link is configured by the activity that binds, there is nothing to restore it
+        // from if the process is killed.
+        return START_NOT_STICKY;
+    }
+
+    private void createNotificationChannel() {
+        NotificationManager manager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (manager != null) {
+            manager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                    getString(R.string.link_notification_channel),
+                    NotificationManager.IMPORTANCE_LOW));
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -123,15 +705,92 @@ public class BluetoothLeService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
+        // Connections are kept while no activity is bound, they are closed when the service
+        // is destroyed.
         return super.onUnbind(intent);
     }
 
+    /**
+     * Return the Remote LED link layer run by this service.
+     */
+    public RemoteLedLink getLink() {
+        return mLink;
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
+    private final MetricsRegistry.Gauge mConnectionGauge = new MetricsRegistry.Gauge() {
+        @Override
+        public long getValue() {
+            synchronized (BluetoothLeService.this) {
+                int connected = 0;
+                for (GattConnection connection : mConnections.values()) {
+                    if (connection.getConnectionState() == STATE_CONNECTED) {
+                        connected++;
+                    }
+                }
+                return connected;
+            }
+        }
+    };
+
+    private final MetricsRegistry.Gauge mQueuedConnectGauge = new MetricsRegistry.Gauge() {
+        @Override
+        public long getValue() {
+            synchronized (BluetoothLeService.this) {
+                return mQueuedConnects.size();
+            }
+        }
+    };
+
+    // GATT operations waiting behind the one in flight, over every link.
+    private final MetricsRegistry.Gauge mQueuedOperationGauge = new MetricsRegistry.Gauge() {
+        @Override
+        public long getValue() {
+            synchronized (BluetoothLeService.this) {
+                int queued = 0;
+                for (GattConnection connection : mConnections.values()) {
+                    if (connection.getOperationQueue() != null) {
+                        queued += connection.getOperationQueue().size();
+                    }
+                }
+                return queued;
+            }
+        }
+    };
+
+    /**
+     * Print the process metrics, the state of every pooled link and the recent trace spans,
+     * for {@code adb shell dumpsys activity service BluetoothLeService}.  The arguments
+     * {@code trace on|off|clear} control tracing instead.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (Tracer.handleDumpArgs(args, writer)) {
+            return;
+        }
+        writer.println("Metrics:");
+        mMetrics.dump(writer, "  ");
+        writer.println("Links:");
+        synchronized (this) {
+            for (GattConnection connection : mConnections.values()) {
+                final GattOperationQueue queue = connection.getOperationQueue();
+                writer.println("  " + connection.getAddress()
+                        + ": state=" + connection.getConnectionState()
+                        + " operations=" + (queue != null ? queue.size() : 0)
+                        + " reconnect attempts=" + connection.getReconnectAttempts()
+                        + " " + connection.getLinkParameters());
+            }
+        }
+        writer.println("  " + mReconnectLatency);
+        writer.println("  reconnect attempts=" + getReconnectAttemptCount()
+                + " reconnected=" + getReconnectCount()
+                + " given up=" + getReconnectGiveUpCount());
+        writer.println("Link:");
+        mLink.dump(writer, "  ");
+        Tracer.dump(writer, "");
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -157,6 +816,45 @@ public class BluetoothLeService extends Service {
         return true;
     }
 
+    /**
+     * Return the directory of peers this service has connected to, persisted across restarts.
+     */
+    public PeerDirectory getPeerDirectory() {
+        return mPeerDirectory;
+    }
+
+    /**
+     * Set the maximum number of concurrent links, including links still connecting.
+     * Should not exceed the number of LE connections supported by the controller.
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        mMaxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Set the maximum number of connection attempts in flight at the same time.
+     * Further requests are queued until an attempt completes.
+     */
+    public synchronized void setMaxPendingConnections(int maxPendingConnections) {
+        mMaxPendingConnections = Math.max(1, maxPendingConnections);
+    }
+
+    /**
+     * Set how long a link may go without GATT traffic before it becomes eligible for eviction.
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        mIdleTimeout = idleTimeout;
+    }
+
+    /**
+     * Set how long a queued GATT operation may stay in flight, and how many times it is
+     * retried on failure or timeout, before it completes with an error.
+     */
+    public synchronized void setOperationPolicy(long timeout, int retries) {
+        mOperationTimeout = timeout;
+        mOperationRetries = Math.max(0, retries);
+    }
+
     /**
      * Connects to the GATT server hosted on the Bluetooth LE device.
      *
@@ -165,40 +863,310 @@ public class BluetoothLeService extends Service {
      * @return Return true if the connection is initiated successfully. The connection result
      *         is reported asynchronously through the
      *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     *         callback.
+     *         callback.  If too many attempts are already in flight the request is queued
+     *         and started once one of them completes.
      */
     public boolean connect(final String address) {
+        return connect(address, false);
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device.
+     *
+     * @param address The device address of the destination device.
+     * @param autoConnect false to connect directly, which is fastest when the peer is known to
+     *                    be in range but times out otherwise.  true for a background link the
+     *                    stack connects whenever the peer shows up.  Background attempts do
+     *                    not count against the pending connection limit and are never queued.
+     *
+     * @return Return true if the connection is initiated successfully, see {@link #connect(String)}.
+     */
+    public synchronized boolean connect(final String address, boolean autoConnect) {
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
+        mBluetoothDeviceAddress = address;
 
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
+        GattConnection connection = mConnections.get(address);
+        if (connection != null) {
+            connection.setReconnectEnabled(true);
+            cancelReconnect(connection);
+        }
+        if (connection != null && connection.getGatt() != null) {
+            if (connection.isActive()) {
+                return true;
+            }
+            if (!hasFreeSlot() && !evictIdleConnection()) {
+                Log.w(TAG, "Connection limit reached, unable to reconnect " + address);
+                return false;
+            }
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for connection.");
+            mConnectAttempts.increment();
+            if (connection.getGatt().connect()) {
+                connection.setConnectionState(STATE_CONNECTING);
                 return true;
             } else {
                 return false;
             }
         }
 
+        if (mQueuedConnects.contains(address)) {
+            return true;
+        }
+        if (!hasFreeSlot() && !evictIdleConnection()) {
+            Log.w(TAG, "Connection limit reached, unable to connect " + address);
+            return false;
+        }
+        if (!autoConnect && getPendingCount() >= mMaxPendingConnections) {
+            Log.d(TAG, "Too many pending connections, queueing " + address);
+            mQueuedConnects.add(address);
+            return true;
+        }
+        return openConnection(address, autoConnect);
+    }
+
+    private boolean openConnection(String address, boolean autoConnect) {
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         if (device == null) {
             Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+        mConnectAttempts.increment();
+        GattConnection connection = new GattConnection(address, mHandler, autoConnect);
+        // Callbacks are delivered on the link thread rather than a Binder thread.
+        connection.setGatt(device.connectGatt(this, autoConnect, mGattCallback,
+                BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, mHandler));
         Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        connection.setConnectionState(STATE_CONNECTING);
+        mConnections.put(address, connection);
         return true;
     }
 
+    /**
+     * Start queued connection attempts for as long as pending and connection limits allow.
+     */
+    private synchronized void startQueuedConnects() {
+        while (!mQueuedConnects.isEmpty()
+                && getPendingCount() < mMaxPendingConnections
+                && (hasFreeSlot() || evictIdleConnection())) {
+            openConnection(mQueuedConnects.poll(), false);
+        }
+    }
+
+    private boolean hasFreeSlot() {
+        int active = 0;
+        for (GattConnection connection : mConnections.values()) {
+            if (connection.isActive()) {
+                active++;
+            }
+        }
+        return active < mMaxConnections;
+    }
+
+    private int getPendingCount() {
+        int pending = 0;
+        for (GattConnection connection : mConnections.values()) {
+            if (connection.getConnectionState() == STATE_CONNECTING
+                    && !connection.isAutoConnect()) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Close the connected link that has been idle the longest, provided it has been idle
+     * for at least the idle timeout.
+     *
+     * @return true if a slot was freed.
+     */
+    private boolean evictIdleConnection() {
+        final long now = SystemClock.uptimeMillis();
+        GattConnection candidate = null;
+        for (GattConnection connection : mConnections.values()) {
+            if (connection.getConnectionState() != STATE_CONNECTED
+                    || connection.getIdleTime(now) < mIdleTimeout) {
+                continue;
+            }
+            if (candidate == null || connection.getIdleTime(now) > candidate.getIdleTime(now)) {
+                candidate = connection;
+            }
+        }
+        if (candidate == null) {
+            return false;
+        }
+        final String address = candidate.getAddress();
+        Log.i(TAG, "Evicting idle connection " + address);
+        cancelReconnect(candidate);
+        candidate.close();
+        mConnections.remove(address);
+        // Closing the client unregisters the callback, so report the disconnect ourselves.
+        // Posted to the link thread, so listeners run without the pool lock held and may
+        // connect again.
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                dispatchDisconnected(address);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Periodically release GATT clients of links that stayed disconnected past the idle
+     * timeout, the stack only has a limited number of client interfaces.
+     */
+    private final Runnable mIdleSweep = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BluetoothLeService.this) {
+                final long now = SystemClock.uptimeMillis();
+                Iterator<GattConnection> iterator = mConnections.values().iterator();
+                while (iterator.hasNext()) {
+                    GattConnection connection = iterator.next();
+                    if (!connection.isActive() && connection.getPendingReconnect() == null
+                            && connection.getIdleTime(now) >= mIdleTimeout) {
+                        Log.d(TAG, "Releasing stale connection " + connection.getAddress());
+                        connection.close();
+                        iterator.remove();
+                    }
+                }
+            }
+            mHandler.postDelayed(this, IDLE_SWEEP_PERIOD);
+        }
+    };
+
+    /**
+     * Periodically refresh the clock offset of every connected peer.
+     */
+    private final Runnable mClockSync = new Runnable() {
+        @Override
+        public void run() {
+            for (String address : getConnectedDevices()) {
+                syncClock(address);
+            }
+            mHandler.postDelayed(this, CLOCK_SYNC_PERIOD);
+        }
+    };
+
+    /**
+     * Take one clock offset sample from the given peer by reading its Remote LED Clock
+     * characteristic.  Samples are collected automatically after service discovery and
+     * periodically afterwards.
+     *
+     * @return the read operation, rejected if the peer has no clock characteristic.
+     */
+    public GattOperation syncClock(final String address) {
+        final BluetoothGattCharacteristic clock = getCharacteristic(address,
+                RemoteLedProfile.REMOTE_LED_SERVICE, RemoteLedProfile.REMOTE_LED_CLOCK);
+        if (clock == null) {
+            return GattOperation.completed(GattOperation.TYPE_READ_CHARACTERISTIC, null,
+                    GattOperation.STATUS_REJECTED);
+        }
+        GattOperation operation = readCharacteristic(address, clock);
+        operation.setOnCompleteListener(new GattOperation.OnCompleteListener() {
+            @Override
+            public void onComplete(GattOperation operation) {
+                long remote = RemoteLedCodec.decodeClock(operation.getValue());
+                if (!operation.isSuccessful() || remote < 0) {
+                    return;
+                }
+                getClockOffset(address).addSample(operation.getStartedAt(), remote,
+                        operation.getCompletedAt());
+            }
+        });
+        return operation;
+    }
+
+    /**
+     * Return the clock offset estimate for the given peer, see {@link #syncClock}.
+     */
+    public ClockOffsetEstimator getClockOffset(String address) {
+        ClockOffsetEstimator estimator = mClockEstimators.get(address);
+        if (estimator == null) {
+            ClockOffsetEstimator created = new ClockOffsetEstimator();
+            estimator = mClockEstimators.putIfAbsent(address, created);
+            if (estimator == null) {
+                estimator = created;
+            }
+        }
+        return estimator;
+    }
+
+    private BluetoothGattCharacteristic getCharacteristic(String address, UUID serviceUuid,
+                                                          UUID characteristicUuid) {
+        BluetoothGatt gatt = getGatt(address);
+        BluetoothGattService service = gatt == null ? null : gatt.getService(serviceUuid);
+        return service == null ? null : service.getCharacteristic(characteristicUuid);
+    }
+
+    private synchronized GattConnection getConnection(String address) {
+        if (address == null) return null;
+        return mConnections.get(address);
+    }
+
+    private synchronized BluetoothGatt getGatt(String address) {
+        GattConnection connection = getConnection(address);
+        return connection == null ? null : connection.getGatt();
+    }
+
+    /**
+     * Queue an operation on the link to the given device.
+     */
+    private GattOperation enqueue(String address, int type,
+                                  BluetoothGattCharacteristic characteristic,
+                                  BluetoothGattDescriptor descriptor,
+                                  byte[] value, int writeType) {
+        GattOperationQueue queue;
+        GattOperation operation;
+        synchronized (this) {
+            GattConnection connection = getConnection(address);
+            queue = connection == null ? null : connection.getOperationQueue();
+            if (mBluetoothAdapter == null || queue == null) {
+                Log.w(TAG, "BluetoothAdapter not initialized");
+                return GattOperation.completed(type, characteristic,
+                        GattOperation.STATUS_REJECTED);
+            }
+            connection.touch();
+            onLinkTraffic(connection);
+            operation = new GattOperation(type, characteristic, descriptor, value, writeType,
+                    mOperationTimeout, mOperationRetries);
+        }
+        return queue.enqueue(operation);
+    }
+
+    private void touch(String address) {
+        GattConnection connection = getConnection(address);
+        if (connection != null) {
+            connection.touch();
+            onLinkTraffic(connection);
+        }
+    }
+
+    /**
+     * Return the connection state of the given device, one of {@link #STATE_DISCONNECTED},
+     * {@link #STATE_CONNECTING} or {@link #STATE_CONNECTED}.
+     */
+    public int getConnectionState(String address) {
+        GattConnection connection = getConnection(address);
+        return connection == null ? STATE_DISCONNECTED : connection.getConnectionState();
+    }
+
+    /**
+     * Return the addresses of all currently connected devices.
+     */
+    public synchronized List<String> getConnectedDevices() {
+        List<String> addresses = new ArrayList<>();
+        for (GattConnection connection : mConnections.values()) {
+            if (connection.getConnectionState() == STATE_CONNECTED) {
+                addresses.add(connection.getAddress());
+            }
+        }
+        return addresses;
+    }
+
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
@@ -206,23 +1174,53 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        disconnect(mBluetoothDeviceAddress);
+    }
+
+    /**
+     * Disconnects the given device, see {@link #disconnect()}.
+     */
+    public synchronized void disconnect(String address) {
+        mQueuedConnects.remove(address);
+        GattConnection connection = getConnection(address);
+        if (connection != null) {
+            // Disconnected on purpose, keep the link down.
+            connection.setReconnectEnabled(false);
+            cancelReconnect(connection);
+        }
+        BluetoothGatt gatt = getGatt(address);
+        if (mBluetoothAdapter == null || gatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        gatt.disconnect();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * released properly.  Closes every pooled connection.
+     */
+    public synchronized void close() {
+        mQueuedConnects.clear();
+        for (GattConnection connection : mConnections.values()) {
+            cancelReconnect(connection);
+            connection.close();
+        }
+        mConnections.clear();
+    }
+
+    /**
+     * Release the resources held for the given device.
      */
-    public void close() {
-        if (mBluetoothGatt == null) {
+    public synchronized void close(String address) {
+        mQueuedConnects.remove(address);
+        GattConnection connection = mConnections.remove(address);
+        if (connection == null) {
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        cancelReconnect(connection);
+        connection.close();
+        startQueuedConnects();
     }
 
     /**
@@ -230,14 +1228,37 @@ public class BluetoothLeService extends Service {
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
      *
+     * The request is queued behind any operation already in flight on the link.
+     *
      * @param characteristic The characteristic to read from.
+     * @return A handle completed with the read value once the read finishes.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
-        }
-        mBluetoothGatt.readCharacteristic(characteristic);
+    public GattOperation readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return readCharacteristic(mBluetoothDeviceAddress, characteristic);
+    }
+
+    /**
+     * Request a read on a characteristic of the given device, see
+     * {@link #readCharacteristic(BluetoothGattCharacteristic)}.
+     */
+    public GattOperation readCharacteristic(String address,
+                                            BluetoothGattCharacteristic characteristic) {
+        return enqueue(address, GattOperation.TYPE_READ_CHARACTERISTIC, characteristic,
+                null, null, 0);
+    }
+
+    /**
+     * Request a write of a characteristic on the given device.  The request is queued behind
+     * any operation already in flight on the link.
+     *
+     * @param writeType One of the {@code BluetoothGattCharacteristic} WRITE_TYPE_ constants.
+     * @return A handle completed once the write finishes.
+     */
+    public GattOperation writeCharacteristic(String address,
+                                             BluetoothGattCharacteristic characteristic,
+                                             byte[] value, int writeType) {
+        return enqueue(address, GattOperation.TYPE_WRITE_CHARACTERISTIC, characteristic,
+                null, value, writeType);
     }
 
     /**
@@ -245,14 +1266,46 @@ public class BluetoothLeService extends Service {
      *
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
+     * @return A handle completed once the remote configuration descriptor has been written.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
-                                              boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public GattOperation setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                       boolean enabled) {
+        return setCharacteristicNotification(mBluetoothDeviceAddress, characteristic, enabled);
+    }
+
+    /**
+     * Enables or disables notification on a characteristic of the given device, see
+     * {@link #setCharacteristicNotification(BluetoothGattCharacteristic, boolean)}.
+     */
+    public GattOperation setCharacteristicNotification(String address,
+                                                       BluetoothGattCharacteristic characteristic,
+                                                       boolean enabled) {
+        BluetoothGatt gatt = getGatt(address);
+        if (mBluetoothAdapter == null || gatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+            return GattOperation.completed(GattOperation.TYPE_WRITE_DESCRIPTOR, characteristic,
+                    GattOperation.STATUS_REJECTED);
+        }
+        gatt.setCharacteristicNotification(characteristic, enabled);
+
+        // The peer only starts sending once its configuration descriptor has been written.
+        BluetoothGattDescriptor descriptor =
+                characteristic.getDescriptor(RemoteLedProfile.CLIENT_CONFIG);
+        if (descriptor == null) {
+            return GattOperation.completed(GattOperation.TYPE_WRITE_DESCRIPTOR, characteristic,
+                    BluetoothGatt.GATT_SUCCESS);
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        byte[] value;
+        if (!enabled) {
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        } else if ((characteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        } else {
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        }
+        return enqueue(address, GattOperation.TYPE_WRITE_DESCRIPTOR, characteristic,
+                descriptor, value, 0);
     }
 
     /**
@@ -262,8 +1315,32 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        return getSupportedGattServices(mBluetoothDeviceAddress);
+    }
+
+    /**
+     * Retrieves the supported GATT services of the given device, see
+     * {@link #getSupportedGattServices()}.
+     */
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        BluetoothGatt gatt = getGatt(address);
+        if (gatt == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return gatt.getServices();
+    }
+
+    /**
+     * Return a {@link GattClientLink} to the Remote LED Service of the given device.  The link
+     * follows the pooled connection to the device, it neither connects nor disconnects it.
+     *
+     * @param listener Receives the events of that device, may be null.  The link must be
+     *                 closed once it is no longer needed.
+     */
+    public GattClientLink getClientLink(String address, GattClientLink.Listener listener) {
+        ServiceClientLink link = new ServiceClientLink(this, address, listener);
+        if (listener != null) {
+            addGattEventListener(link);
+        }
+        return link;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+package apps.hackstermia.buttonthings;
+
+/**
+ * NTP-style estimate of the offset between the local wall clock and a peer's.  Each sample
+ * is a request sent at local time t1, answered with the peer's time t2, and received back
+ * at local time t4.  Like NTP's clock filter, the estimate comes from the sample with the
+ * shortest round trip among the most recent ones, since it had the least room for
+ * asymmetric delay.
+ */
+public class ClockOffsetEstimator {
+
+    private static final int WINDOW = 8;
+
+    // Guarded by "this".
+    private final long[] mOffsets = new long[WINDOW];
+    private final long[] mRoundTrips = new long[WINDOW];
+    private int mCount;
+    private int mNext;
+
+    /**
+     * @param sent local time the request went out, in milliseconds.
+     * @param remote peer time carried in the response, in milliseconds.
+     * @param received local time the response arrived, in milliseconds.
+     */
+    public synchronized void addSample(long sent, long remote, long received) {
+        if (received < sent) {
+            return;
+        }
+        final long roundTrip = received - sent;
+        mOffsets[mNext] = remote - sent - roundTrip / 2;
+        mRoundTrips[mNext] = roundTrip;
+        mNext = (mNext + 1) % WINDOW;
+        mCount = Math.min(mCount + 1, WINDOW);
+    }
+
+    public synchronized boolean hasEstimate() {
+        return mCount > 0;
+    }
+
+    /**
+     * Return the estimated peer time minus local time, in milliseconds.
+     */
+    public synchronized long getOffset() {
+        int best = bestSample();
+        return best < 0 ? 0 : mOffsets[best];
+    }
+
+    /**
+     * Return the round trip of the sample the estimate is based on, which bounds its error
+     * to half of it.
+     */
+    public synchronized long getRoundTrip() {
+        int best = bestSample();
+        return best < 0 ? 0 : mRoundTrips[best];
+    }
+
+    /**
+     * Convert a timestamp taken on the peer's clock to the local clock.
+     */
+    public long toLocalTime(long remoteTime) {
+        return remoteTime - getOffset();
+    }
+
+    public synchronized int getSampleCount() {
+        return mCount;
+    }
+
+    private int bestSample() {
+        int best = -1;
+        for (int i = 0; i < mCount; i++) {
+            if (best < 0 || mRoundTrips[i] < mRoundTrips[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
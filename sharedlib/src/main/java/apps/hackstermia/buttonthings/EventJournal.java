@@ -0,0 +1,381 @@
+package apps.hackstermia.buttonthings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Append-only journal of LED related events, kept in memory-mapped segment files of
+ * fixed-size records.  Appending writes straight into the mapping, it neither allocates nor
+ * syncs, the kernel writes the pages back in its own time.  Only rotating to the next
+ * segment, once every segment's worth of records, maps a new file.
+ * <p>
+ * Every record carries the channel states after the event.  A snapshot of the latest
+ * position and state is written every few records, so {@link #open} only replays the records
+ * after it to restore the state.
+ */
+public class EventJournal {
+
+    /* Record types */
+    // A button edge, value 1 for pressed.
+    public static final int TYPE_BUTTON = 1;
+    // Channel states written to the GPIO pins, value is the changed channels.
+    public static final int TYPE_LED_WRITE = 2;
+    // A state received from a peer, value is the frame's sequence number.
+    public static final int TYPE_REMOTE_STATE = 3;
+
+    public static final int RECORD_SIZE = 32;
+
+    // 128 KiB segments, a snapshot every 256 records, the last 4 segments are kept.
+    public static final int DEFAULT_SEGMENT_RECORDS = 4096;
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 256;
+    public static final int DEFAULT_KEEP_SEGMENTS = 4;
+
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String SEGMENT_PREFIX = "segment-";
+    // Two slots written alternately, a torn snapshot leaves the other one intact.
+    private static final int SNAPSHOT_SLOTS = 2;
+    private static final int SNAPSHOT_MAGIC = 0x4c454431;
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Receives the records of {@link #replay}, oldest first.
+     */
+    public interface Visitor {
+        void onRecord(long sequence, int type, int state, int value, long timestamp);
+    }
+
+    private final File mDirectory;
+    private final int mSegmentRecords;
+    private final int mSnapshotInterval;
+    private final int mKeepSegments;
+
+    private MappedByteBuffer mSnapshot;
+    private MappedByteBuffer mBuffer;
+    private long mSegment;
+    // Index of the next record in the current segment.
+    private int mPosition;
+    private long mSequence;
+    private int mState;
+    private int mSinceSnapshot;
+    // Snapshots written, selects the slot of the next one.
+    private long mSnapshotCount;
+    private long mRestoredSequence;
+    private long mRestoreNanos;
+    private IOException mError;
+    private boolean mClosed;
+
+    private EventJournal(File directory, int segmentRecords, int snapshotInterval,
+                         int keepSegments) {
+        mDirectory = directory;
+        mSegmentRecords = segmentRecords;
+        mSnapshotInterval = snapshotInterval;
+        mKeepSegments = keepSegments;
+    }
+
+    /**
+     * Open the journal in a directory with the default sizes, see
+     * {@link #open(File, int, int, int)}.
+     */
+    public static EventJournal open(File directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_RECORDS, DEFAULT_SNAPSHOT_INTERVAL,
+                DEFAULT_KEEP_SEGMENTS);
+    }
+
+    /**
+     * Open the journal in a directory, creating it if needed, and restore the latest state
+     * from the last snapshot and the records after it.
+     *
+     * @param segmentRecords records per segment file.
+     * @param snapshotInterval records between snapshots, bounds the replay on open.
+     * @param keepSegments segment files kept, older ones are deleted on rotation.
+     */
+    public static EventJournal open(File directory, int segmentRecords, int snapshotInterval,
+                                    int keepSegments) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        EventJournal journal = new EventJournal(directory, segmentRecords, snapshotInterval,
+                keepSegments);
+        journal.restore();
+        return journal;
+    }
+
+    /**
+     * Append a record.  Safe to call from any thread, never blocks on I/O.
+     *
+     * @param state the channel states after the event.
+     * @return false if the journal is closed or failed to rotate, see {@link #getError}.
+     */
+    public synchronized boolean append(int type, int state, int value, long timestamp) {
+        if (mClosed || mError != null) {
+            return false;
+        }
+        if (mPosition == mSegmentRecords) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                mError = e;
+                return false;
+            }
+        }
+        final long sequence = mSequence + 1;
+        final int base = mPosition * RECORD_SIZE;
+        mBuffer.putInt(base, type);
+        mBuffer.putInt(base + 4, state);
+        mBuffer.putLong(base + 8, sequence);
+        mBuffer.putLong(base + 16, timestamp);
+        mBuffer.putInt(base + 24, value);
+        // Written last, a record torn by a crash fails the check and ends the replay.
+        mBuffer.putInt(base + 28, checksum(type, state, sequence, timestamp, value));
+        mPosition++;
+        mSequence = sequence;
+        mState = state;
+        if (++mSinceSnapshot >= mSnapshotInterval) {
+            writeSnapshot();
+        }
+        return true;
+    }
+
+    /**
+     * Return the channel states of the latest record, restored or appended.
+     */
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Return the sequence number of the latest record, 0 if there is none.
+     */
+    public synchronized long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Return true if {@link #open} found earlier records.
+     */
+    public boolean isRestored() {
+        return mRestoredSequence > 0;
+    }
+
+    /**
+     * Return how long {@link #open} took to restore the state.
+     */
+    public long getRestoreNanos() {
+        return mRestoreNanos;
+    }
+
+    /**
+     * Return the error that stopped the journal, null while it is working.
+     */
+    public synchronized IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Write a snapshot of the current position and state.
+     */
+    public synchronized void snapshot() {
+        if (!mClosed) {
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Force the mapped pages to storage.  Slow, not for the event path.
+     */
+    public synchronized void flush() {
+        if (!mClosed) {
+            mBuffer.force();
+            mSnapshot.force();
+        }
+    }
+
+    /**
+     * Snapshot, flush and stop accepting records.
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        writeSnapshot();
+        flush();
+        mClosed = true;
+    }
+
+    /**
+     * Pass every record of the kept segments to the visitor, oldest first.
+     */
+    public synchronized void replay(Visitor visitor) throws IOException {
+        for (long segment = Math.max(0, mSegment - mKeepSegments + 1); segment <= mSegment;
+                segment++) {
+            if (segment == mSegment) {
+                visit(mBuffer, mPosition, visitor);
+                continue;
+            }
+            File file = segmentFile(segment);
+            if (file.exists()) {
+                MappedByteBuffer buffer = map(file, mSegmentRecords * RECORD_SIZE);
+                visit(buffer, mSegmentRecords, visitor);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "segment=%d records=%d sequence=%d state=0x%x restored=%d in %d us",
+                mSegment, mPosition, mSequence, mState, mRestoredSequence, mRestoreNanos / 1000);
+    }
+
+    private void restore() throws IOException {
+        final long start = System.nanoTime();
+        mSnapshot = map(new File(mDirectory, SNAPSHOT_FILE), SNAPSHOT_SLOTS * RECORD_SIZE);
+        int slot = -1;
+        for (int i = 0; i < SNAPSHOT_SLOTS; i++) {
+            if (isValidSnapshot(i * RECORD_SIZE) && (slot < 0
+                    || mSnapshot.getLong(i * RECORD_SIZE) > mSnapshot.getLong(slot * RECORD_SIZE))) {
+                slot = i;
+            }
+        }
+        if (slot >= 0) {
+            final int base = slot * RECORD_SIZE;
+            mSequence = mSnapshot.getLong(base);
+            mSegment = mSnapshot.getLong(base + 8);
+            mPosition = mSnapshot.getInt(base + 16);
+            mState = mSnapshot.getInt(base + 20);
+            mSnapshotCount = slot + 1;
+        } else {
+            mSegment = findFirstSegment();
+        }
+        mBuffer = map(segmentFile(mSegment), mSegmentRecords * RECORD_SIZE);
+
+        // Replay the records written after the snapshot, into the next segment if this one
+        // filled up before a rotation snapshot was written.
+        while (true) {
+            while (mPosition < mSegmentRecords && readRecord(mPosition * RECORD_SIZE)) {
+                mPosition++;
+            }
+            if (mPosition < mSegmentRecords || !segmentFile(mSegment + 1).exists()) {
+                break;
+            }
+            mSegment++;
+            mPosition = 0;
+            mBuffer = map(segmentFile(mSegment), mSegmentRecords * RECORD_SIZE);
+        }
+        mRestoredSequence = mSequence;
+        mRestoreNanos = System.nanoTime() - start;
+    }
+
+    // Apply the record at the given offset of the current segment if it follows the last one.
+    private boolean readRecord(int base) {
+        final long sequence = mBuffer.getLong(base + 8);
+        if (sequence == 0 || (mSequence != 0 && sequence != mSequence + 1)
+                || !isValidRecord(mBuffer, base)) {
+            return false;
+        }
+        mSequence = sequence;
+        mState = mBuffer.getInt(base + 4);
+        return true;
+    }
+
+    private void rotate() throws IOException {
+        final File next = segmentFile(mSegment + 1);
+        // A leftover from a lost journal must not be replayed as new records.
+        if (next.exists() && !next.delete()) {
+            throw new IOException("Cannot reuse " + next);
+        }
+        mBuffer = map(next, mSegmentRecords * RECORD_SIZE);
+        mSegment++;
+        mPosition = 0;
+        writeSnapshot();
+        final long expired = mSegment - mKeepSegments;
+        if (expired >= 0) {
+            segmentFile(expired).delete();
+        }
+    }
+
+    private void writeSnapshot() {
+        final int base = (int) (mSnapshotCount % SNAPSHOT_SLOTS) * RECORD_SIZE;
+        mSnapshot.putLong(base, mSequence);
+        mSnapshot.putLong(base + 8, mSegment);
+        mSnapshot.putInt(base + 16, mPosition);
+        mSnapshot.putInt(base + 20, mState);
+        mSnapshot.putInt(base + 24, SNAPSHOT_MAGIC);
+        mSnapshot.putInt(base + 28,
+                checksum(mPosition, mState, mSequence, mSegment, SNAPSHOT_MAGIC));
+        mSnapshotCount++;
+        mSinceSnapshot = 0;
+    }
+
+    private boolean isValidSnapshot(int base) {
+        return mSnapshot.getInt(base + 24) == SNAPSHOT_MAGIC
+                && mSnapshot.getInt(base + 28) == checksum(mSnapshot.getInt(base + 16),
+                        mSnapshot.getInt(base + 20), mSnapshot.getLong(base),
+                        mSnapshot.getLong(base + 8), SNAPSHOT_MAGIC);
+    }
+
+    private long findFirstSegment() {
+        long first = 0;
+        boolean found = false;
+        String[] names = mDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(SEGMENT_PREFIX)) {
+                    continue;
+                }
+                try {
+                    long segment = Long.parseLong(name.substring(SEGMENT_PREFIX.length()));
+                    if (!found || segment < first) {
+                        first = segment;
+                        found = true;
+                    }
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        return first;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(mDirectory, SEGMENT_PREFIX + segment);
+    }
+
+    private static void visit(MappedByteBuffer buffer, int records, Visitor visitor) {
+        for (int i = 0; i < records; i++) {
+            final int base = i * RECORD_SIZE;
+            if (buffer.getLong(base + 8) == 0 || !isValidRecord(buffer, base)) {
+                return;
+            }
+            visitor.onRecord(buffer.getLong(base + 8), buffer.getInt(base),
+                    buffer.getInt(base + 4), buffer.getInt(base + 24), buffer.getLong(base + 16));
+        }
+    }
+
+    private static boolean isValidRecord(MappedByteBuffer buffer, int base) {
+        return buffer.getInt(base + 28) == checksum(buffer.getInt(base), buffer.getInt(base + 4),
+                buffer.getLong(base + 8), buffer.getLong(base + 16), buffer.getInt(base + 24));
+    }
+
+    private static int checksum(int a, int b, long c, long d, int e) {
+        long h = (c + 1) * MIX;
+        h = (h ^ d) * MIX;
+        h = (h ^ (((long) a << 32) | (b & 0xFFFFFFFFL))) * MIX;
+        h = (h ^ e) * MIX;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid once the channel is closed.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+}
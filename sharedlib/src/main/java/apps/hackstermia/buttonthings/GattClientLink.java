@@ -0,0 +1,54 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.UUID;
+
+/**
+ * A client link to one peer's Remote LED Service.  On Android it is handed out by
+ * {@link BluetoothLeService#getClientLink}, the simulator provides an in-memory
+ * implementation.
+ */
+public interface GattClientLink {
+
+    /**
+     * Receives link events.  Android delivers them on the service's link thread, the
+     * simulator on its radio thread.
+     */
+    interface Listener {
+        void onConnectionStateChange(GattClientLink link, boolean connected);
+
+        /**
+         * A characteristic value was notified, indicated or read.
+         */
+        void onCharacteristicChanged(GattClientLink link, UUID characteristic, byte[] value);
+    }
+
+    String getAddress();
+
+    boolean isConnected();
+
+    /**
+     * Subscribe to notifications of a characteristic of the Remote LED Service.
+     *
+     * @return false if the characteristic is unknown or the request could not be queued.
+     */
+    boolean setCharacteristicNotification(UUID characteristic, boolean enabled);
+
+    /**
+     * Write a characteristic of the Remote LED Service.
+     *
+     * @param withResponse false to write without response, which needs no round trip.
+     * @return false if the characteristic is unknown or the request could not be queued.
+     */
+    boolean writeCharacteristic(UUID characteristic, byte[] value, boolean withResponse);
+
+    /**
+     * Read a characteristic, the value arrives through
+     * {@link Listener#onCharacteristicChanged}.
+     */
+    boolean readCharacteristic(UUID characteristic);
+
+    /**
+     * Stop delivering events to the listener.  The underlying connection is left as is.
+     */
+    void close();
+}
@@ -0,0 +1,90 @@
+package apps.hackstermia.buttonthings;
+
+/**
+ * Tells the completions of GATT requests a {@link GattOperationQueue} stopped waiting for
+ * apart from the completion of the request in flight.  The stack answers the requests of a
+ * link in order, so while an earlier request is unanswered the next matching completion is
+ * its late result.  A request still unanswered a whole timeout after it was given up on is
+ * taken to be lost.  Times are in milliseconds on any monotonic clock.
+ */
+class GattCompletionFilter {
+
+    // Requests handed to the stack for the operation in flight, and completions received.
+    private int mIssued;
+    private int mAnswered;
+    // Until then earlier requests of the operation in flight may still be answered.
+    private long mStaleUntil;
+
+    // Unanswered requests of the last operation given up on, and how long they may answer.
+    private int mLeftover;
+    private long mLeftoverUntil;
+
+    /**
+     * A request for the operation in flight was handed to the stack.
+     */
+    void onIssued() {
+        mIssued++;
+    }
+
+    /**
+     * The operation in flight timed out, its request may still be answered for as long again.
+     */
+    void onTimedOut(long now, long timeout) {
+        mStaleUntil = now + timeout;
+    }
+
+    /**
+     * The operation in flight is done, whether it completed or was given up on.
+     *
+     * @return true if it left unanswered requests behind, see {@link #isLeftover}.
+     */
+    boolean onFinished() {
+        final boolean unanswered = mAnswered < mIssued;
+        if (unanswered) {
+            mLeftover = mIssued - mAnswered;
+            mLeftoverUntil = mStaleUntil;
+        }
+        mIssued = 0;
+        mAnswered = 0;
+        return unanswered;
+    }
+
+    /**
+     * Call for a completion matching the last operation that left unanswered requests.
+     *
+     * @return true if it is the late result of one of them, it then completes nothing.
+     */
+    boolean isLeftover(long now) {
+        if (mLeftover > 0 && now < mLeftoverUntil) {
+            mLeftover--;
+            return true;
+        }
+        mLeftover = 0;
+        return false;
+    }
+
+    /**
+     * Call for a completion matching the operation in flight.
+     *
+     * @return true if it answers an earlier request than the latest one, e.g. the attempt a
+     *         retry replaced after a timeout.
+     */
+    boolean isStale(long now) {
+        mAnswered++;
+        if (mAnswered >= mIssued) {
+            return false;
+        }
+        if (now < mStaleUntil) {
+            return true;
+        }
+        // The earlier requests were lost, this answers the latest one.
+        mAnswered = mIssued;
+        return false;
+    }
+
+    void reset() {
+        mIssued = 0;
+        mAnswered = 0;
+        mLeftover = 0;
+    }
+}
@@ -0,0 +1,186 @@
+package apps.hackstermia.buttonthings;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * A single pooled GATT client session held by {@link BluetoothLeService}.
+ */
+class GattConnection {
+    private final String mAddress;
+    private final Handler mHandler;
+    private boolean mAutoConnect;
+    private BluetoothGatt mBluetoothGatt;
+    private GattOperationQueue mOperationQueue;
+    private int mConnectionState = BluetoothLeService.STATE_DISCONNECTED;
+    private long mLastActivity = SystemClock.uptimeMillis();
+
+    // Reconnect state, see BluetoothLeService#scheduleReconnect.
+    private boolean mReconnectEnabled = true;
+    private int mReconnectAttempts;
+    private long mConnectedAt;
+    private long mDisconnectedAt;
+    private Runnable mPendingReconnect;
+
+    // Negotiated link parameters, reset whenever the link goes down.
+    private int mLinkProfile = LinkParameters.PROFILE_DEFAULT;
+    private int mMtu = LinkParameters.DEFAULT_MTU;
+    private int mTxPhy = BluetoothDevice.PHY_LE_1M;
+    private int mRxPhy = BluetoothDevice.PHY_LE_1M;
+
+    GattConnection(String address, Handler handler, boolean autoConnect) {
+        mAddress = address;
+        mHandler = handler;
+        mAutoConnect = autoConnect;
+    }
+
+    /**
+     * Return true for background links, which the stack connects whenever the peer comes
+     * in range rather than timing out.
+     */
+    boolean isAutoConnect() {
+        return mAutoConnect;
+    }
+
+    void setAutoConnect(boolean autoConnect) {
+        mAutoConnect = autoConnect;
+    }
+
+    /**
+     * Return false once the link was disconnected on purpose and must stay down.
+     */
+    boolean isReconnectEnabled() {
+        return mReconnectEnabled;
+    }
+
+    void setReconnectEnabled(boolean enabled) {
+        mReconnectEnabled = enabled;
+    }
+
+    int getReconnectAttempts() {
+        return mReconnectAttempts;
+    }
+
+    void setReconnectAttempts(int attempts) {
+        mReconnectAttempts = attempts;
+    }
+
+    /**
+     * Return the uptime the link last came up, or 0 if it never did.
+     */
+    long getConnectedAt() {
+        return mConnectedAt;
+    }
+
+    void setConnectedAt(long connectedAt) {
+        mConnectedAt = connectedAt;
+    }
+
+    /**
+     * Return the uptime the current outage started, or 0 while the link is up.
+     */
+    long getDisconnectedAt() {
+        return mDisconnectedAt;
+    }
+
+    void setDisconnectedAt(long disconnectedAt) {
+        mDisconnectedAt = disconnectedAt;
+    }
+
+    int getLinkProfile() {
+        return mLinkProfile;
+    }
+
+    void setLinkProfile(int profile) {
+        mLinkProfile = profile;
+    }
+
+    void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    void setPhy(int txPhy, int rxPhy) {
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+    }
+
+    void resetLinkParameters() {
+        mLinkProfile = LinkParameters.PROFILE_DEFAULT;
+        mMtu = LinkParameters.DEFAULT_MTU;
+        mTxPhy = BluetoothDevice.PHY_LE_1M;
+        mRxPhy = BluetoothDevice.PHY_LE_1M;
+    }
+
+    LinkParameters getLinkParameters() {
+        return new LinkParameters(mLinkProfile, mMtu, mTxPhy, mRxPhy);
+    }
+
+    Runnable getPendingReconnect() {
+        return mPendingReconnect;
+    }
+
+    void setPendingReconnect(Runnable pendingReconnect) {
+        mPendingReconnect = pendingReconnect;
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    BluetoothGatt getGatt() {
+        return mBluetoothGatt;
+    }
+
+    void setGatt(BluetoothGatt gatt) {
+        mBluetoothGatt = gatt;
+        mOperationQueue = gatt == null ? null : new GattOperationQueue(gatt, mHandler);
+    }
+
+    GattOperationQueue getOperationQueue() {
+        return mOperationQueue;
+    }
+
+    int getConnectionState() {
+        return mConnectionState;
+    }
+
+    void setConnectionState(int connectionState) {
+        mConnectionState = connectionState;
+        touch();
+    }
+
+    /**
+     * Return true while the link is connected or a connection attempt is in flight,
+     * i.e. while it counts against the controller's connection limit.
+     */
+    boolean isActive() {
+        return mConnectionState != BluetoothLeService.STATE_DISCONNECTED;
+    }
+
+    /**
+     * Record GATT traffic on this link so it is not considered idle.
+     */
+    void touch() {
+        mLastActivity = SystemClock.uptimeMillis();
+    }
+
+    long getIdleTime(long now) {
+        return now - mLastActivity;
+    }
+
+    /**
+     * Release the underlying {@link BluetoothGatt} client.
+     */
+    void close() {
+        if (mBluetoothGatt == null) {
+            return;
+        }
+        mOperationQueue.cancelAll(GattOperation.STATUS_DISCONNECTED);
+        mBluetoothGatt.close();
+        mBluetoothGatt = null;
+        mOperationQueue = null;
+        mConnectionState = BluetoothLeService.STATE_DISCONNECTED;
+    }
+}
@@ -0,0 +1,221 @@
+package apps.hackstermia.buttonthings;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single GATT request queued on a link by {@link BluetoothLeService}, doubling as the
+ * asynchronous handle returned to the caller.
+ */
+public class GattOperation {
+
+    public static final int TYPE_READ_CHARACTERISTIC = 0;
+    public static final int TYPE_WRITE_CHARACTERISTIC = 1;
+    public static final int TYPE_READ_DESCRIPTOR = 2;
+    public static final int TYPE_WRITE_DESCRIPTOR = 3;
+    public static final int TYPE_REQUEST_MTU = 4;
+
+    /* Status reported when the operation did not complete within its timeout */
+    public static final int STATUS_TIMEOUT = 0x1000;
+    /* Status reported when the link went down before the operation completed */
+    public static final int STATUS_DISCONNECTED = 0x1001;
+    /* Status reported when the operation could not be queued or started */
+    public static final int STATUS_REJECTED = 0x1002;
+
+    /**
+     * Interface definition for a callback invoked once the operation has completed.
+     */
+    public interface OnCompleteListener {
+        void onComplete(GattOperation operation);
+    }
+
+    private final int mType;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final BluetoothGattDescriptor mDescriptor;
+    private final byte[] mWriteValue;
+    // The write type, or the requested MTU for TYPE_REQUEST_MTU.
+    private final int mWriteType;
+    private final long mTimeout;
+    private int mRetriesLeft;
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile int mStatus;
+    private volatile byte[] mValue;
+    private volatile long mStartedAt;
+    private volatile long mCompletedAt;
+    private OnCompleteListener mListener;
+
+    GattOperation(int type, BluetoothGattCharacteristic characteristic,
+                  BluetoothGattDescriptor descriptor, byte[] writeValue, int writeType,
+                  long timeout, int retries) {
+        mType = type;
+        mCharacteristic = characteristic;
+        mDescriptor = descriptor;
+        mWriteValue = writeValue;
+        mWriteType = writeType;
+        mTimeout = timeout;
+        mRetriesLeft = retries;
+    }
+
+    /**
+     * Return an operation that has already completed with the given status.
+     */
+    static GattOperation completed(int type, BluetoothGattCharacteristic characteristic, int status) {
+        GattOperation operation = new GattOperation(type, characteristic, null, null, 0, 0, 0);
+        operation.complete(status, null);
+        return operation;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    public BluetoothGattDescriptor getDescriptor() {
+        return mDescriptor;
+    }
+
+    /**
+     * Return true once the operation has completed, successfully or not.
+     */
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    public boolean isSuccessful() {
+        return isDone() && mStatus == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * Return the GATT status of the completed operation, or one of the STATUS_ constants
+     * defined in this class.
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * Return the value read by a completed read operation.
+     */
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    /**
+     * Return the wall clock time the operation was last handed to the stack, in milliseconds.
+     */
+    public long getStartedAt() {
+        return mStartedAt;
+    }
+
+    /**
+     * Return the wall clock time the operation completed, in milliseconds.
+     */
+    public long getCompletedAt() {
+        return mCompletedAt;
+    }
+
+    /**
+     * Register a listener invoked once the operation completes.  If it already has, the
+     * listener is invoked immediately on the calling thread.
+     */
+    public void setOnCompleteListener(OnCompleteListener listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                mListener = listener;
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    /**
+     * Block until the operation completes.
+     *
+     * @return true if the operation completed within the given time.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return mDone.await(timeout, unit);
+    }
+
+    long getTimeout() {
+        return mTimeout;
+    }
+
+    boolean consumeRetry() {
+        if (mRetriesLeft <= 0) {
+            return false;
+        }
+        mRetriesLeft--;
+        return true;
+    }
+
+    /**
+     * Return true if a GATT callback for the given attribute can complete this operation.
+     */
+    boolean matches(int type, UUID uuid) {
+        if (type != mType) {
+            return false;
+        }
+        if (mType == TYPE_REQUEST_MTU) {
+            return true;
+        }
+        if (mType == TYPE_READ_DESCRIPTOR || mType == TYPE_WRITE_DESCRIPTOR) {
+            return mDescriptor.getUuid().equals(uuid);
+        }
+        return mCharacteristic.getUuid().equals(uuid);
+    }
+
+    /**
+     * Hand the request to the stack.
+     *
+     * @return the result of the underlying {@link BluetoothGatt} call.
+     */
+    boolean execute(BluetoothGatt gatt) {
+        mStartedAt = System.currentTimeMillis();
+        switch (mType) {
+            case TYPE_READ_CHARACTERISTIC:
+                return gatt.readCharacteristic(mCharacteristic);
+            case TYPE_WRITE_CHARACTERISTIC:
+                mCharacteristic.setWriteType(mWriteType);
+                mCharacteristic.setValue(mWriteValue);
+                return gatt.writeCharacteristic(mCharacteristic);
+            case TYPE_READ_DESCRIPTOR:
+                return gatt.readDescriptor(mDescriptor);
+            case TYPE_WRITE_DESCRIPTOR:
+                mDescriptor.setValue(mWriteValue);
+                return gatt.writeDescriptor(mDescriptor);
+            case TYPE_REQUEST_MTU:
+                return gatt.requestMtu(mWriteType);
+            default:
+                return false;
+        }
+    }
+
+    void complete(int status, byte[] value) {
+        final long now = System.currentTimeMillis();
+        OnCompleteListener listener;
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            mStatus = status;
+            mValue = value;
+            mCompletedAt = now;
+            mDone.countDown();
+            listener = mListener;
+            mListener = null;
+        }
+        if (listener != null) {
+            listener.onComplete(this);
+        }
+    }
+}
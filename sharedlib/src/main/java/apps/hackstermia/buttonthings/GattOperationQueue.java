@@ -0,0 +1,199 @@
+package apps.hackstermia.buttonthings;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+
+/**
+ * Runs the GATT operations of a single link one at a time.  The stack silently drops a
+ * request issued while another one is in flight, so the next operation is only started
+ * from the {@link android.bluetooth.BluetoothGattCallback} completion of the previous one.
+ */
+class GattOperationQueue {
+    private static final String TAG = GattOperationQueue.class.getSimpleName();
+
+    // Delay before retrying an operation the stack refused to start.
+    private static final long RETRY_DELAY = 50;
+
+    private final BluetoothGatt mBluetoothGatt;
+    private final Handler mHandler;
+
+    // Guarded by "this".
+    private final Deque<GattOperation> mPending = new ArrayDeque<>();
+    private GattOperation mCurrent;
+    // The last operation given up on with requests unanswered, the stack may still complete
+    // it late.
+    private GattOperation mTimedOut;
+    // Counts the requests of mCurrent and mTimedOut against their completions.
+    private final GattCompletionFilter mCompletions = new GattCompletionFilter();
+
+    GattOperationQueue(BluetoothGatt gatt, Handler handler) {
+        mBluetoothGatt = gatt;
+        mHandler = handler;
+    }
+
+    /**
+     * Queue an operation, starting it right away if the link is idle.
+     */
+    GattOperation enqueue(GattOperation operation) {
+        synchronized (this) {
+            mPending.add(operation);
+            if (mCurrent != null) {
+                return operation;
+            }
+        }
+        executeNext();
+        return operation;
+    }
+
+    /**
+     * Return the number of operations waiting behind the one in flight.
+     */
+    synchronized int size() {
+        return mPending.size();
+    }
+
+    /**
+     * Complete the in-flight operation from a GATT callback.
+     */
+    void onOperationComplete(int type, UUID uuid, int status, byte[] value) {
+        GattOperation operation;
+        synchronized (this) {
+            final long now = SystemClock.uptimeMillis();
+            // The stack answers in order, the requests given up on come first.
+            if (mTimedOut != null && mTimedOut.matches(type, uuid)
+                    && mCompletions.isLeftover(now)) {
+                Log.w(TAG, "Ignoring late completion of timed out " + uuid);
+                return;
+            }
+            operation = mCurrent;
+            if (operation == null || !operation.matches(type, uuid)) {
+                Log.w(TAG, "Unexpected completion for " + uuid);
+                return;
+            }
+            if (mCompletions.isStale(now)) {
+                Log.w(TAG, "Ignoring late completion of an earlier attempt at " + uuid);
+                return;
+            }
+            mHandler.removeCallbacks(mTimeout);
+            if (status != BluetoothGatt.GATT_SUCCESS && operation.consumeRetry()) {
+                Log.d(TAG, "Retrying " + uuid + " after status " + status);
+                mHandler.postDelayed(mRetry, RETRY_DELAY);
+                return;
+            }
+            finishCurrent();
+        }
+        operation.complete(status, value);
+        executeNext();
+    }
+
+    /**
+     * Fail every queued operation, e.g. once the link is gone.
+     */
+    void cancelAll(int status) {
+        Deque<GattOperation> cancelled;
+        synchronized (this) {
+            mHandler.removeCallbacks(mTimeout);
+            mHandler.removeCallbacks(mRetry);
+            cancelled = new ArrayDeque<>(mPending);
+            if (mCurrent != null) {
+                cancelled.addFirst(mCurrent);
+            }
+            mPending.clear();
+            mCurrent = null;
+            mTimedOut = null;
+            mCompletions.reset();
+        }
+        for (GattOperation operation : cancelled) {
+            operation.complete(status, null);
+        }
+    }
+
+    // Called with the lock held once the operation in flight is done.
+    private void finishCurrent() {
+        if (mCompletions.onFinished()) {
+            mTimedOut = mCurrent;
+        }
+        mCurrent = null;
+    }
+
+    private void executeNext() {
+        while (true) {
+            GattOperation operation;
+            synchronized (this) {
+                if (mCurrent != null || mPending.isEmpty()) {
+                    return;
+                }
+                operation = mPending.poll();
+                mCurrent = operation;
+            }
+            if (start(operation)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hand the operation to the stack and arm its timeout.
+     *
+     * @return false if the operation failed for good and the next one should run.
+     */
+    private boolean start(GattOperation operation) {
+        synchronized (this) {
+            if (operation.execute(mBluetoothGatt)) {
+                mCompletions.onIssued();
+                mHandler.postDelayed(mTimeout, operation.getTimeout());
+                return true;
+            }
+            if (operation.consumeRetry()) {
+                mHandler.postDelayed(mRetry, RETRY_DELAY);
+                return true;
+            }
+            finishCurrent();
+        }
+        Log.w(TAG, "Unable to start GATT operation " + operation.getType());
+        operation.complete(GattOperation.STATUS_REJECTED, null);
+        return false;
+    }
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            GattOperation operation;
+            synchronized (GattOperationQueue.this) {
+                operation = mCurrent;
+            }
+            if (operation != null && !start(operation)) {
+                executeNext();
+            }
+        }
+    };
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            GattOperation operation;
+            synchronized (GattOperationQueue.this) {
+                operation = mCurrent;
+                if (operation == null) {
+                    return;
+                }
+                Log.w(TAG, "GATT operation " + operation.getType() + " timed out");
+                // Give the stack as long again to report it before trusting completions.
+                mCompletions.onTimedOut(SystemClock.uptimeMillis(), operation.getTimeout());
+                if (operation.consumeRetry()) {
+                    mHandler.post(mRetry);
+                    return;
+                }
+                finishCurrent();
+            }
+            operation.complete(GattOperation.STATUS_TIMEOUT, null);
+            executeNext();
+        }
+    };
+}
@@ -0,0 +1,34 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.UUID;
+
+/**
+ * The outbound half of a GATT server as {@link RemoteLedServer} uses it.  On Android this is
+ * {@link AndroidGattServerLink} over {@code BluetoothGattServer}, the simulator provides an
+ * in-memory implementation.  Requests arrive through the matching {@link RemoteLedServer}
+ * methods.
+ *
+ * @param <D> the device type, {@code BluetoothDevice} on Android.
+ */
+public interface GattServerLink<D> {
+
+    // ATT status codes, the same values as the BluetoothGatt GATT_ constants.
+    int STATUS_SUCCESS = 0;
+    int STATUS_REQUEST_NOT_SUPPORTED = 0x06;
+    int STATUS_INVALID_OFFSET = 0x07;
+    int STATUS_FAILURE = 0x101;
+
+    /**
+     * Notify or indicate a new characteristic value to a connected device.
+     *
+     * @return true if the notification was queued, in which case
+     *         {@link RemoteLedServer#onNotificationSent} follows.
+     */
+    boolean notifyCharacteristicChanged(D device, UUID characteristic, byte[] value, int length,
+                                        boolean confirm);
+
+    /**
+     * Answer a read or write request.
+     */
+    void sendResponse(D device, int requestId, int status, int offset, byte[] value);
+}
@@ -0,0 +1,19 @@
+package apps.hackstermia.buttonthings;
+
+import android.os.Handler;
+
+/**
+ * {@link TaskScheduler} running tasks on the looper of a {@link Handler}.
+ */
+public class HandlerTaskScheduler implements TaskScheduler {
+    private final Handler mHandler;
+
+    public HandlerTaskScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        mHandler.postDelayed(task, delayMillis);
+    }
+}
@@ -0,0 +1,125 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two nanosecond buckets.  Bucket i counts
+ * samples in [2^(i-1), 2^i) ns, bucket 0 counts zero and negative samples.  Recording never
+ * allocates, percentiles are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 64;
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void record(long nanos) {
+        mBuckets.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+            // retry
+        }
+        long min;
+        while (nanos < (min = mMin.get()) && !mMin.compareAndSet(min, nanos)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    public long getMin() {
+        return mCount.get() == 0 ? 0 : mMin.get();
+    }
+
+    public long getMax() {
+        return mCount.get() == 0 ? 0 : mMax.get();
+    }
+
+    /**
+     * Return the upper bound of the bucket holding the given percentile, in nanoseconds.
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(Long.MIN_VALUE);
+        mMin.set(Long.MAX_VALUE);
+    }
+
+    /**
+     * Append a one line summary in microseconds.
+     */
+    public StringBuilder appendSummary(StringBuilder out) {
+        out.append(mName)
+                .append(": count=").append(getCount())
+                .append(" min=").append(toMicros(getMin()))
+                .append(" mean=").append(toMicros(getMean()))
+                .append(" p50=").append(toMicros(getPercentile(50)))
+                .append(" p99=").append(toMicros(getPercentile(99)))
+                .append(" max=").append(toMicros(getMax()))
+                .append(" us");
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return appendSummary(new StringBuilder()).toString();
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos <= 0) {
+            return 0;
+        }
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
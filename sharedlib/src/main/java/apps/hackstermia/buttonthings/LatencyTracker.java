@@ -0,0 +1,67 @@
+package apps.hackstermia.buttonthings;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-device latency histograms for each stage between a button press on one device and
+ * the LED changing on the other.
+ */
+public class LatencyTracker {
+
+    /* Edge captured to input handler invoked */
+    public static final int STAGE_EDGE = 0;
+    /* State change to notification handed to the stack */
+    public static final int STAGE_NOTIFY = 1;
+    /* Sender's event timestamp to notification received here, corrected for clock offset */
+    public static final int STAGE_RECEIVE = 2;
+    /* Notification received to GPIO written */
+    public static final int STAGE_GPIO_WRITE = 3;
+
+    private static final String[] STAGE_NAMES = {"edge", "notify", "receive", "gpio write"};
+
+    private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_NAMES.length];
+
+    public LatencyTracker() {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new LatencyHistogram(STAGE_NAMES[i]);
+        }
+    }
+
+    public void record(int stage, long nanos) {
+        mStages[stage].record(nanos);
+    }
+
+    /**
+     * Record the receive stage of a frame stamped by its sender.
+     *
+     * @param senderTime the frame timestamp, on the sender's wall clock.
+     * @param receivedAt local wall clock time the frame arrived.
+     * @param clock offset of the sender's clock, the sample is dropped until it has one.
+     * @return true if the sample was recorded.
+     */
+    public boolean recordReceive(long senderTime, long receivedAt, ClockOffsetEstimator clock) {
+        if (senderTime <= 0 || clock == null || !clock.hasEstimate()) {
+            return false;
+        }
+        record(STAGE_RECEIVE,
+                TimeUnit.MILLISECONDS.toNanos(receivedAt - clock.toLocalTime(senderTime)));
+        return true;
+    }
+
+    public LatencyHistogram getStage(int stage) {
+        return mStages[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram stage : mStages) {
+            stage.reset();
+        }
+    }
+
+    public void dump(PrintWriter writer, String prefix) {
+        for (LatencyHistogram stage : mStages) {
+            writer.println(prefix + stage);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package apps.hackstermia.buttonthings;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Immutable snapshot of the parameters negotiated on a GATT client link, see
+ * {@link BluetoothLeService#getLinkParameters}.
+ */
+public final class LinkParameters {
+
+    /* Stack defaults, before any profile was applied */
+    public static final int PROFILE_DEFAULT = 0;
+    /* Short connection interval and 2M PHY, for links with interactive traffic */
+    public static final int PROFILE_LOW_LATENCY = 1;
+    /* Long connection interval, for idle links */
+    public static final int PROFILE_LOW_POWER = 2;
+
+    /* ATT MTU before any exchange */
+    public static final int DEFAULT_MTU = 23;
+
+    private final int mProfile;
+    private final int mMtu;
+    private final int mTxPhy;
+    private final int mRxPhy;
+
+    LinkParameters(int profile, int mtu, int txPhy, int rxPhy) {
+        mProfile = profile;
+        mMtu = mtu;
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+    }
+
+    /**
+     * Return the requested profile, one of the PROFILE_ constants.
+     */
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Return the transmit PHY, one of the {@link BluetoothDevice} PHY_LE_ constants.
+     */
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    @Override
+    public String toString() {
+        return "profile=" + profileName(mProfile) + " mtu=" + mMtu
+                + " phy=" + mTxPhy + "/" + mRxPhy;
+    }
+
+    private static String profileName(int profile) {
+        switch (profile) {
+            case PROFILE_LOW_LATENCY:
+                return "low-latency";
+            case PROFILE_LOW_POWER:
+                return "low-power";
+            default:
+                return "default";
+        }
+    }
+}
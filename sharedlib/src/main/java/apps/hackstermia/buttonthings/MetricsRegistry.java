@@ -0,0 +1,183 @@
+package apps.hackstermia.buttonthings;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named runtime metrics of the process: counters, gauges and latency histograms.  Metrics
+ * are looked up once and kept in a field, recording never allocates or takes a lock.
+ * Counters are striped so threads bumping the same counter do not contend, gauges are
+ * only evaluated when the registry is dumped.
+ */
+public class MetricsRegistry {
+
+    /**
+     * A monotonic count.
+     */
+    public static final class Counter {
+        private final LongAdder mValue = new LongAdder();
+
+        public void increment() {
+            mValue.increment();
+        }
+
+        public void add(long delta) {
+            mValue.add(delta);
+        }
+
+        public long get() {
+            return mValue.sum();
+        }
+    }
+
+    /**
+     * Counters keyed by an integer, e.g. one per GATT status code.  Keys are added on
+     * first use.
+     */
+    public static final class KeyedCounter {
+        private final ConcurrentMap<Integer, Counter> mCounters = new ConcurrentHashMap<>();
+
+        public void increment(int key) {
+            Counter counter = mCounters.get(key);
+            if (counter == null) {
+                Counter created = new Counter();
+                counter = mCounters.putIfAbsent(key, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.increment();
+        }
+
+        public long get(int key) {
+            Counter counter = mCounters.get(key);
+            return counter == null ? 0 : counter.get();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder("{");
+            for (Map.Entry<Integer, Counter> entry : new TreeMap<>(mCounters).entrySet()) {
+                if (out.length() > 1) {
+                    out.append(", ");
+                }
+                out.append(entry.getKey()).append('=').append(entry.getValue().get());
+            }
+            return out.append('}').toString();
+        }
+    }
+
+    /**
+     * A value read when the registry is dumped, e.g. a queue depth.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    private static final MetricsRegistry sDefault = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, KeyedCounter> mKeyedCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> mGauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> mHistograms =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Return the registry shared by everything in the process.
+     */
+    public static MetricsRegistry getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Return the counter of that name, creating it on first use.
+     */
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Return the keyed counter of that name, creating it on first use.
+     */
+    public KeyedCounter keyedCounter(String name) {
+        KeyedCounter counter = mKeyedCounters.get(name);
+        if (counter == null) {
+            KeyedCounter created = new KeyedCounter();
+            counter = mKeyedCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Return the histogram of that name, creating it on first use.
+     */
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram(name);
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of that name.  Gauges hold on to whatever they
+     * read, owners with a shorter life than the process remove them with
+     * {@link #removeGauge}.
+     */
+    public void gauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    /**
+     * Remove the gauge of that name if it is the given one, so an owner never removes the
+     * gauge of its successor.
+     */
+    public void removeGauge(String name, Gauge gauge) {
+        mGauges.remove(name, gauge);
+    }
+
+    /**
+     * Return the current value of a gauge, 0 if there is none of that name.
+     */
+    public long getGauge(String name) {
+        Gauge gauge = mGauges.get(name);
+        return gauge == null ? 0 : gauge.getValue();
+    }
+
+    /**
+     * Print every metric, one per line and sorted by name.
+     */
+    public void dump(PrintWriter writer, String prefix) {
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(mCounters).entrySet()) {
+            writer.println(prefix + entry.getKey() + "=" + entry.getValue().get());
+        }
+        for (Map.Entry<String, KeyedCounter> entry : new TreeMap<>(mKeyedCounters).entrySet()) {
+            writer.println(prefix + entry.getKey() + "=" + entry.getValue());
+        }
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(mGauges).entrySet()) {
+            writer.println(prefix + entry.getKey() + "=" + entry.getValue().getValue());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(mHistograms).entrySet()) {
+            writer.println(prefix + entry.getValue());
+        }
+    }
+}
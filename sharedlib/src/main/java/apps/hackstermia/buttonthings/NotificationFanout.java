@@ -0,0 +1,286 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends characteristic notifications to every device subscribed in a
+ * {@link SubscriberRegistry}, with per-subscriber flow control.
+ * A subscriber only gets its next notification once the stack has acknowledged the previous
+ * one through {@code BluetoothGattServerCallback#onNotificationSent}, and optionally no
+ * sooner than a minimum interval after it.  States published in the meantime overwrite each
+ * other, so a slow subscriber receives the latest state rather than a growing backlog.
+ * With a scheduler set, a state the stack rejected or whose acknowledgement got lost is
+ * sent again without waiting for the next publish.
+ *
+ * @param <D> the device type, {@code BluetoothDevice} on Android.
+ */
+public class NotificationFanout<D> {
+
+    // An unacknowledged notification older than this is assumed lost.
+    private static final long ACK_TIMEOUT_MILLIS = 1000;
+    private static final long ACK_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MILLIS);
+    // Delay before a notification the stack rejected is offered again.
+    private static final long REJECT_RETRY_MILLIS = 20;
+
+    /**
+     * Hands a single notification to the stack.
+     */
+    public interface Transport<D> {
+        /**
+         * @param confirm true to send an indication rather than a notification.
+         * @return true if the stack accepted the notification, in which case an
+         *         acknowledgement is expected through {@link #onNotificationSent}.
+         */
+        boolean send(D device, byte[] value, int length, boolean confirm);
+    }
+
+    private final class Subscriber implements Runnable {
+        final D mDevice;
+        final byte[] mBuffer;
+        int mLength;
+        boolean mHasPending;
+        boolean mConfirm;
+        boolean mInFlight;
+        boolean mHasSent;
+        boolean mRetryScheduled;
+        long mSentAt;
+        // Notifications handed to the stack, and the one the armed ack timeout waits for.
+        int mSendId;
+        int mAckTimeoutId;
+        boolean mAckTimeoutArmed;
+
+        Subscriber(D device, int capacity) {
+            mDevice = device;
+            mBuffer = new byte[capacity];
+        }
+
+        // Deferred send once the minimum interval has elapsed or after a rejection.
+        @Override
+        public void run() {
+            synchronized (this) {
+                mRetryScheduled = false;
+                if (mHasPending && !mInFlight && isCurrent(this)) {
+                    sendPending(mDevice, this, System.nanoTime());
+                }
+            }
+        }
+
+        // Gives up on an acknowledgement that never came, so the pending state goes out.
+        final Runnable mAckTimeout = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Subscriber.this) {
+                    mAckTimeoutArmed = false;
+                    if (!mInFlight || !isCurrent(Subscriber.this)) {
+                        return;
+                    }
+                    if (mAckTimeoutId != mSendId) {
+                        // Acknowledged in time, wait for the notification sent since.
+                        armAckTimeout(Subscriber.this);
+                        return;
+                    }
+                    mInFlight = false;
+                    mAckTimeoutCount.incrementAndGet();
+                    if (mHasPending) {
+                        sendPending(mDevice, Subscriber.this, System.nanoTime());
+                    }
+                }
+            }
+        };
+    }
+
+    private final SubscriberRegistry<D> mRegistry;
+    private final UUID mCharacteristic;
+    private final Transport<D> mTransport;
+    private final int mCapacity;
+    private volatile long mMinIntervalNanos;
+    private volatile TaskScheduler mScheduler;
+    // Outbound state of every device that has been sent to, subscribed or not.
+    private final ConcurrentHashMap<D, Subscriber> mSubscribers = new ConcurrentHashMap<>();
+
+    private final AtomicLong mSentCount = new AtomicLong();
+    private final AtomicLong mSkippedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mAckTimeoutCount = new AtomicLong();
+
+    /**
+     * @param characteristic the characteristic whose subscribers are notified.
+     * @param capacity the largest value that will be published, in bytes.
+     */
+    public NotificationFanout(SubscriberRegistry<D> registry, UUID characteristic,
+                              Transport<D> transport, int capacity) {
+        mRegistry = registry;
+        mCharacteristic = characteristic;
+        mTransport = transport;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Limit every subscriber to one notification per interval, 0 for no limit.  Pending
+     * states are sent from the scheduler once the interval has elapsed, once a rejected
+     * notification is due again, or once an acknowledgement timed out.
+     */
+    public void setRateLimit(long minIntervalMillis, TaskScheduler scheduler) {
+        mScheduler = scheduler;
+        mMinIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+    }
+
+    /**
+     * Drop the outbound state of a device, e.g. once it disconnected.
+     */
+    public void removeDevice(D device) {
+        mSubscribers.remove(device);
+    }
+
+    public int getSubscriberCount() {
+        return mRegistry.getSubscribers(mCharacteristic).size();
+    }
+
+    /**
+     * Publish the value of a snapshot to every subscriber, see {@link #publish(byte[], int)}.
+     */
+    public void publish(AttributeStore.Snapshot snapshot) {
+        publish(snapshot.getValue(), snapshot.getLength());
+    }
+
+    /**
+     * Publish a new value to every subscriber.  Subscribers with a notification in flight
+     * keep only this latest value and receive it once the previous one is acknowledged.
+     */
+    public void publish(byte[] value, int length) {
+        final long now = System.nanoTime();
+        final SubscriberRegistry.Snapshot<D> subscribers = mRegistry.getSubscribers(mCharacteristic);
+        for (int i = 0; i < subscribers.size(); i++) {
+            final D device = subscribers.getDevice(i);
+            final Subscriber subscriber = getSubscriber(device);
+            synchronized (subscriber) {
+                if (subscriber.mHasPending) {
+                    mSkippedCount.incrementAndGet();
+                }
+                System.arraycopy(value, 0, subscriber.mBuffer, 0, length);
+                subscriber.mLength = length;
+                subscriber.mHasPending = true;
+                subscriber.mConfirm = subscribers.isIndication(i);
+                if (!subscriber.mInFlight || now - subscriber.mSentAt > ACK_TIMEOUT_NANOS) {
+                    sendPending(device, subscriber, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forward {@code BluetoothGattServerCallback#onNotificationSent} here so the next
+     * pending value, if any, is sent to that subscriber.
+     */
+    public void onNotificationSent(D device, int status) {
+        final Subscriber subscriber = mSubscribers.get(device);
+        if (subscriber == null) {
+            return;
+        }
+        synchronized (subscriber) {
+            subscriber.mInFlight = false;
+            if (subscriber.mHasPending) {
+                sendPending(device, subscriber, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Return the number of notifications handed to the stack.
+     */
+    public long getSentCount() {
+        return mSentCount.get();
+    }
+
+    /**
+     * Return the number of intermediate states a slow subscriber never received because a
+     * newer one replaced it.
+     */
+    public long getSkippedCount() {
+        return mSkippedCount.get();
+    }
+
+    /**
+     * Return the number of notifications the stack refused to queue.
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * Return the number of notifications assumed lost because they were never acknowledged.
+     */
+    public long getAckTimeoutCount() {
+        return mAckTimeoutCount.get();
+    }
+
+    // False once the device was removed, its scheduled tasks then do nothing.
+    private boolean isCurrent(Subscriber subscriber) {
+        return mSubscribers.get(subscriber.mDevice) == subscriber;
+    }
+
+    private Subscriber getSubscriber(D device) {
+        Subscriber subscriber = mSubscribers.get(device);
+        if (subscriber == null) {
+            Subscriber created = new Subscriber(device, mCapacity);
+            subscriber = mSubscribers.putIfAbsent(device, created);
+            if (subscriber == null) {
+                subscriber = created;
+            }
+        }
+        return subscriber;
+    }
+
+    // Called with the subscriber lock held.
+    private void sendPending(D device, Subscriber subscriber, long now) {
+        final long minInterval = mMinIntervalNanos;
+        final long wait = subscriber.mSentAt + minInterval - now;
+        if (minInterval > 0 && subscriber.mHasSent && wait > 0) {
+            subscriber.mInFlight = false;
+            scheduleRetry(subscriber, TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+            return;
+        }
+        if (mTransport.send(device, subscriber.mBuffer, subscriber.mLength,
+                subscriber.mConfirm)) {
+            subscriber.mHasPending = false;
+            subscriber.mInFlight = true;
+            subscriber.mHasSent = true;
+            subscriber.mSentAt = now;
+            subscriber.mSendId++;
+            mSentCount.incrementAndGet();
+            if (!subscriber.mAckTimeoutArmed) {
+                armAckTimeout(subscriber);
+            }
+        } else {
+            // Leave the value pending and offer it again, unless a publish or an
+            // acknowledgement gets to it first.
+            subscriber.mInFlight = false;
+            mRejectedCount.incrementAndGet();
+            scheduleRetry(subscriber, REJECT_RETRY_MILLIS);
+        }
+    }
+
+    // Called with the subscriber lock held.
+    private void scheduleRetry(Subscriber subscriber, long delayMillis) {
+        final TaskScheduler scheduler = mScheduler;
+        if (scheduler != null && !subscriber.mRetryScheduled) {
+            subscriber.mRetryScheduled = true;
+            scheduler.schedule(subscriber, delayMillis);
+        }
+    }
+
+    // Called with the subscriber lock held, for the latest notification sent.  At most one
+    // timeout is armed per subscriber, it moves on to later notifications as they go out.
+    private void armAckTimeout(Subscriber subscriber) {
+        final TaskScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            subscriber.mAckTimeoutArmed = true;
+            subscriber.mAckTimeoutId = subscriber.mSendId;
+            scheduler.schedule(subscriber.mAckTimeout, ACK_TIMEOUT_MILLIS);
+        }
+    }
+}
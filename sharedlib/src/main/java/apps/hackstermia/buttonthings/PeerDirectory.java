@@ -0,0 +1,196 @@
+package apps.hackstermia.buttonthings;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Persistent directory of recently connected peers, so the apps can connect straight to a
+ * known address at startup instead of scanning for it.  Each peer keeps its last-seen time,
+ * whether it is bonded, and the GATT layout discovered on its last connection.  Only the
+ * most recently seen peers are kept.
+ */
+public class PeerDirectory {
+
+    public static final String PREFS_NAME = "peer_directory";
+    private static final String KEY_PREFIX = "peer:";
+    private static final int MAX_PEERS = 8;
+
+    /**
+     * An immutable directory entry.
+     */
+    public static final class Peer {
+        private final String mAddress;
+        private final long mLastSeen;
+        private final boolean mBonded;
+        // "service/characteristic" pairs, empty until services were discovered once.
+        private final Set<String> mLayout;
+
+        Peer(String address, long lastSeen, boolean bonded, Set<String> layout) {
+            mAddress = address;
+            mLastSeen = lastSeen;
+            mBonded = bonded;
+            mLayout = Collections.unmodifiableSet(layout);
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * Return the wall clock time the peer was last connected, in milliseconds.
+         */
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        public boolean isBonded() {
+            return mBonded;
+        }
+
+        public boolean isLayoutKnown() {
+            return !mLayout.isEmpty();
+        }
+
+        public boolean hasCharacteristic(UUID service, UUID characteristic) {
+            return mLayout.contains(layoutEntry(service, characteristic));
+        }
+    }
+
+    private static final Comparator<Peer> MOST_RECENT_FIRST = new Comparator<Peer>() {
+        @Override
+        public int compare(Peer a, Peer b) {
+            return Long.compare(b.mLastSeen, a.mLastSeen);
+        }
+    };
+
+    private final SharedPreferences mPreferences;
+    // Guarded by "this".
+    private final Map<String, Peer> mPeers = new HashMap<>();
+
+    public PeerDirectory(SharedPreferences preferences) {
+        mPreferences = preferences;
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(KEY_PREFIX) || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            String address = entry.getKey().substring(KEY_PREFIX.length());
+            Peer peer = decode(address, (String) entry.getValue());
+            if (peer != null) {
+                mPeers.put(address, peer);
+            }
+        }
+    }
+
+    /**
+     * Return the known peers, most recently seen first.
+     */
+    public synchronized List<Peer> getPeers() {
+        List<Peer> peers = new ArrayList<>(mPeers.values());
+        Collections.sort(peers, MOST_RECENT_FIRST);
+        return peers;
+    }
+
+    public synchronized Peer getPeer(String address) {
+        return mPeers.get(address);
+    }
+
+    /**
+     * Record that the peer just connected.
+     */
+    public synchronized void recordSeen(String address, boolean bonded) {
+        Peer previous = mPeers.get(address);
+        Set<String> layout = previous == null
+                ? Collections.<String>emptySet() : previous.mLayout;
+        put(new Peer(address, System.currentTimeMillis(), bonded, layout));
+    }
+
+    /**
+     * Record the peer's GATT layout.
+     *
+     * @param layout the characteristic UUIDs of each discovered service UUID.
+     */
+    public synchronized void recordLayout(String address, Map<UUID, ? extends Collection<UUID>> layout) {
+        Set<String> entries = new HashSet<>();
+        for (Map.Entry<UUID, ? extends Collection<UUID>> service : layout.entrySet()) {
+            for (UUID characteristic : service.getValue()) {
+                entries.add(layoutEntry(service.getKey(), characteristic));
+            }
+        }
+        Peer previous = mPeers.get(address);
+        put(previous == null
+                ? new Peer(address, System.currentTimeMillis(), false, entries)
+                : new Peer(address, previous.mLastSeen, previous.mBonded, entries));
+    }
+
+    public synchronized void remove(String address) {
+        if (mPeers.remove(address) != null) {
+            mPreferences.edit().remove(KEY_PREFIX + address).apply();
+        }
+    }
+
+    private void put(Peer peer) {
+        mPeers.put(peer.mAddress, peer);
+        // apply() writes to disk asynchronously, callers may be on a Binder thread.
+        SharedPreferences.Editor editor = mPreferences.edit()
+                .putString(KEY_PREFIX + peer.mAddress, encode(peer));
+        while (mPeers.size() > MAX_PEERS) {
+            Peer oldest = Collections.min(mPeers.values(), MOST_RECENT_FIRST);
+            mPeers.remove(oldest.mAddress);
+            editor.remove(KEY_PREFIX + oldest.mAddress);
+        }
+        editor.apply();
+    }
+
+    private static String layoutEntry(UUID service, UUID characteristic) {
+        return service + "/" + characteristic;
+    }
+
+    /**
+     * Encode a peer as "lastSeen;bonded;service/characteristic,...".
+     */
+    static String encode(Peer peer) {
+        StringBuilder out = new StringBuilder()
+                .append(peer.mLastSeen).append(';')
+                .append(peer.mBonded ? 1 : 0).append(';');
+        boolean first = true;
+        for (String entry : peer.mLayout) {
+            if (!first) {
+                out.append(',');
+            }
+            out.append(entry);
+            first = false;
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the decoded peer, or null if the value is malformed.
+     */
+    static Peer decode(String address, String value) {
+        String[] fields = value.split(";", -1);
+        if (fields.length != 3) {
+            return null;
+        }
+        try {
+            long lastSeen = Long.parseLong(fields[0]);
+            boolean bonded = "1".equals(fields[1]);
+            Set<String> layout = new HashSet<>();
+            if (!fields[2].isEmpty()) {
+                Collections.addAll(layout, fields[2].split(","));
+            }
+            return new Peer(address, lastSeen, bonded, layout);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
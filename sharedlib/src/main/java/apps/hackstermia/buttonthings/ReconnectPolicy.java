@@ -0,0 +1,57 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.Random;
+
+/**
+ * Capped exponential backoff with jitter for reconnect attempts.  The delay before attempt n
+ * is drawn uniformly from the upper half of min(base * 2^n, max), so peers that dropped at
+ * the same moment spread out instead of retrying in lockstep, while no attempt comes sooner
+ * than half its nominal delay.  Each outage gets a budget of attempts, after which the peer
+ * is given up on.
+ */
+public class ReconnectPolicy {
+
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final int mMaxAttempts;
+    private final Random mRandom;
+
+    /**
+     * @param baseDelayMillis nominal delay before the first attempt.
+     * @param maxDelayMillis cap on the nominal delay.
+     * @param maxAttempts attempts per outage before giving up.
+     */
+    public ReconnectPolicy(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+        this(baseDelayMillis, maxDelayMillis, maxAttempts, new Random());
+    }
+
+    ReconnectPolicy(long baseDelayMillis, long maxDelayMillis, int maxAttempts, Random random) {
+        mBaseDelayMillis = Math.max(1, baseDelayMillis);
+        mMaxDelayMillis = Math.max(mBaseDelayMillis, maxDelayMillis);
+        mMaxAttempts = maxAttempts;
+        mRandom = random;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @param attempt number of attempts already made in this outage.
+     * @return delay before the next attempt in milliseconds, or -1 if the budget is spent.
+     */
+    public long getDelay(int attempt) {
+        if (attempt >= mMaxAttempts) {
+            return -1;
+        }
+        long nominal = mMaxDelayMillis;
+        // Past 2^62 the shift overflows, and the cap has long been reached anyway.
+        if (attempt < 62 && mBaseDelayMillis <= mMaxDelayMillis >> attempt) {
+            nominal = mBaseDelayMillis << attempt;
+        }
+        final long half = nominal / 2;
+        synchronized (mRandom) {
+            return half + (long) (mRandom.nextDouble() * (nominal - half + 1));
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package apps.hackstermia.buttonthings;
+
+/**
+ * Encodes and decodes the value of the Remote LED Data characteristic.
+ *
+ * A version 1 frame is 12 bytes, big endian:
+ * <pre>
+ *   [0]      version
+ *   [1]      flags, bit 0 set while the LED is on
+ *   [2..3]   sequence number, wraps at 65536
+ *   [4..11]  sender timestamp, milliseconds since the epoch
+ * </pre>
+ * A version 2 frame carries up to 32 channels in 20 bytes, so a whole scene change fits
+ * one notification at the default MTU:
+ * <pre>
+ *   [0]      version
+ *   [1]      channel count
+ *   [2..3]   sequence number, wraps at 65536
+ *   [4..11]  sender timestamp, milliseconds since the epoch
+ *   [12..15] channel states, bit n set while channel n is on
+ *   [16..19] channels changed since the previous frame
+ * </pre>
+ * Channel 0 is the LED of a version 1 frame.  Frames from older builds carried the text
+ * "true" or "false", these are still decoded and reported as {@link #VERSION_LEGACY}.
+ *
+ * The state broadcast in the service data of the advertisement shares the first four
+ * bytes of the frame and replaces the timestamp with a short device ID:
+ * <pre>
+ *   [0]      version
+ *   [1]      flags, bit 0 set while the LED is on
+ *   [2..3]   sequence number, wraps at 65536
+ *   [4..5]   device ID
+ * </pre>
+ * None of the methods allocate.
+ */
+public final class RemoteLedCodec {
+
+    public static final int VERSION = 1;
+    public static final int VERSION_CHANNELS = 2;
+    public static final int VERSION_LEGACY = 0;
+    public static final int VERSION_INVALID = -1;
+
+    public static final int FRAME_LENGTH = 12;
+    public static final int CHANNEL_FRAME_LENGTH = 20;
+    public static final int MAX_FRAME_LENGTH = CHANNEL_FRAME_LENGTH;
+    public static final int MAX_CHANNELS = 32;
+    public static final int BROADCAST_LENGTH = 6;
+
+    public static final int FLAG_LED_ON = 0x01;
+
+    private static final int OFFSET_VERSION = 0;
+    private static final int OFFSET_FLAGS = 1;
+    private static final int OFFSET_SEQUENCE = 2;
+    private static final int OFFSET_TIMESTAMP = 4;
+    private static final int OFFSET_DEVICE_ID = 4;
+    private static final int OFFSET_CHANNEL_COUNT = 1;
+    private static final int OFFSET_CHANNEL_STATES = 12;
+    private static final int OFFSET_CHANNELS_CHANGED = 16;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final byte[] LEGACY_TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] LEGACY_FALSE = {'f', 'a', 'l', 's', 'e'};
+
+    private RemoteLedCodec() {
+    }
+
+    /**
+     * Write a version 1 frame into the given buffer.
+     *
+     * @return the number of bytes written, always {@link #FRAME_LENGTH}.
+     */
+    public static int encode(byte[] buffer, int offset, boolean ledOn, int sequence,
+                             long timestamp) {
+        buffer[offset + OFFSET_VERSION] = VERSION;
+        buffer[offset + OFFSET_FLAGS] = (byte) (ledOn ? FLAG_LED_ON : 0);
+        buffer[offset + OFFSET_SEQUENCE] = (byte) (sequence >>> 8);
+        buffer[offset + OFFSET_SEQUENCE + 1] = (byte) sequence;
+        writeLong(buffer, offset + OFFSET_TIMESTAMP, timestamp);
+        return FRAME_LENGTH;
+    }
+
+    /**
+     * Write a version 2 frame into the given buffer.
+     *
+     * @param channelCount the number of channels, at most {@link #MAX_CHANNELS}.
+     * @return the number of bytes written, always {@link #CHANNEL_FRAME_LENGTH}.
+     */
+    public static int encodeChannels(byte[] buffer, int offset, int channelCount, int states,
+                                     int changed, int sequence, long timestamp) {
+        buffer[offset + OFFSET_VERSION] = VERSION_CHANNELS;
+        buffer[offset + OFFSET_CHANNEL_COUNT] = (byte) channelCount;
+        buffer[offset + OFFSET_SEQUENCE] = (byte) (sequence >>> 8);
+        buffer[offset + OFFSET_SEQUENCE + 1] = (byte) sequence;
+        writeLong(buffer, offset + OFFSET_TIMESTAMP, timestamp);
+        writeInt(buffer, offset + OFFSET_CHANNEL_STATES, states);
+        writeInt(buffer, offset + OFFSET_CHANNELS_CHANGED, changed);
+        return CHANNEL_FRAME_LENGTH;
+    }
+
+    /**
+     * Return the frame version of the given value, {@link #VERSION_LEGACY} for the text
+     * encoding or {@link #VERSION_INVALID} if the value cannot be decoded.
+     */
+    public static int getVersion(byte[] data) {
+        if (data == null || data.length == 0) {
+            return VERSION_INVALID;
+        }
+        if (data[OFFSET_VERSION] == VERSION) {
+            return data.length >= FRAME_LENGTH ? VERSION : VERSION_INVALID;
+        }
+        if (data[OFFSET_VERSION] == VERSION_CHANNELS) {
+            return data.length >= CHANNEL_FRAME_LENGTH ? VERSION_CHANNELS : VERSION_INVALID;
+        }
+        if (startsWith(data, LEGACY_TRUE) || startsWith(data, LEGACY_FALSE)) {
+            return VERSION_LEGACY;
+        }
+        return VERSION_INVALID;
+    }
+
+    public static boolean isLedOn(byte[] data) {
+        int version = getVersion(data);
+        if (version == VERSION_LEGACY) {
+            return data[0] == 't';
+        }
+        if (version == VERSION_CHANNELS) {
+            return (readInt(data, OFFSET_CHANNEL_STATES) & 1) != 0;
+        }
+        return version == VERSION && (data[OFFSET_FLAGS] & FLAG_LED_ON) != 0;
+    }
+
+    /**
+     * Return the number of channels in the frame, 1 before version 2 or 0 if invalid.
+     */
+    public static int getChannelCount(byte[] data) {
+        int version = getVersion(data);
+        if (version == VERSION_CHANNELS) {
+            return data[OFFSET_CHANNEL_COUNT] & 0xFF;
+        }
+        return version == VERSION_INVALID ? 0 : 1;
+    }
+
+    /**
+     * Return the channel states of the frame, bit n set while channel n is on.
+     */
+    public static int getChannelStates(byte[] data) {
+        if (getVersion(data) == VERSION_CHANNELS) {
+            return readInt(data, OFFSET_CHANNEL_STATES);
+        }
+        return isLedOn(data) ? 1 : 0;
+    }
+
+    /**
+     * Return the channels changed by the frame, channel 0 before version 2.
+     */
+    public static int getChangedChannels(byte[] data) {
+        int version = getVersion(data);
+        if (version == VERSION_CHANNELS) {
+            return readInt(data, OFFSET_CHANNELS_CHANGED);
+        }
+        return version == VERSION_INVALID ? 0 : 1;
+    }
+
+    /**
+     * Return the sequence number of a frame, 0 for legacy values.
+     */
+    public static int getSequence(byte[] data) {
+        if (!hasHeader(data)) {
+            return 0;
+        }
+        return ((data[OFFSET_SEQUENCE] & 0xFF) << 8) | (data[OFFSET_SEQUENCE + 1] & 0xFF);
+    }
+
+    /**
+     * Return the sender timestamp of a frame, 0 for legacy values.
+     */
+    public static long getTimestamp(byte[] data) {
+        if (!hasHeader(data)) {
+            return 0;
+        }
+        return readLong(data, OFFSET_TIMESTAMP);
+    }
+
+    /**
+     * Write a state broadcast into the given buffer.
+     *
+     * @return the number of bytes written, always {@link #BROADCAST_LENGTH}.
+     */
+    public static int encodeBroadcast(byte[] buffer, int offset, boolean ledOn, int sequence,
+                                      int deviceId) {
+        buffer[offset + OFFSET_VERSION] = VERSION;
+        buffer[offset + OFFSET_FLAGS] = (byte) (ledOn ? FLAG_LED_ON : 0);
+        buffer[offset + OFFSET_SEQUENCE] = (byte) (sequence >>> 8);
+        buffer[offset + OFFSET_SEQUENCE + 1] = (byte) sequence;
+        buffer[offset + OFFSET_DEVICE_ID] = (byte) (deviceId >>> 8);
+        buffer[offset + OFFSET_DEVICE_ID + 1] = (byte) deviceId;
+        return BROADCAST_LENGTH;
+    }
+
+    /**
+     * Return true if the given service data is a state broadcast this version understands.
+     */
+    public static boolean isBroadcast(byte[] data) {
+        return data != null && data.length >= BROADCAST_LENGTH
+                && data[OFFSET_VERSION] == VERSION;
+    }
+
+    /**
+     * Return the LED state of a state broadcast, false if it is malformed.
+     */
+    public static boolean isBroadcastLedOn(byte[] data) {
+        return isBroadcast(data) && (data[OFFSET_FLAGS] & FLAG_LED_ON) != 0;
+    }
+
+    /**
+     * Return the sequence number of a state broadcast, 0 if it is malformed.
+     */
+    public static int getBroadcastSequence(byte[] data) {
+        if (!isBroadcast(data)) {
+            return 0;
+        }
+        return ((data[OFFSET_SEQUENCE] & 0xFF) << 8) | (data[OFFSET_SEQUENCE + 1] & 0xFF);
+    }
+
+    /**
+     * Return the device ID of a state broadcast, -1 if it is malformed.
+     */
+    public static int getBroadcastDeviceId(byte[] data) {
+        if (!isBroadcast(data)) {
+            return -1;
+        }
+        return ((data[OFFSET_DEVICE_ID] & 0xFF) << 8) | (data[OFFSET_DEVICE_ID + 1] & 0xFF);
+    }
+
+    /**
+     * Encode a wall clock timestamp as the value of the Remote LED Clock characteristic.
+     */
+    public static byte[] encodeClock(long timestamp) {
+        byte[] value = new byte[8];
+        writeLong(value, 0, timestamp);
+        return value;
+    }
+
+    /**
+     * Decode a Remote LED Clock value.
+     *
+     * @return the timestamp, or -1 if the value is malformed.
+     */
+    public static long decodeClock(byte[] value) {
+        if (value == null || value.length != 8) {
+            return -1;
+        }
+        return readLong(value, 0);
+    }
+
+    /**
+     * Return the sequence number following the given one.
+     */
+    public static int nextSequence(int sequence) {
+        return (sequence + 1) & 0xFFFF;
+    }
+
+    /**
+     * Return true if sequence a was issued after sequence b, allowing for wrap-around.
+     */
+    public static boolean isNewer(int a, int b) {
+        int delta = (a - b) & 0xFFFF;
+        return delta != 0 && delta < 0x8000;
+    }
+
+    /**
+     * Append the value as space separated hex bytes, for debug logging only.
+     */
+    public static StringBuilder appendHex(byte[] data, StringBuilder out) {
+        if (data == null) {
+            return out;
+        }
+        for (byte b : data) {
+            out.append(HEX_DIGITS[(b >> 4) & 0x0F]).append(HEX_DIGITS[b & 0x0F]).append(' ');
+        }
+        return out;
+    }
+
+    static void writeLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static int readInt(byte[] data, int offset) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    // True for the binary frames, which carry a sequence number and timestamp.
+    private static boolean hasHeader(byte[] data) {
+        int version = getVersion(data);
+        return version == VERSION || version == VERSION_CHANNELS;
+    }
+
+    static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,707 @@
+package apps.hackstermia.buttonthings;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.ScanResult;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Remote LED link layer of a device: our GATT server and its advertisement, the links to
+ * peers' servers, scanning, reconnecting and sending state changes.  Owned by
+ * {@link BluetoothLeService} and run on its link thread, so it keeps going whatever the UI
+ * is doing.  Activities configure it once with {@link #start}, hand it their state changes
+ * through {@link #submitState} and observe it through a {@link Listener}.
+ */
+public class RemoteLedLink {
+    private static final String TAG = RemoteLedLink.class.getSimpleName();
+
+    /**
+     * A button board: accepts commands on its server, broadcasts its state in the
+     * advertisement and only connects to its peers when no controller connected to it.
+     */
+    public static final int ROLE_BOARD = 0;
+    /**
+     * A controller: connects to its peers right away, writes its state to their command
+     * characteristic and follows boards' broadcasts while not connected.
+     */
+    public static final int ROLE_CONTROLLER = 1;
+
+    // Updates arriving within this window are merged into the latest one.
+    private static final long NOTIFY_COALESCE_WINDOW_MS = 20;
+    // At most 20 LED state notifications per second on each link.
+    private static final long NOTIFY_MIN_INTERVAL_MS = 50;
+    // Give a direct connection to the last known peer this long before scanning for it.
+    private static final long KNOWN_PEER_TIMEOUT_MS = 3000;
+    // Known peers connected at startup, the first directly and the rest in the background.
+    private static final int KNOWN_PEER_LINKS = 2;
+    // A controller connecting to a board's server within this time after startup controls
+    // the LED over that single link, no connection back to it is needed.
+    private static final long INBOUND_GRACE_MS = 3000;
+
+    /**
+     * Observes the link.  Notifications are delivered on the link thread, commands written to
+     * a board's server on the Binder thread that delivered them.
+     */
+    public interface Listener {
+        /**
+         * Called for LED data notified by a peer's server and, on a board, written to our
+         * command characteristic.  The value is only valid for the duration of the call.
+         *
+         * @return false if the frame is malformed.
+         */
+        boolean onLedFrame(String address, byte[] value);
+
+        /**
+         * Called on a controller for board state broadcast while we are not connected.
+         */
+        void onLedStateBroadcast(String address, int deviceId, boolean ledOn, int sequence);
+    }
+
+    private final BluetoothLeService mService;
+    private final Handler mHandler;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final RemoteLedServer<BluetoothDevice> mLedServer =
+            new RemoteLedServer<>(new AndroidGattServerLink());
+    private final RemoteLedScanner mScanner;
+    private final UpdateCoalescer mNotifyCoalescer;
+    private final LatencyTracker mLatency = new LatencyTracker();
+    private volatile Listener mListener;
+
+    private final MetricsRegistry mMetrics = MetricsRegistry.getDefault();
+    private final MetricsRegistry.Counter mCommandWrites = mMetrics.counter("command.writes");
+    private final MetricsRegistry.Counter mCommandFailures =
+            mMetrics.counter("command.write.failures");
+
+    // Set once by start.
+    private boolean mStarted;
+    private int mRole;
+    private String mDeviceName;
+    private int mChannelCount = 1;
+    private int mBroadcastDeviceId;
+
+    // On the link thread only.
+    private String mDeviceAddress;
+    private int mSentChannels;
+    private int mLedSequence;
+    // Outbound LED state frame, reused for every notification.
+    private final byte[] mLedFrame = new byte[RemoteLedCodec.MAX_FRAME_LENGTH];
+
+    // Peers whose servers we are connected to, up to KNOWN_PEER_LINKS of them are pooled.
+    private final Set<String> mConnectedPeers =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Links to the command characteristic of connected peers that have one, by address.
+    private final Map<String, GattClientLink> mCommandLinks = new ConcurrentHashMap<>();
+    // Peers connected to our GATT server.  The stack reports the links we opened to their
+    // servers here too, see hasInboundPeer.
+    private final Set<String> mServerPeers =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Time of the latest state change handed to the notify coalescer.
+    private volatile long mNotifyEventTime;
+    private volatile long mNotifyEventNanos;
+
+    RemoteLedLink(BluetoothLeService service, Handler handler) {
+        mService = service;
+        mHandler = handler;
+        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mScanner = new RemoteLedScanner(mBluetoothAdapter, mHandler, mScanListener);
+        mScanner.setReportDelay(BluetoothHelper.SCAN_REPORT_DELAY);
+        final TaskScheduler scheduler = new HandlerTaskScheduler(mHandler);
+        mNotifyCoalescer = new UpdateCoalescer(scheduler, NOTIFY_COALESCE_WINDOW_MS,
+                NOTIFY_MIN_INTERVAL_MS, new UpdateCoalescer.Sink() {
+                    @Override
+                    public boolean onUpdate(int state) {
+                        final long span = Tracer.begin(Tracer.STEP_NOTIFY);
+                        sendLedState(state);
+                        Tracer.end(Tracer.STEP_NOTIFY, mNotifyEventTime, span);
+                        // The fanout resends it to subscribers whose notification was
+                        // rejected or never acknowledged.
+                        return true;
+                    }
+                });
+        mLedServer.setRateLimit(NOTIFY_MIN_INTERVAL_MS, scheduler);
+    }
+
+    /**
+     * Bring the link up for this device, once per service.  Later calls, e.g. from a
+     * recreated activity, leave the running link as it is.
+     *
+     * @param role {@link #ROLE_BOARD} or {@link #ROLE_CONTROLLER}.
+     * @param deviceName the adapter name to advertise.
+     * @param channelCount LED channels served, 1 to {@link RemoteLedCodec#MAX_CHANNELS}.
+     * @param channels the initial channel states, bit n for channel n.
+     * @return false if the link was already started.
+     */
+    public synchronized boolean start(int role, String deviceName, int channelCount,
+                                      final int channels) {
+        if (mStarted) {
+            return false;
+        }
+        mStarted = true;
+        mRole = role;
+        mDeviceName = deviceName;
+        mChannelCount = channelCount;
+        mLedServer.setChannelCount(channelCount);
+        if (role == ROLE_BOARD) {
+            mBroadcastDeviceId = BluetoothHelper.getShortDeviceId(mService);
+            mLedServer.setCommandListener(new RemoteLedServer.CommandListener<BluetoothDevice>() {
+                @Override
+                public boolean onCommand(BluetoothDevice device, byte[] value) {
+                    return receive(device.getAddress(), value);
+                }
+            });
+        } else {
+            mScanner.setBroadcastListener(mBroadcastListener);
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSentChannels = channels;
+                if (mRole == ROLE_BOARD) {
+                    // Observers that never connect follow the state in the advertisement.
+                    BluetoothHelper.broadcastLedState(mBroadcastDeviceId, (channels & 1) != 0,
+                            mLedSequence);
+                }
+                mLedServer.setValue(mLedFrame,
+                        encodeLedFrame(channels, 0, System.currentTimeMillis()));
+                addNotificationGauges();
+                mService.addGattEventListener(mGattEventListener);
+                mService.registerReceiver(mBluetoothReceiver,
+                        new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED), null, mHandler);
+                if (mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()) {
+                    onAdapterOn();
+                }
+            }
+        });
+        return true;
+    }
+
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Observe the link, or stop observing with null.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Stop observing the link if the given listener is the current one.
+     */
+    public void removeListener(Listener listener) {
+        if (mListener == listener) {
+            mListener = null;
+        }
+    }
+
+    /**
+     * Send new channel states to the subscribers, and on a controller to the connected
+     * board.  Bursts of calls are coalesced, only the latest state is sent.
+     */
+    public void submitState(int channels) {
+        mNotifyEventTime = System.currentTimeMillis();
+        mNotifyEventNanos = System.nanoTime();
+        mNotifyCoalescer.submit(channels);
+    }
+
+    /**
+     * Return the timestamp of the latest state submitted, the id its trace spans carry.
+     */
+    public long getStateTime() {
+        return mNotifyEventTime;
+    }
+
+    /**
+     * Return true while we are connected to at least one peer's server.
+     */
+    public boolean isConnected() {
+        return !mConnectedPeers.isEmpty();
+    }
+
+    public LatencyTracker getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * Take the link down, called when the service is destroyed.  Runs behind the start on
+     * the link thread, which is quit safely afterwards.
+     */
+    synchronized void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mListener = null;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mService.unregisterReceiver(mBluetoothReceiver);
+                mService.removeGattEventListener(mGattEventListener);
+                onAdapterOff();
+                removeNotificationGauges();
+            }
+        });
+    }
+
+    void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "role=" + (mRole == ROLE_BOARD ? "board" : "controller")
+                + " connected=" + mConnectedPeers + " server=" + mServerPeers
+                + " subscribers=" + mLedServer.getSubscriberCount()
+                + " coalesced=" + mNotifyCoalescer.getMergedCount());
+        writer.println(prefix + "advertising " + BluetoothHelper.getAdvertisingScheduler());
+        for (String address : mService.getConnectedDevices()) {
+            ClockOffsetEstimator clock = mService.getClockOffset(address);
+            writer.println(prefix + "clock " + address + ": offset="
+                    + clock.getOffset() + " ms rtt=" + clock.getRoundTrip()
+                    + " ms samples=" + clock.getSampleCount());
+        }
+        writer.println(prefix + "Latency stages:");
+        mLatency.dump(writer, prefix + "  ");
+    }
+
+    private void onAdapterOn() {
+        Log.d(TAG, "Set up Bluetooth Adapter name and profile");
+        mBluetoothAdapter.setName(mDeviceName);
+        BluetoothHelper.startAdvertising();
+        BluetoothHelper.startServer(mService, mGattServerCallback);
+        mHandler.removeCallbacks(mBackConnect);
+        if (mRole == ROLE_BOARD) {
+            mHandler.postDelayed(mBackConnect, INBOUND_GRACE_MS);
+        } else {
+            connectKnownPeers();
+        }
+    }
+
+    private void onAdapterOff() {
+        mHandler.removeCallbacks(mBackConnect);
+        mHandler.removeCallbacks(mKnownPeerTimeout);
+        mScanner.stop();
+        BluetoothHelper.stopServer();
+        BluetoothHelper.stopAdvertising();
+    }
+
+    /**
+     * Listens for Bluetooth adapter events to enable/disable
+     * advertising and server functionality.
+     */
+    private final BroadcastReceiver mBluetoothReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
+
+            switch (state) {
+                case BluetoothAdapter.STATE_ON:
+                    onAdapterOn();
+                    break;
+                case BluetoothAdapter.STATE_OFF:
+                    onAdapterOff();
+                    break;
+                default:
+                    // Do nothing
+            }
+        }
+    };
+
+    /**
+     * Connect straight to the peers we have seen before, the most recent one directly and the
+     * next ones as background links.  Scans only if there is no known peer, or if the direct
+     * connection does not come up in time.
+     */
+    private void connectKnownPeers() {
+        int links = 0;
+        for (PeerDirectory.Peer peer : mService.getPeerDirectory().getPeers()) {
+            if (links == KNOWN_PEER_LINKS) {
+                break;
+            }
+            if (peer.isLayoutKnown() && !peer.hasCharacteristic(
+                    RemoteLedProfile.REMOTE_LED_SERVICE, RemoteLedProfile.REMOTE_LED_DATA)) {
+                continue;
+            }
+            if (links == 0) {
+                mDeviceAddress = peer.getAddress();
+            }
+            mService.connect(peer.getAddress(), links > 0);
+            links++;
+        }
+        if (links == 0) {
+            Log.d(TAG, "No known peer, scanning");
+            scanLeDevice();
+        } else {
+            mHandler.postDelayed(mKnownPeerTimeout, KNOWN_PEER_TIMEOUT_MS);
+        }
+    }
+
+    // Connects a board to known peers' servers unless a controller already connected to ours.
+    private final Runnable mBackConnect = new Runnable() {
+        @Override
+        public void run() {
+            if (hasInboundPeer() || isConnected()) {
+                Log.d(TAG, "Controlled over an inbound link, not connecting back");
+                return;
+            }
+            connectKnownPeers();
+        }
+    };
+
+    private final Runnable mKnownPeerTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (!isConnected()) {
+                Log.d(TAG, "Known peer " + mDeviceAddress + " not reachable, scanning");
+                scanLeDevice();
+            }
+        }
+    };
+
+    private void scanLeDevice() {
+        // Stops scanning after a pre-defined scan period.
+        mScanner.start(BluetoothHelper.SCAN_PERIOD);
+    }
+
+    private final RemoteLedScanner.Listener mScanListener = new RemoteLedScanner.Listener() {
+        @Override
+        public void onPeerFound(ScanResult result) {
+            if (!isConnected() && (mRole != ROLE_BOARD || !hasInboundPeer())) {
+                mDeviceAddress = result.getDevice().getAddress();
+                boolean connected = mService.connect(mDeviceAddress);
+                Log.d(TAG, "Connect request result=" + connected);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Peer scan failed: " + errorCode);
+        }
+    };
+
+    // Follows the board's state from its advertisement until a connection takes over.
+    private final RemoteLedScanner.BroadcastListener mBroadcastListener =
+            new RemoteLedScanner.BroadcastListener() {
+        @Override
+        public void onLedStateBroadcast(String address, int deviceId, boolean ledOn,
+                                        int sequence) {
+            Log.d(TAG, "Broadcast from " + address + " id=" + deviceId + " led=" + ledOn
+                    + " seq=" + sequence);
+            final Listener listener = mListener;
+            if (!isConnected() && listener != null) {
+                listener.onLedStateBroadcast(address, deviceId, ledOn, sequence);
+            }
+        }
+    };
+
+    private void sendLedState(int channels) {
+        final int changed = channels ^ mSentChannels;
+        mSentChannels = channels;
+        mLedSequence = RemoteLedCodec.nextSequence(mLedSequence);
+        if (mRole == ROLE_BOARD) {
+            BluetoothHelper.broadcastLedState(mBroadcastDeviceId, (channels & 1) != 0,
+                    mLedSequence);
+        }
+        // Stamp the frame with the time of the change, not of the send, so the receiver
+        // measures the whole path.
+        final int length = encodeLedFrame(channels, changed, mNotifyEventTime);
+        // Reads are answered from the same snapshot, whether or not anyone subscribed.
+        AttributeStore.Snapshot snapshot = mLedServer.setValue(mLedFrame, length);
+        if (mRole == ROLE_CONTROLLER) {
+            sendCommand(snapshot);
+        }
+        if (mLedServer.getSubscriberCount() == 0) {
+            Log.i(TAG, "No subscribers registered");
+            return;
+        }
+
+        Log.i(TAG, "Sending update to " + mLedServer.getSubscriberCount() + " subscribers, "
+                + mNotifyCoalescer.getMergedCount() + " updates coalesced so far");
+        mLedServer.publish(snapshot);
+        mLatency.record(LatencyTracker.STAGE_NOTIFY, System.nanoTime() - mNotifyEventNanos);
+    }
+
+    /**
+     * Encode the channel states into the outbound frame.  A single channel goes out as a
+     * version 1 frame, which peers without channel support still understand.
+     *
+     * @return the frame length.
+     */
+    private int encodeLedFrame(int channels, int changed, long timestamp) {
+        if (mChannelCount == 1) {
+            return RemoteLedCodec.encode(mLedFrame, 0, (channels & 1) != 0, mLedSequence,
+                    timestamp);
+        }
+        return RemoteLedCodec.encodeChannels(mLedFrame, 0, mChannelCount, channels, changed,
+                mLedSequence, timestamp);
+    }
+
+    /**
+     * Write the state to the command characteristic of every connected peer, so they need no
+     * link back to our server.  Written without response, the peers' notifications confirm it.
+     */
+    private void sendCommand(AttributeStore.Snapshot snapshot) {
+        if (mCommandLinks.isEmpty()) {
+            return;
+        }
+        final byte[] value = snapshot.read(0);
+        for (GattClientLink command : mCommandLinks.values()) {
+            mCommandWrites.increment();
+            if (!command.writeCharacteristic(RemoteLedProfile.REMOTE_LED_COMMAND, value, false)) {
+                mCommandFailures.increment();
+            }
+        }
+    }
+
+    /**
+     * Hand a received frame to the listener, timing its way from the sender.
+     *
+     * @return false if the frame is malformed or nobody is listening.
+     */
+    private boolean receive(String address, byte[] value) {
+        final long receivedAt = System.currentTimeMillis();
+        if (RemoteLedCodec.getVersion(value) == RemoteLedCodec.VERSION_INVALID) {
+            Log.w(TAG, "Ignoring malformed LED data from " + address);
+            return false;
+        }
+        final Listener listener = mListener;
+        if (listener == null) {
+            return false;
+        }
+        final long span = Tracer.begin(Tracer.STEP_RECEIVE);
+        if (RemoteLedCodec.getVersion(value) != RemoteLedCodec.VERSION_LEGACY) {
+            mLatency.recordReceive(RemoteLedCodec.getTimestamp(value), receivedAt,
+                    mService.getClockOffset(address));
+        }
+        final boolean applied = listener.onLedFrame(address, value);
+        Tracer.end(Tracer.STEP_RECEIVE, value, span);
+        return applied;
+    }
+
+    /**
+     * Callback to handle incoming requests to the GATT server.
+     * All read/write requests for characteristics and descriptors are handled here.
+     */
+    private final BluetoothGattServerCallback mGattServerCallback =
+            new BluetoothGattServerCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.i(TAG, "BluetoothDevice CONNECTED: " + device);
+                final String address = device.getAddress();
+                BluetoothHelper.onPeerConnected(address);
+                mServerPeers.add(address);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onInboundPeerConnected(address);
+                    }
+                });
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.i(TAG, "BluetoothDevice DISCONNECTED: " + device);
+                BluetoothHelper.onPeerDisconnected(device.getAddress());
+                mServerPeers.remove(device.getAddress());
+                mLedServer.onConnectionStateChange(device, false);
+            }
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            mLedServer.onNotificationSent(device, status);
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+                                                BluetoothGattCharacteristic characteristic) {
+            Log.d(TAG, "Read " + characteristic.getUuid() + " from " + device);
+            mLedServer.onCharacteristicReadRequest(device, requestId, offset,
+                    characteristic.getUuid());
+        }
+
+        @Override
+        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
+                                            BluetoothGattDescriptor descriptor) {
+            mLedServer.onDescriptorReadRequest(device, requestId, offset,
+                    descriptor.getCharacteristic().getUuid(), descriptor.getUuid());
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
+                                                 BluetoothGattCharacteristic characteristic,
+                                                 boolean preparedWrite, boolean responseNeeded,
+                                                 int offset, byte[] value) {
+            // Controllers have no command listener, they are not controlled by their peers.
+            mLedServer.onCharacteristicWriteRequest(device, requestId, characteristic.getUuid(),
+                    preparedWrite, responseNeeded, offset, value);
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
+                                             BluetoothGattDescriptor descriptor,
+                                             boolean preparedWrite, boolean responseNeeded,
+                                             int offset, byte[] value) {
+            Log.d(TAG, "Descriptor write " + descriptor.getUuid() + " from " + device);
+            mLedServer.onDescriptorWriteRequest(device, requestId,
+                    descriptor.getCharacteristic().getUuid(), descriptor.getUuid(),
+                    preparedWrite, responseNeeded, offset, value);
+        }
+    };
+
+    /**
+     * Return true if a peer connected to our server on its own, rather than the stack
+     * reporting a link we opened to that peer's server.
+     */
+    private boolean hasInboundPeer() {
+        for (String address : mServerPeers) {
+            if (!mConnectedPeers.contains(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onInboundPeerConnected(String address) {
+        if (mConnectedPeers.contains(address)) {
+            // Our own link to the peer's server.
+            return;
+        }
+        if (mRole == ROLE_BOARD) {
+            // The peer controls us over its own link.
+            mHandler.removeCallbacks(mBackConnect);
+            mHandler.removeCallbacks(mKnownPeerTimeout);
+            mScanner.stop();
+        } else if (!isConnected()) {
+            // A board found us first, look for it in turn.
+            scanLeDevice();
+        }
+    }
+
+    // Handles the events of the links to our peers' servers, on the link thread.
+    private final BluetoothLeService.GattEventListener mGattEventListener =
+            new BluetoothLeService.GattEventListener() {
+        @Override
+        public void onConnected(String address) {
+            mConnectedPeers.add(address);
+            mHandler.removeCallbacks(mKnownPeerTimeout);
+            mScanner.stop();
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            // Only this peer's link went down, the other pooled links stay up.
+            mConnectedPeers.remove(address);
+            final GattClientLink command = mCommandLinks.remove(address);
+            if (command != null) {
+                command.close();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+            List<BluetoothGattService> services = mService.getSupportedGattServices(address);
+            if (services == null) {
+                return;
+            }
+            for (BluetoothGattService gattService : services) {
+                if (!gattService.getUuid().equals(RemoteLedProfile.REMOTE_LED_SERVICE)) {
+                    continue;
+                }
+                // Commands go out over this link rather than the peer's link to us.
+                if (mRole == ROLE_CONTROLLER && gattService.getCharacteristic(
+                        RemoteLedProfile.REMOTE_LED_COMMAND) != null) {
+                    final GattClientLink previous = mCommandLinks.put(address,
+                            mService.getClientLink(address, null));
+                    if (previous != null) {
+                        previous.close();
+                    }
+                }
+                final BluetoothGattCharacteristic characteristic =
+                        gattService.getCharacteristic(RemoteLedProfile.REMOTE_LED_DATA);
+                if (characteristic == null) {
+                    continue;
+                }
+                // Each pooled link reads and subscribes to its own peer's characteristic, a
+                // subscription on one link never needs clearing for another.
+                final int charaProp = characteristic.getProperties();
+                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
+                    mService.readCharacteristic(address, characteristic);
+                }
+                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
+                    mService.setCharacteristicNotification(address, characteristic, true);
+                }
+            }
+        }
+
+        @Override
+        public void onDataAvailable(String address, BluetoothGattCharacteristic characteristic,
+                                    byte[] value) {
+            if (RemoteLedProfile.REMOTE_LED_DATA.equals(characteristic.getUuid())) {
+                receive(address, value);
+            }
+        }
+    };
+
+    private final MetricsRegistry.Gauge mSubscriberGauge = new MetricsRegistry.Gauge() {
+        @Override
+        public long getValue() {
+            return mLedServer.getSubscriberCount();
+        }
+    };
+
+    private final MetricsRegistry.Gauge mSentGauge = new MetricsRegistry.Gauge() {
+        @Override
+        public long getValue() {
+            return mLedServer.getNotificationFanout().getSentCount();
+        }
+    };
+
+    private final MetricsRegistry.Gauge mSkippedGauge = new MetricsRegistry.Gauge() {
+        @Override
+        public long getValue() {
+            return mLedServer.getNotificationFanout().getSkippedCount();
+        }
+    };
+
+    private final MetricsRegistry.Gauge mRejectedGauge = new MetricsRegistry.Gauge() {
+        @Override
+        public long getValue() {
+            return mLedServer.getNotificationFanout().getRejectedCount();
+        }
+    };
+
+    private final MetricsRegistry.Gauge mAckTimeoutGauge = new MetricsRegistry.Gauge() {
+        @Override
+        public long getValue() {
+            return mLedServer.getNotificationFanout().getAckTimeoutCount();
+        }
+    };
+
+    private void addNotificationGauges() {
+        mMetrics.gauge("notify.subscribers", mSubscriberGauge);
+        mMetrics.gauge("notify.sent", mSentGauge);
+        mMetrics.gauge("notify.skipped", mSkippedGauge);
+        mMetrics.gauge("notify.rejected", mRejectedGauge);
+        mMetrics.gauge("notify.ack.timeouts", mAckTimeoutGauge);
+    }
+
+    private void removeNotificationGauges() {
+        mMetrics.removeGauge("notify.subscribers", mSubscriberGauge);
+        mMetrics.removeGauge("notify.sent", mSentGauge);
+        mMetrics.removeGauge("notify.skipped", mSkippedGauge);
+        mMetrics.removeGauge("notify.rejected", mRejectedGauge);
+        mMetrics.removeGauge("notify.ack.timeouts", mAckTimeoutGauge);
+    }
+}
@@ -1,32 +1,23 @@
 package apps.hackstermia.buttonthings;
 
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-
 import java.util.UUID;
 
+/**
+ * Attribute UUIDs of the Remote LED Service.  Free of Android classes so the simulator can
+ * use them, the service itself is built by {@link BluetoothHelper#startServer}.
+ */
 public class RemoteLedProfile {
 
     /* Remote LED Service UUID */
     public static UUID REMOTE_LED_SERVICE = UUID.fromString("00001805-0000-1000-8000-00805f9b34fb");
     /* Remote LED Data Characteristic */
     public static UUID REMOTE_LED_DATA = UUID.fromString("00002a2b-0000-1000-8000-00805f9b34fb");
-
-    /**
-     * Return a configured {@link BluetoothGattService} instance for the
-     * Remote LED Service.
-     */
-    public static BluetoothGattService createRemoteLedService() {
-        BluetoothGattService service = new BluetoothGattService(REMOTE_LED_SERVICE,
-                BluetoothGattService.SERVICE_TYPE_PRIMARY);
-
-        BluetoothGattCharacteristic ledData = new BluetoothGattCharacteristic(REMOTE_LED_DATA,
-                //Read-only characteristic, supports notifications
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ);
-
-        service.addCharacteristic(ledData);
-
-        return service;
-    }
+    /* Remote LED Clock Characteristic, the server's wall clock for offset estimation */
+    public static UUID REMOTE_LED_CLOCK = UUID.fromString("b8a10001-5f2c-4d3a-9c61-3a1f0e7d2b40");
+    /* Remote LED Command Characteristic, a client sets the LED by writing a data frame */
+    public static UUID REMOTE_LED_COMMAND = UUID.fromString("b8a10002-5f2c-4d3a-9c61-3a1f0e7d2b40");
+    /* Channel Count Descriptor of the data characteristic, one byte */
+    public static UUID REMOTE_LED_CHANNEL_COUNT = UUID.fromString("b8a10003-5f2c-4d3a-9c61-3a1f0e7d2b40");
+    /* Client Characteristic Configuration Descriptor */
+    public static UUID CLIENT_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 }
@@ -0,0 +1,244 @@
+package apps.hackstermia.buttonthings;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scans for peers advertising the Remote LED Service.  The service UUID is handed to the
+ * controller as a {@link ScanFilter}, so unrelated advertisers never wake the app processor,
+ * and results can be batched by the controller with {@link #setReportDelay}.  Each peer is
+ * reported once per scan, optionally restricted to an allow-list of addresses.  Peers
+ * broadcasting their LED state in the advertisement can be followed without connecting,
+ * see {@link #setBroadcastListener}.
+ */
+public class RemoteLedScanner {
+    private static final String TAG = RemoteLedScanner.class.getSimpleName();
+
+    /**
+     * Receives scan results on the handler's thread.
+     */
+    public interface Listener {
+        void onPeerFound(ScanResult result);
+
+        void onScanFailed(int errorCode);
+    }
+
+    /**
+     * Receives LED state broadcast by peers, on the handler's thread.  Each state change is
+     * reported once, however often the advertisement is seen.
+     */
+    public interface BroadcastListener {
+        void onLedStateBroadcast(String address, int deviceId, boolean ledOn, int sequence);
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final List<ScanFilter> mFilters;
+    // Fallback for stacks that do not apply the filter in the controller.
+    private final ScanRecordFilter mRecordFilter =
+            new ScanRecordFilter(RemoteLedProfile.REMOTE_LED_SERVICE);
+    private final Set<String> mAllowedPeers =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Peers reported during the current scan, touched on the handler's thread only.
+    private final Set<String> mReportedPeers = new HashSet<>();
+    // Last broadcast sequence number per peer, touched on the handler's thread only.
+    private final Map<String, Integer> mBroadcastSequences = new HashMap<>();
+    private final ParcelUuid mServiceUuid = new ParcelUuid(RemoteLedProfile.REMOTE_LED_SERVICE);
+    private volatile BroadcastListener mBroadcastListener;
+
+    private int mScanMode = ScanSettings.SCAN_MODE_BALANCED;
+    private long mReportDelay;
+    private BluetoothLeScanner mScanner;
+    private boolean mScanning;
+
+    public RemoteLedScanner(BluetoothAdapter adapter, Handler handler, Listener listener) {
+        mAdapter = adapter;
+        mHandler = handler;
+        mListener = listener;
+        mFilters = Collections.singletonList(new ScanFilter.Builder()
+                .setServiceUuid(mServiceUuid)
+                .build());
+    }
+
+    /**
+     * @param scanMode one of the {@link ScanSettings} SCAN_MODE constants, applied to the
+     *                 next scan.
+     */
+    public void setScanMode(int scanMode) {
+        mScanMode = scanMode;
+    }
+
+    /**
+     * Let the controller batch results and deliver them every {@code delayMillis}.  Ignored
+     * when the controller cannot batch, applied to the next scan.
+     */
+    public void setReportDelay(long delayMillis) {
+        mReportDelay = delayMillis;
+    }
+
+    /**
+     * Only report the given peer and others allowed.  With an empty allow-list every peer
+     * advertising the service is reported.
+     */
+    public void allowPeer(String address) {
+        mAllowedPeers.add(address);
+    }
+
+    public void disallowPeer(String address) {
+        mAllowedPeers.remove(address);
+    }
+
+    /**
+     * Follow state broadcast in the peers' advertisements while scanning, or stop with null.
+     * Use a long scan without report delay to observe changes promptly.
+     */
+    public void setBroadcastListener(BroadcastListener listener) {
+        mBroadcastListener = listener;
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Start scanning, stopping on its own after the given duration.
+     *
+     * @return false if the adapter is off or scanning is unavailable.
+     */
+    public boolean start(long durationMillis) {
+        if (mScanning) {
+            return true;
+        }
+        if (mAdapter == null || !mAdapter.isEnabled()) {
+            Log.w(TAG, "Bluetooth adapter not available or not enabled.");
+            return false;
+        }
+        mScanner = mAdapter.getBluetoothLeScanner();
+        if (mScanner == null) {
+            Log.w(TAG, "Failed to create scanner");
+            return false;
+        }
+        ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(mScanMode);
+        if (mReportDelay > 0 && mAdapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(mReportDelay);
+        }
+        mReportedPeers.clear();
+        // A peer may have restarted its sequence numbers since the last scan.
+        mBroadcastSequences.clear();
+        mScanner.startScan(mFilters, settings.build(), mScanCallback);
+        mScanning = true;
+        mHandler.postDelayed(mStopRunnable, durationMillis);
+        return true;
+    }
+
+    public void stop() {
+        mHandler.removeCallbacks(mStopRunnable);
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        // The scanner throws if the adapter was turned off in the meantime.
+        if (mScanner != null && mAdapter.isEnabled()) {
+            mScanner.stopScan(mScanCallback);
+        }
+        mScanner = null;
+    }
+
+    private final Runnable mStopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stop();
+        }
+    };
+
+    private void handleResult(ScanResult result) {
+        if (!mScanning || result.getDevice() == null) {
+            return;
+        }
+        final String address = result.getDevice().getAddress();
+        if (!mAllowedPeers.isEmpty() && !mAllowedPeers.contains(address)) {
+            return;
+        }
+        final ScanRecord record = result.getScanRecord();
+        if (record != null && !mRecordFilter.matches(record.getBytes())) {
+            return;
+        }
+        if (record != null) {
+            handleBroadcast(address, record.getServiceData(mServiceUuid));
+        }
+        if (mReportedPeers.contains(address)) {
+            return;
+        }
+        mReportedPeers.add(address);
+        mListener.onPeerFound(result);
+    }
+
+    private void handleBroadcast(String address, byte[] data) {
+        final BroadcastListener listener = mBroadcastListener;
+        if (listener == null || !RemoteLedCodec.isBroadcast(data)) {
+            return;
+        }
+        final int sequence = RemoteLedCodec.getBroadcastSequence(data);
+        final Integer last = mBroadcastSequences.get(address);
+        if (last != null && !RemoteLedCodec.isNewer(sequence, last)) {
+            return;
+        }
+        mBroadcastSequences.put(address, sequence);
+        listener.onLedStateBroadcast(address, RemoteLedCodec.getBroadcastDeviceId(data),
+                RemoteLedCodec.isBroadcastLedOn(data), sequence);
+    }
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, final ScanResult result) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleResult(result);
+                }
+            });
+        }
+
+        @Override
+        public void onBatchScanResults(final List<ScanResult> results) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (ScanResult result : results) {
+                        handleResult(result);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onScanFailed(final int errorCode) {
+            Log.w(TAG, "LE Scan Failed: " + errorCode);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mScanning = false;
+                    mHandler.removeCallbacks(mStopRunnable);
+                    mListener.onScanFailed(errorCode);
+                }
+            });
+        }
+    };
+}
@@ -0,0 +1,190 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves the Remote LED Service over a {@link GattServerLink}: answers reads from an
+ * {@link AttributeStore}, tracks subscriptions in a {@link SubscriberRegistry} and notifies
+ * subscribers through a {@link NotificationFanout}.  Free of Android classes, so the same
+ * request handling runs on the boards, the phone and in the simulator.  Forward the server
+ * callbacks to the matching {@code on} methods.
+ *
+ * @param <D> the device type, {@code BluetoothDevice} on Android.
+ */
+public class RemoteLedServer<D> {
+
+    /**
+     * Receives frames written to the command characteristic.
+     */
+    public interface CommandListener<D> {
+        /**
+         * @return false if the frame is rejected, the write then fails.
+         */
+        boolean onCommand(D device, byte[] value);
+    }
+
+    private final GattServerLink<D> mLink;
+    private final SubscriberRegistry<D> mSubscribers = new SubscriberRegistry<>();
+    private final NotificationFanout<D> mFanout;
+    private final AttributeStore mAttributes = new AttributeStore();
+    // The LED data snapshot each device last read from offset 0, its long read continues
+    // from it.  Replaced by the device's next read, dropped when it disconnects.
+    private final Map<D, AttributeStore.Snapshot> mReadSnapshots = new ConcurrentHashMap<>();
+    private volatile int mChannelCount = 1;
+    private volatile CommandListener<D> mCommandListener;
+
+    public RemoteLedServer(GattServerLink<D> link) {
+        mLink = link;
+        mFanout = new NotificationFanout<>(mSubscribers, RemoteLedProfile.REMOTE_LED_DATA,
+                new NotificationFanout.Transport<D>() {
+                    @Override
+                    public boolean send(D device, byte[] value, int length, boolean confirm) {
+                        return mLink.notifyCharacteristicChanged(device,
+                                RemoteLedProfile.REMOTE_LED_DATA, value, length, confirm);
+                    }
+                }, RemoteLedCodec.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Set the number of LED channels reported by the channel count descriptor, 1 by default.
+     */
+    public void setChannelCount(int channelCount) {
+        mChannelCount = channelCount;
+    }
+
+    /**
+     * Accept writes to the command characteristic.  Without a listener they fail.
+     */
+    public void setCommandListener(CommandListener<D> listener) {
+        mCommandListener = listener;
+    }
+
+    /**
+     * See {@link NotificationFanout#setRateLimit}.
+     */
+    public void setRateLimit(long minIntervalMillis, TaskScheduler scheduler) {
+        mFanout.setRateLimit(minIntervalMillis, scheduler);
+    }
+
+    /**
+     * Store a new LED data frame, served to reads from now on.  The value is copied.
+     *
+     * @return the snapshot to {@link #publish} to subscribers.
+     */
+    public AttributeStore.Snapshot setValue(byte[] value, int length) {
+        return mAttributes.put(RemoteLedProfile.REMOTE_LED_DATA, value, length);
+    }
+
+    /**
+     * Notify every subscriber of a snapshot returned by {@link #setValue}.
+     */
+    public void publish(AttributeStore.Snapshot snapshot) {
+        mFanout.publish(snapshot);
+    }
+
+    public int getSubscriberCount() {
+        return mFanout.getSubscriberCount();
+    }
+
+    public NotificationFanout<D> getNotificationFanout() {
+        return mFanout;
+    }
+
+    public void onConnectionStateChange(D device, boolean connected) {
+        if (!connected) {
+            // Remove the device from any active subscriptions
+            mSubscribers.removeDevice(device);
+            mFanout.removeDevice(device);
+            mReadSnapshots.remove(device);
+        }
+    }
+
+    public void onNotificationSent(D device, int status) {
+        mFanout.onNotificationSent(device, status);
+    }
+
+    public void onCharacteristicReadRequest(D device, int requestId, int offset,
+                                            UUID characteristic) {
+        if (RemoteLedProfile.REMOTE_LED_DATA.equals(characteristic)) {
+            // Long reads continue at an offset, all parts come from the snapshot the first
+            // part was read from, even if the value changed in between.
+            AttributeStore.Snapshot snapshot = offset > 0 ? mReadSnapshots.get(device) : null;
+            if (snapshot == null) {
+                snapshot = mAttributes.get(characteristic);
+            }
+            if (offset == 0) {
+                if (snapshot != null) {
+                    mReadSnapshots.put(device, snapshot);
+                } else {
+                    mReadSnapshots.remove(device);
+                }
+            }
+            final byte[] value = snapshot != null ? snapshot.read(offset)
+                    : (offset == 0 ? new byte[0] : null);
+            if (value == null) {
+                mLink.sendResponse(device, requestId, GattServerLink.STATUS_INVALID_OFFSET,
+                        offset, null);
+            } else {
+                mLink.sendResponse(device, requestId, GattServerLink.STATUS_SUCCESS, offset,
+                        value);
+            }
+        } else if (RemoteLedProfile.REMOTE_LED_CLOCK.equals(characteristic)) {
+            // Answer with our wall clock so the peer can estimate its offset.
+            mLink.sendResponse(device, requestId, GattServerLink.STATUS_SUCCESS, 0,
+                    RemoteLedCodec.encodeClock(System.currentTimeMillis()));
+        } else {
+            mLink.sendResponse(device, requestId, GattServerLink.STATUS_FAILURE, 0, null);
+        }
+    }
+
+    public void onDescriptorReadRequest(D device, int requestId, int offset,
+                                        UUID characteristic, UUID descriptor) {
+        if (RemoteLedProfile.REMOTE_LED_CHANNEL_COUNT.equals(descriptor)) {
+            mLink.sendResponse(device, requestId, GattServerLink.STATUS_SUCCESS, 0,
+                    new byte[]{(byte) mChannelCount});
+        } else if (RemoteLedProfile.CLIENT_CONFIG.equals(descriptor)) {
+            int flags = mSubscribers.getSubscription(characteristic, device);
+            mLink.sendResponse(device, requestId, GattServerLink.STATUS_SUCCESS, 0,
+                    SubscriberRegistry.encodeClientConfig(flags));
+        } else {
+            mLink.sendResponse(device, requestId, GattServerLink.STATUS_FAILURE, 0, null);
+        }
+    }
+
+    public void onCharacteristicWriteRequest(D device, int requestId, UUID characteristic,
+                                             boolean preparedWrite, boolean responseNeeded,
+                                             int offset, byte[] value) {
+        int status = GattServerLink.STATUS_FAILURE;
+        final CommandListener<D> listener = mCommandListener;
+        if (RemoteLedProfile.REMOTE_LED_COMMAND.equals(characteristic) && listener != null) {
+            if (preparedWrite) {
+                status = GattServerLink.STATUS_REQUEST_NOT_SUPPORTED;
+            } else if (offset != 0) {
+                status = GattServerLink.STATUS_INVALID_OFFSET;
+            } else if (listener.onCommand(device, value)) {
+                status = GattServerLink.STATUS_SUCCESS;
+            }
+        }
+        if (responseNeeded) {
+            mLink.sendResponse(device, requestId, status, 0, null);
+        }
+    }
+
+    public void onDescriptorWriteRequest(D device, int requestId, UUID characteristic,
+                                         UUID descriptor, boolean preparedWrite,
+                                         boolean responseNeeded, int offset, byte[] value) {
+        int status = GattServerLink.STATUS_FAILURE;
+        if (RemoteLedProfile.CLIENT_CONFIG.equals(descriptor)) {
+            int flags = SubscriberRegistry.decodeClientConfig(value);
+            if (flags >= 0) {
+                mSubscribers.setSubscription(characteristic, device, flags);
+                status = GattServerLink.STATUS_SUCCESS;
+            }
+        }
+        if (responseNeeded) {
+            mLink.sendResponse(device, requestId, status, 0, null);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.UUID;
+
+/**
+ * Matches raw advertisement records against a service UUID.  Scan callbacks see every
+ * advertiser in range, so this walks the AD structures in place without allocating and
+ * rejects unrelated devices before anything else looks at them.
+ */
+public class ScanRecordFilter {
+
+    private static final int AD_UUID16_INCOMPLETE = 0x02;
+    private static final int AD_UUID16_COMPLETE = 0x03;
+    private static final int AD_UUID32_INCOMPLETE = 0x04;
+    private static final int AD_UUID32_COMPLETE = 0x05;
+    private static final int AD_UUID128_INCOMPLETE = 0x06;
+    private static final int AD_UUID128_COMPLETE = 0x07;
+
+    // 0000xxxx-0000-1000-8000-00805f9b34fb
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private final byte[] mUuid128 = new byte[16];
+    // Shortened forms, or -1 if the UUID is not derived from the Bluetooth base UUID.
+    private final long mUuid32;
+    private final int mUuid16;
+
+    public ScanRecordFilter(UUID serviceUuid) {
+        final long msb = serviceUuid.getMostSignificantBits();
+        final long lsb = serviceUuid.getLeastSignificantBits();
+        // Advertisements carry UUIDs little endian.
+        for (int i = 0; i < 8; i++) {
+            mUuid128[i] = (byte) (lsb >>> (8 * i));
+            mUuid128[8 + i] = (byte) (msb >>> (8 * i));
+        }
+        if ((msb & 0xffffffffL) == BASE_UUID_MSB && lsb == BASE_UUID_LSB) {
+            mUuid32 = msb >>> 32;
+            mUuid16 = mUuid32 <= 0xffff ? (int) mUuid32 : -1;
+        } else {
+            mUuid32 = -1;
+            mUuid16 = -1;
+        }
+    }
+
+    /**
+     * @param scanRecord the raw advertisement and scan response, may be null.
+     * @return true if the record lists the service UUID.
+     */
+    public boolean matches(byte[] scanRecord) {
+        if (scanRecord == null) {
+            return false;
+        }
+        int i = 0;
+        while (i < scanRecord.length) {
+            final int length = scanRecord[i] & 0xff;
+            final int end = i + 1 + length;
+            if (length == 0 || end > scanRecord.length) {
+                break;
+            }
+            final int type = scanRecord[i + 1] & 0xff;
+            final int data = i + 2;
+            switch (type) {
+                case AD_UUID16_INCOMPLETE:
+                case AD_UUID16_COMPLETE:
+                    if (mUuid16 >= 0 && containsUuid16(scanRecord, data, end)) {
+                        return true;
+                    }
+                    break;
+                case AD_UUID32_INCOMPLETE:
+                case AD_UUID32_COMPLETE:
+                    if (mUuid32 >= 0 && containsUuid32(scanRecord, data, end)) {
+                        return true;
+                    }
+                    break;
+                case AD_UUID128_INCOMPLETE:
+                case AD_UUID128_COMPLETE:
+                    if (containsUuid128(scanRecord, data, end)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    // Not a service UUID list
+            }
+            i = end;
+        }
+        return false;
+    }
+
+    private boolean containsUuid16(byte[] record, int start, int end) {
+        for (int i = start; i + 2 <= end; i += 2) {
+            if (((record[i] & 0xff) | (record[i + 1] & 0xff) << 8) == mUuid16) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsUuid32(byte[] record, int start, int end) {
+        for (int i = start; i + 4 <= end; i += 4) {
+            long uuid = (record[i] & 0xffL) | (record[i + 1] & 0xffL) << 8
+                    | (record[i + 2] & 0xffL) << 16 | (record[i + 3] & 0xffL) << 24;
+            if (uuid == mUuid32) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsUuid128(byte[] record, int start, int end) {
+        for (int i = start; i + 16 <= end; i += 16) {
+            int j = 0;
+            while (j < 16 && record[i + j] == mUuid128[j]) {
+                j++;
+            }
+            if (j == 16) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
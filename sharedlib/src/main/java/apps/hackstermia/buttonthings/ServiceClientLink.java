@@ -0,0 +1,103 @@
+package apps.hackstermia.buttonthings;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link GattClientLink} over a pooled connection of {@link BluetoothLeService}, see
+ * {@link BluetoothLeService#getClientLink}.
+ */
+class ServiceClientLink implements GattClientLink, BluetoothLeService.GattEventListener {
+
+    private final BluetoothLeService mService;
+    private final String mAddress;
+    private final Listener mListener;
+
+    ServiceClientLink(BluetoothLeService service, String address, Listener listener) {
+        mService = service;
+        mAddress = address;
+        mListener = listener;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mService.getConnectionState(mAddress) == BluetoothLeService.STATE_CONNECTED;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID characteristic, boolean enabled) {
+        final BluetoothGattCharacteristic target = getCharacteristic(characteristic);
+        return target != null && isQueued(
+                mService.setCharacteristicNotification(mAddress, target, enabled));
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID characteristic, byte[] value, boolean withResponse) {
+        final BluetoothGattCharacteristic target = getCharacteristic(characteristic);
+        return target != null && isQueued(mService.writeCharacteristic(mAddress, target, value,
+                withResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                        : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE));
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID characteristic) {
+        final BluetoothGattCharacteristic target = getCharacteristic(characteristic);
+        return target != null && isQueued(mService.readCharacteristic(mAddress, target));
+    }
+
+    @Override
+    public void close() {
+        mService.removeGattEventListener(this);
+    }
+
+    @Override
+    public void onConnected(String address) {
+        if (mAddress.equals(address)) {
+            mListener.onConnectionStateChange(this, true);
+        }
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        if (mAddress.equals(address)) {
+            mListener.onConnectionStateChange(this, false);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(String address) {
+    }
+
+    @Override
+    public void onDataAvailable(String address, BluetoothGattCharacteristic characteristic,
+                                byte[] value) {
+        if (mAddress.equals(address)) {
+            mListener.onCharacteristicChanged(this, characteristic.getUuid(), value);
+        }
+    }
+
+    private BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        final List<BluetoothGattService> services = mService.getSupportedGattServices(mAddress);
+        if (services == null) {
+            return null;
+        }
+        for (BluetoothGattService service : services) {
+            if (RemoteLedProfile.REMOTE_LED_SERVICE.equals(service.getUuid())) {
+                return service.getCharacteristic(uuid);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isQueued(GattOperation operation) {
+        return !operation.isDone() || operation.getStatus() != GattOperation.STATUS_REJECTED;
+    }
+}
@@ -0,0 +1,138 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks which devices enabled notifications or indications on which characteristic, as
+ * configured through writes to the Client Characteristic Configuration descriptor.
+ * Writers are serialized, readers get an immutable {@link Snapshot} without locking.
+ *
+ * @param <D> the device type, {@code BluetoothDevice} on Android.
+ */
+public class SubscriberRegistry<D> {
+
+    /* Client Characteristic Configuration bits */
+    public static final int FLAG_NONE = 0x00;
+    public static final int FLAG_NOTIFY = 0x01;
+    public static final int FLAG_INDICATE = 0x02;
+
+    /**
+     * Immutable view of the subscribers of one characteristic.
+     */
+    public static final class Snapshot<D> {
+        private final List<D> mDevices;
+        private final int[] mFlags;
+
+        Snapshot(List<D> devices, int[] flags) {
+            mDevices = devices;
+            mFlags = flags;
+        }
+
+        public int size() {
+            return mFlags.length;
+        }
+
+        public D getDevice(int index) {
+            return mDevices.get(index);
+        }
+
+        public int getFlags(int index) {
+            return mFlags[index];
+        }
+
+        public boolean isIndication(int index) {
+            return (mFlags[index] & FLAG_NOTIFY) == 0 && (mFlags[index] & FLAG_INDICATE) != 0;
+        }
+    }
+
+    private final Snapshot<D> mEmpty = new Snapshot<>(new ArrayList<D>(), new int[0]);
+
+    // Authoritative state, guarded by "this".
+    private final Map<UUID, Map<D, Integer>> mSubscriptions = new HashMap<>();
+    // Published copies for the notify path.
+    private final ConcurrentHashMap<UUID, Snapshot<D>> mSnapshots = new ConcurrentHashMap<>();
+
+    /**
+     * Decode a Client Characteristic Configuration value.
+     *
+     * @return the FLAG_ bits, or -1 if the value is malformed.
+     */
+    public static int decodeClientConfig(byte[] value) {
+        if (value == null || value.length != 2 || value[1] != 0) {
+            return -1;
+        }
+        if ((value[0] & ~(FLAG_NOTIFY | FLAG_INDICATE)) != 0) {
+            return -1;
+        }
+        return value[0];
+    }
+
+    /**
+     * Encode FLAG_ bits as a Client Characteristic Configuration value.
+     */
+    public static byte[] encodeClientConfig(int flags) {
+        return new byte[]{(byte) flags, 0};
+    }
+
+    /**
+     * Record the configuration a device wrote for a characteristic.  Writing
+     * {@link #FLAG_NONE} removes the subscription.
+     */
+    public synchronized void setSubscription(UUID characteristic, D device, int flags) {
+        Map<D, Integer> subscribers = mSubscriptions.get(characteristic);
+        if (subscribers == null) {
+            if (flags == FLAG_NONE) return;
+            subscribers = new HashMap<>();
+            mSubscriptions.put(characteristic, subscribers);
+        }
+        if (flags == FLAG_NONE) {
+            subscribers.remove(device);
+        } else {
+            subscribers.put(device, flags);
+        }
+        publish(characteristic, subscribers);
+    }
+
+    /**
+     * Return the configuration of a device for a characteristic, FLAG_NONE if unsubscribed.
+     */
+    public synchronized int getSubscription(UUID characteristic, D device) {
+        Map<D, Integer> subscribers = mSubscriptions.get(characteristic);
+        Integer flags = subscribers == null ? null : subscribers.get(device);
+        return flags == null ? FLAG_NONE : flags;
+    }
+
+    /**
+     * Drop every subscription of a device, e.g. once it disconnected.
+     */
+    public synchronized void removeDevice(D device) {
+        for (Map.Entry<UUID, Map<D, Integer>> entry : mSubscriptions.entrySet()) {
+            if (entry.getValue().remove(device) != null) {
+                publish(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Return the current subscribers of a characteristic.  Never blocks.
+     */
+    public Snapshot<D> getSubscribers(UUID characteristic) {
+        Snapshot<D> snapshot = mSnapshots.get(characteristic);
+        return snapshot == null ? mEmpty : snapshot;
+    }
+
+    private void publish(UUID characteristic, Map<D, Integer> subscribers) {
+        List<D> devices = new ArrayList<>(subscribers.size());
+        int[] flags = new int[subscribers.size()];
+        for (Map.Entry<D, Integer> entry : subscribers.entrySet()) {
+            flags[devices.size()] = entry.getValue();
+            devices.add(entry.getKey());
+        }
+        mSnapshots.put(characteristic, new Snapshot<>(devices, flags));
+    }
+}
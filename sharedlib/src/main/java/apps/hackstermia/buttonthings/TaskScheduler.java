@@ -0,0 +1,13 @@
+package apps.hackstermia.buttonthings;
+
+/**
+ * Runs deferred work for components that must stay independent of the Android looper,
+ * see {@link HandlerTaskScheduler} for the on-device implementation.
+ */
+public interface TaskScheduler {
+    /**
+     * Run the task once after the given delay.  Scheduling a task that is already pending
+     * may run it twice.
+     */
+    void schedule(Runnable task, long delayMillis);
+}
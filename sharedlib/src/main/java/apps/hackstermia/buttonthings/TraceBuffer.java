@@ -0,0 +1,96 @@
+package apps.hackstermia.buttonthings;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed-size ring of the most recent trace spans.  A span is a step id, the correlation id
+ * of the state change it worked on, a start time and a duration, kept in parallel arrays so
+ * recording never allocates.  Once full the oldest spans are overwritten.
+ */
+public class TraceBuffer {
+
+    private final String[] mStepNames;
+    private final int[] mSteps;
+    private final long[] mIds;
+    private final long[] mStarts;
+    private final long[] mDurations;
+    // Guarded by "this".
+    private long mRecorded;
+
+    /**
+     * @param stepNames names of the step ids, indexed by id.
+     * @param capacity number of spans kept.
+     */
+    public TraceBuffer(String[] stepNames, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mStepNames = stepNames;
+        mSteps = new int[capacity];
+        mIds = new long[capacity];
+        mStarts = new long[capacity];
+        mDurations = new long[capacity];
+    }
+
+    /**
+     * @param id correlation id of the state change, 0 if not known.
+     * @param startNanos {@code System.nanoTime()} the span started at.
+     */
+    public synchronized void record(int step, long id, long startNanos, long durationNanos) {
+        final int slot = (int) (mRecorded % mSteps.length);
+        mSteps[slot] = step;
+        mIds[slot] = id;
+        mStarts[slot] = startNanos;
+        mDurations[slot] = durationNanos;
+        mRecorded++;
+    }
+
+    public int getCapacity() {
+        return mSteps.length;
+    }
+
+    /**
+     * Return the number of spans recorded since creation or the last clear, including
+     * those overwritten since.
+     */
+    public synchronized long getRecordedCount() {
+        return mRecorded;
+    }
+
+    public synchronized void clear() {
+        mRecorded = 0;
+    }
+
+    /**
+     * Print the kept spans oldest first, one per line.  Start times are relative to the
+     * oldest span so lines stay short, the ids join spans of one change across devices.
+     */
+    public void dump(PrintWriter writer, String prefix) {
+        final StringBuilder out = new StringBuilder();
+        synchronized (this) {
+            final int count = (int) Math.min(mRecorded, mSteps.length);
+            final long first = mRecorded - count;
+            final long origin = count == 0 ? 0 : mStarts[(int) (first % mSteps.length)];
+            out.append(prefix).append(count).append(" of ").append(mRecorded)
+                    .append(" spans, start and duration in us\n");
+            for (long i = first; i < mRecorded; i++) {
+                final int slot = (int) (i % mSteps.length);
+                out.append(prefix).append('+').append(toMicros(mStarts[slot] - origin))
+                        .append(' ').append(getStepName(mSteps[slot]))
+                        .append(" id=").append(mIds[slot])
+                        .append(" dur=").append(toMicros(mDurations[slot]))
+                        .append('\n');
+            }
+        }
+        writer.print(out);
+    }
+
+    private String getStepName(int step) {
+        return step >= 0 && step < mStepNames.length ? mStepNames[step] : "step " + step;
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,157 @@
+package apps.hackstermia.buttonthings;
+
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.UUID;
+
+/**
+ * Traces the steps between a button press on one device and the LED changing on the other.
+ * Each span opens an {@link Trace} section, visible in Perfetto and systrace, and is kept in a
+ * {@link TraceBuffer} printed by the service and activity dumps.  Spans carry the timestamp
+ * of the state change they worked on, the same one the LED data frame carries, so the spans
+ * of one change can be joined across both devices.
+ *
+ * Tracing is off by default, {@code adb shell setprop log.tag.ButtonTrace VERBOSE} turns it
+ * on at the next start and {@code dumpsys ... trace on|off} at run time.  While off a span
+ * costs one volatile read.
+ */
+public final class Tracer {
+
+    public static final String TAG = "ButtonTrace";
+
+    /* Button edge or key event handled */
+    public static final int STEP_BUTTON = 0;
+    /* State change encoded and handed to the subscribers and peer */
+    public static final int STEP_NOTIFY = 1;
+    /* Notification delivered by the GATT client */
+    public static final int STEP_GATT_CHANGED = 2;
+    /* Data broadcast to legacy receivers */
+    public static final int STEP_BROADCAST = 3;
+    /* Frame received and applied */
+    public static final int STEP_RECEIVE = 4;
+    /* Channel states handed to the actuator */
+    public static final int STEP_LED_WRITE = 5;
+    /* GPIO pin written */
+    public static final int STEP_GPIO_WRITE = 6;
+
+    private static final String[] STEP_NAMES = {"button", "notify", "gatt changed",
+            "broadcast", "receive", "led write", "gpio write"};
+
+    private static final int BUFFER_CAPACITY = 1024;
+
+    private static final TraceBuffer sBuffer = new TraceBuffer(STEP_NAMES, BUFFER_CAPACITY);
+    private static volatile boolean sEnabled = Log.isLoggable(TAG, Log.VERBOSE);
+
+    private Tracer() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Open a span on the calling thread, close it with {@link #end} on the same thread.
+     *
+     * @return the start time to pass to {@link #end}, 0 while tracing is off.
+     */
+    public static long begin(int step) {
+        if (!sEnabled) {
+            return 0;
+        }
+        Trace.beginSection(STEP_NAMES[step]);
+        return System.nanoTime();
+    }
+
+    /**
+     * Close a span opened by {@link #begin}.
+     *
+     * @param id timestamp of the state change, see {@link #getId}.
+     */
+    public static void end(int step, long id, long start) {
+        if (start == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        Trace.endSection();
+        sBuffer.record(step, id, start, now - start);
+    }
+
+    /**
+     * Close a span opened by {@link #begin} that worked on an LED data frame, the id is
+     * only decoded while tracing.
+     */
+    public static void end(int step, byte[] frame, long start) {
+        if (start != 0) {
+            end(step, getId(frame), start);
+        }
+    }
+
+    /**
+     * Close a span opened by {@link #begin} that worked on a characteristic value, the id is
+     * taken from the value if it is LED data.
+     */
+    public static void end(int step, UUID characteristic, byte[] value, long start) {
+        if (start != 0) {
+            end(step, RemoteLedProfile.REMOTE_LED_DATA.equals(characteristic) ? getId(value) : 0,
+                    start);
+        }
+    }
+
+    /**
+     * Record a span timed by the caller, without a trace section.
+     */
+    public static void record(int step, long id, long start, long duration) {
+        if (sEnabled) {
+            sBuffer.record(step, id, start, duration);
+        }
+    }
+
+    /**
+     * Return the correlation id of an LED data frame, its sender's timestamp of the change,
+     * or 0 for legacy and malformed frames.
+     */
+    public static long getId(byte[] frame) {
+        if (frame == null || RemoteLedCodec.getVersion(frame) == RemoteLedCodec.VERSION_INVALID) {
+            return 0;
+        }
+        return RemoteLedCodec.getTimestamp(frame);
+    }
+
+    public static void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "Trace " + (sEnabled ? "on" : "off") + ":");
+        sBuffer.dump(writer, prefix + "  ");
+    }
+
+    /**
+     * Handle {@code trace on}, {@code trace off} and {@code trace clear} dump arguments.
+     *
+     * @return true if the arguments were a trace command.
+     */
+    public static boolean handleDumpArgs(String[] args, PrintWriter writer) {
+        if (args == null || args.length != 2 || !"trace".equals(args[0])) {
+            return false;
+        }
+        switch (args[1]) {
+            case "on":
+                setEnabled(true);
+                break;
+            case "off":
+                setEnabled(false);
+                break;
+            case "clear":
+                sBuffer.clear();
+                break;
+            default:
+                writer.println("Usage: trace on|off|clear");
+                return true;
+        }
+        writer.println("Trace " + args[1]);
+        return true;
+    }
+}
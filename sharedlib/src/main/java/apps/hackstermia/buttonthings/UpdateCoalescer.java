@@ -0,0 +1,152 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges bursts of state updates before they reach an expensive sink such as a GPIO write
+ * or a radio notification.  Updates submitted within the coalescing window collapse into
+ * the latest one, deliveries are spaced at least the minimum interval apart, and a state
+ * equal to the last delivered one is not delivered again.  A state the sink rejects stays
+ * pending and is delivered again, or replaced by a later one, after the window.
+ */
+public class UpdateCoalescer {
+
+    /**
+     * Receives the coalesced state, always on the scheduler's thread.
+     */
+    public interface Sink {
+        /**
+         * @return false if the state could not be applied, e.g. a full queue, and should be
+         * delivered again.
+         */
+        boolean onUpdate(int state);
+    }
+
+    private final TaskScheduler mScheduler;
+    private final Sink mSink;
+
+    // Guarded by "this".
+    private long mWindowNanos;
+    private long mMinIntervalNanos;
+    private int mLatest;
+    private boolean mScheduled;
+    private boolean mHasDelivered;
+    private int mLastDelivered;
+    private long mLastDeliveryNanos;
+    private long mSubmittedCount;
+    private long mDeliveredCount;
+    private long mMergedCount;
+    private long mRejectedCount;
+
+    /**
+     * @param windowMillis how long to wait for further updates after the first one.
+     * @param minIntervalMillis minimum time between two deliveries.
+     */
+    public UpdateCoalescer(TaskScheduler scheduler, long windowMillis, long minIntervalMillis,
+                           Sink sink) {
+        mScheduler = scheduler;
+        mSink = sink;
+        setWindow(windowMillis);
+        setMinInterval(minIntervalMillis);
+    }
+
+    public synchronized void setWindow(long windowMillis) {
+        mWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    public synchronized void setMinInterval(long minIntervalMillis) {
+        mMinIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+    }
+
+    /**
+     * Submit a new state.  Safe to call from any thread.
+     */
+    public void submit(int state) {
+        long delayNanos;
+        synchronized (this) {
+            mSubmittedCount++;
+            mLatest = state;
+            if (mScheduled) {
+                mMergedCount++;
+                return;
+            }
+            mScheduled = true;
+            delayNanos = mWindowNanos;
+            if (mHasDelivered) {
+                long nextAllowed = mLastDeliveryNanos + mMinIntervalNanos;
+                delayNanos = Math.max(delayNanos, nextAllowed - System.nanoTime());
+            }
+        }
+        mScheduler.schedule(mFlush, TimeUnit.NANOSECONDS.toMillis(Math.max(0, delayNanos)));
+    }
+
+    public synchronized long getSubmittedCount() {
+        return mSubmittedCount;
+    }
+
+    public synchronized long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /**
+     * Return the number of deliveries the sink rejected, each was retried.
+     */
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Return the number of submitted updates that were merged into a later one or dropped
+     * because they did not change the delivered state.
+     */
+    public synchronized long getMergedCount() {
+        return mMergedCount;
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            int state;
+            boolean hadDelivered;
+            int previous;
+            synchronized (UpdateCoalescer.this) {
+                mScheduled = false;
+                state = mLatest;
+                if (mHasDelivered && state == mLastDelivered) {
+                    mMergedCount++;
+                    return;
+                }
+                hadDelivered = mHasDelivered;
+                previous = mLastDelivered;
+                mHasDelivered = true;
+                mLastDelivered = state;
+                mLastDeliveryNanos = System.nanoTime();
+                mDeliveredCount++;
+            }
+            if (!mSink.onUpdate(state)) {
+                retry(state, hadDelivered, previous);
+            }
+        }
+    };
+
+    /**
+     * Put a rejected state back, so neither it nor a resubmit of it is suppressed as already
+     * delivered, and schedule another delivery unless a submit already did.
+     */
+    private void retry(int state, boolean hadDelivered, int previous) {
+        long delayNanos;
+        synchronized (this) {
+            mRejectedCount++;
+            if (mLastDelivered == state) {
+                mHasDelivered = hadDelivered;
+                mLastDelivered = previous;
+            }
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+            delayNanos = Math.max(mWindowNanos, mMinIntervalNanos);
+        }
+        mScheduler.schedule(mFlush, Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayNanos)));
+    }
+}
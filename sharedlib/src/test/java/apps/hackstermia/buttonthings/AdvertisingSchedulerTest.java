@@ -0,0 +1,97 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AdvertisingSchedulerTest {
+    private final List<Runnable> mTasks = new ArrayList<>();
+    private final List<Integer> mStarted = new ArrayList<>();
+    private boolean mUpdatable = true;
+    private int mStops;
+    private AdvertisingScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new AdvertisingScheduler(new AdvertisingScheduler.Advertiser() {
+            @Override
+            public boolean start(int mode) {
+                mStarted.add(mode);
+                return true;
+            }
+
+            @Override
+            public boolean update() {
+                return mUpdatable;
+            }
+
+            @Override
+            public void stop() {
+                mStops++;
+            }
+        }, new TaskScheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                mTasks.add(task);
+            }
+        });
+    }
+
+    private void runTasks() {
+        List<Runnable> tasks = new ArrayList<>(mTasks);
+        mTasks.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void fastAfterStartThenSlow() {
+        mScheduler.start();
+        assertEquals(AdvertisingScheduler.MODE_FAST, mScheduler.getMode());
+        runTasks();
+        assertEquals(AdvertisingScheduler.MODE_SLOW, mScheduler.getMode());
+        assertEquals(2, mStarted.size());
+    }
+
+    @Test
+    public void stopsWhileExpectedPeersConnected() {
+        mScheduler.start();
+        runTasks();
+        mScheduler.onPeerConnected("a");
+        assertEquals(AdvertisingScheduler.MODE_OFF, mScheduler.getMode());
+
+        // A disconnect restarts the fast window, a stale window end is ignored.
+        mScheduler.onPeerDisconnected("a");
+        assertEquals(AdvertisingScheduler.MODE_FAST, mScheduler.getMode());
+        mScheduler.onPeerConnected("b");
+        mScheduler.onPeerDisconnected("b");
+        assertEquals(2, mTasks.size());
+        mTasks.remove(1).run();
+        mTasks.remove(0).run();
+        assertEquals(AdvertisingScheduler.MODE_SLOW, mScheduler.getMode());
+
+        // Broadcasting keeps a slow advertisement up for observers.
+        mScheduler.setBroadcasting(true);
+        mScheduler.onPeerConnected("a");
+        assertEquals(AdvertisingScheduler.MODE_SLOW, mScheduler.getMode());
+    }
+
+    @Test
+    public void refreshUpdatesDataInPlaceWhereSupported() {
+        mScheduler.start();
+        mScheduler.refresh();
+        assertEquals(1, mStarted.size());
+        assertEquals(0, mStops);
+
+        mUpdatable = false;
+        mScheduler.refresh();
+        assertEquals(2, mStarted.size());
+        assertEquals(1, mStops);
+        assertEquals(AdvertisingScheduler.MODE_FAST, mScheduler.getMode());
+    }
+}
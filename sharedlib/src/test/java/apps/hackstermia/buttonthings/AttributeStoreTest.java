@@ -0,0 +1,39 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class AttributeStoreTest {
+    private static final UUID DATA = RemoteLedProfile.REMOTE_LED_DATA;
+
+    @Test
+    public void putVersionsAndCopiesValues() {
+        AttributeStore store = new AttributeStore();
+        assertNull(store.get(DATA));
+        assertEquals(0, store.getVersion(DATA));
+
+        byte[] value = {1, 2, 3, 4};
+        AttributeStore.Snapshot first = store.put(DATA, value, 3);
+        value[0] = 9;
+        AttributeStore.Snapshot second = store.put(DATA, value, 4);
+
+        assertEquals(1, first.getVersion());
+        assertEquals(2, second.getVersion());
+        assertSame(second, store.get(DATA));
+        assertArrayEquals(new byte[]{1, 2, 3}, first.read(0));
+        assertArrayEquals(new byte[]{9, 2, 3, 4}, second.read(0));
+    }
+
+    @Test
+    public void readHonoursOffset() {
+        AttributeStore.Snapshot snapshot = new AttributeStore().put(DATA, new byte[]{1, 2, 3}, 3);
+
+        assertArrayEquals(new byte[]{3}, snapshot.read(2));
+        assertArrayEquals(new byte[0], snapshot.read(3));
+        assertNull(snapshot.read(4));
+        assertNull(snapshot.read(-1));
+    }
+}
@@ -0,0 +1,33 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClockOffsetEstimatorTest {
+
+    @Test
+    public void offsetFromSymmetricRoundTrip() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        assertFalse(estimator.hasEstimate());
+        // Peer runs 500 ms ahead, 20 ms each way.
+        estimator.addSample(1000, 1520, 1040);
+        assertTrue(estimator.hasEstimate());
+        assertEquals(500, estimator.getOffset());
+        assertEquals(40, estimator.getRoundTrip());
+        assertEquals(1000, estimator.toLocalTime(1500));
+    }
+
+    @Test
+    public void prefersShortestRoundTrip() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        // Delayed response inflates the apparent offset.
+        estimator.addSample(1000, 1600, 1200);
+        estimator.addSample(2000, 2510, 2020);
+        // Clock went backwards, ignored.
+        estimator.addSample(3000, 3500, 2990);
+        assertEquals(2, estimator.getSampleCount());
+        assertEquals(500, estimator.getOffset());
+        assertEquals(20, estimator.getRoundTrip());
+    }
+}
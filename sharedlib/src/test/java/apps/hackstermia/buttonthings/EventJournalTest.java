@@ -0,0 +1,81 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventJournalTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static List<Long> sequences(EventJournal journal) throws IOException {
+        final List<Long> sequences = new ArrayList<>();
+        journal.replay(new EventJournal.Visitor() {
+            @Override
+            public void onRecord(long sequence, int type, int state, int value, long timestamp) {
+                sequences.add(sequence);
+            }
+        });
+        return sequences;
+    }
+
+    @Test
+    public void restoresStateAfterSnapshot() throws IOException {
+        File dir = mFolder.newFolder();
+        EventJournal journal = EventJournal.open(dir, 16, 4, 2);
+        assertFalse(journal.isRestored());
+        for (int i = 1; i <= 6; i++) {
+            assertTrue(journal.append(EventJournal.TYPE_BUTTON, i, 1, 1000 + i));
+        }
+        // Not closed, as after a crash: records after the snapshot are replayed.
+        EventJournal restored = EventJournal.open(dir, 16, 4, 2);
+        assertTrue(restored.isRestored());
+        assertEquals(6, restored.getSequence());
+        assertEquals(6, restored.getState());
+
+        restored.append(EventJournal.TYPE_LED_WRITE, 7, 1, 2000);
+        assertEquals(7, restored.getSequence());
+    }
+
+    @Test
+    public void rotatesAndDropsOldSegments() throws IOException {
+        File dir = mFolder.newFolder();
+        EventJournal journal = EventJournal.open(dir, 4, 2, 2);
+        for (int i = 1; i <= 10; i++) {
+            journal.append(EventJournal.TYPE_REMOTE_STATE, i, i, i);
+        }
+        journal.close();
+        assertFalse(journal.append(EventJournal.TYPE_BUTTON, 0, 0, 0));
+
+        EventJournal restored = EventJournal.open(dir, 4, 2, 2);
+        assertEquals(10, restored.getState());
+        // Segments 1 and 2 are kept, segment 0 was deleted.
+        assertEquals("[5, 6, 7, 8, 9, 10]", sequences(restored).toString());
+    }
+
+    @Test
+    public void tornRecordEndsReplay() throws IOException {
+        File dir = mFolder.newFolder();
+        EventJournal journal = EventJournal.open(dir, 16, 100, 2);
+        for (int i = 1; i <= 3; i++) {
+            journal.append(EventJournal.TYPE_BUTTON, i, 1, i);
+        }
+        journal.flush();
+        RandomAccessFile segment = new RandomAccessFile(new File(dir, "segment-0"), "rw");
+        segment.seek(2 * EventJournal.RECORD_SIZE + 4);
+        segment.writeInt(99);
+        segment.close();
+
+        EventJournal restored = EventJournal.open(dir, 16, 100, 2);
+        assertEquals(2, restored.getSequence());
+        assertEquals(2, restored.getState());
+    }
+}
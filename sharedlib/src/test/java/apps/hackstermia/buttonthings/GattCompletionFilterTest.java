@@ -0,0 +1,81 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GattCompletionFilterTest {
+    private static final long TIMEOUT = 1000;
+
+    private GattCompletionFilter mFilter;
+
+    @Before
+    public void setUp() {
+        mFilter = new GattCompletionFilter();
+    }
+
+    @Test
+    public void completionInTime_isAccepted() {
+        mFilter.onIssued();
+        assertFalse(mFilter.isStale(100));
+        assertFalse(mFilter.onFinished());
+        assertFalse(mFilter.isLeftover(200));
+    }
+
+    @Test
+    public void retryAfterTimeout_dropsFirstAttemptsResult() {
+        mFilter.onIssued();
+        mFilter.onTimedOut(1000, TIMEOUT);
+        // The retry goes out while the first request is still outstanding.
+        mFilter.onIssued();
+
+        // The late result of the first attempt, then the retry's own.
+        assertTrue(mFilter.isStale(1500));
+        assertFalse(mFilter.isStale(1600));
+        assertFalse(mFilter.onFinished());
+
+        // Nothing is left to swallow the next operation's completion.
+        mFilter.onIssued();
+        assertFalse(mFilter.isLeftover(1700));
+        assertFalse(mFilter.isStale(1700));
+    }
+
+    @Test
+    public void lostFirstAttempt_acceptsRetryOnceWindowPassed() {
+        mFilter.onIssued();
+        mFilter.onTimedOut(1000, TIMEOUT);
+        mFilter.onIssued();
+
+        // The first request never answers, by now it is taken to be lost.
+        assertFalse(mFilter.isStale(2500));
+        assertFalse(mFilter.onFinished());
+    }
+
+    @Test
+    public void givenUpOperation_swallowsItsLateResultOnly() {
+        mFilter.onIssued();
+        mFilter.onTimedOut(1000, TIMEOUT);
+        mFilter.onIssued();
+        mFilter.onTimedOut(2000, TIMEOUT);
+        // Out of retries, both requests are unanswered.
+        assertTrue(mFilter.onFinished());
+
+        mFilter.onIssued();
+        assertTrue(mFilter.isLeftover(2100));
+        assertTrue(mFilter.isLeftover(2200));
+        assertFalse(mFilter.isLeftover(2300));
+        assertFalse(mFilter.isStale(2300));
+    }
+
+    @Test
+    public void leftover_expiresAfterWindow() {
+        mFilter.onIssued();
+        mFilter.onTimedOut(1000, TIMEOUT);
+        assertTrue(mFilter.onFinished());
+
+        mFilter.onIssued();
+        assertFalse(mFilter.isLeftover(2000));
+        assertFalse(mFilter.isStale(2000));
+    }
+}
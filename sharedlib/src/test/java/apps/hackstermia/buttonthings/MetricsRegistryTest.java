@@ -0,0 +1,91 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void metricsAreCreatedOnceByName() {
+        MetricsRegistry registry = new MetricsRegistry();
+
+        assertSame(registry.counter("a"), registry.counter("a"));
+        assertNotSame(registry.counter("a"), registry.counter("b"));
+        assertSame(registry.keyedCounter("k"), registry.keyedCounter("k"));
+        assertSame(registry.histogram("h"), registry.histogram("h"));
+        assertEquals("h", registry.histogram("h").getName());
+    }
+
+    @Test
+    public void countersSumConcurrentIncrements() throws InterruptedException {
+        MetricsRegistry registry = new MetricsRegistry();
+        final MetricsRegistry.Counter counter = registry.counter("count");
+        final MetricsRegistry.KeyedCounter status = registry.keyedCounter("status");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                        status.increment(j % 2 == 0 ? 0 : 133);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, counter.get());
+        assertEquals(20000, status.get(0));
+        assertEquals(20000, status.get(133));
+        assertEquals(0, status.get(257));
+    }
+
+    @Test
+    public void gaugesAreReadOnDumpAndOnlyRemovedByTheirOwner() {
+        MetricsRegistry registry = new MetricsRegistry();
+        final long[] depth = {3};
+        MetricsRegistry.Gauge first = new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return depth[0];
+            }
+        };
+        MetricsRegistry.Gauge second = new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        };
+        registry.gauge("queue", first);
+        depth[0] = 5;
+        assertEquals(5, registry.getGauge("queue"));
+
+        registry.gauge("queue", second);
+        registry.removeGauge("queue", first);
+        assertEquals(7, registry.getGauge("queue"));
+        registry.removeGauge("queue", second);
+        assertEquals(0, registry.getGauge("queue"));
+
+        registry.gauge("queue", first);
+        registry.counter("sent").add(2);
+        registry.keyedCounter("status").increment(133);
+        registry.keyedCounter("status").increment(0);
+        registry.histogram("write").record(1000);
+        StringWriter out = new StringWriter();
+        registry.dump(new PrintWriter(out), "  ");
+        String dump = out.toString();
+
+        assertTrue(dump, dump.contains("  sent=2\n"));
+        assertTrue(dump, dump.contains("  status={0=1, 133=1}\n"));
+        assertTrue(dump, dump.contains("  queue=5\n"));
+        assertTrue(dump, dump.contains("  write: count=1"));
+    }
+}
@@ -0,0 +1,129 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class NotificationFanoutTest {
+    private static final UUID DATA = RemoteLedProfile.REMOTE_LED_DATA;
+
+    private final List<Runnable> mTasks = new ArrayList<>();
+    private final List<Integer> mSent = new ArrayList<>();
+    private boolean mAccepting = true;
+    private NotificationFanout<String> mFanout;
+
+    @Before
+    public void setUp() {
+        SubscriberRegistry<String> registry = new SubscriberRegistry<>();
+        registry.setSubscription(DATA, "a", SubscriberRegistry.FLAG_NOTIFY);
+        mFanout = new NotificationFanout<>(registry, DATA,
+                new NotificationFanout.Transport<String>() {
+                    @Override
+                    public boolean send(String device, byte[] value, int length,
+                                        boolean confirm) {
+                        if (!mAccepting) {
+                            return false;
+                        }
+                        mSent.add((int) value[0]);
+                        return true;
+                    }
+                }, 1);
+        mFanout.setRateLimit(0, new TaskScheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                mTasks.add(task);
+            }
+        });
+    }
+
+    private void publish(int state) {
+        mFanout.publish(new byte[]{(byte) state}, 1);
+    }
+
+    private void runTasks() {
+        List<Runnable> tasks = new ArrayList<>(mTasks);
+        mTasks.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void nextNotification_waitsForAcknowledgement() {
+        publish(1);
+        publish(2);
+        assertEquals(Arrays.asList(1), mSent);
+
+        mFanout.onNotificationSent("a", GattServerLink.STATUS_SUCCESS);
+        assertEquals(Arrays.asList(1, 2), mSent);
+        // Nothing left to send.
+        mFanout.onNotificationSent("a", GattServerLink.STATUS_SUCCESS);
+        assertEquals(2, mFanout.getSentCount());
+    }
+
+    @Test
+    public void staleStates_areSkipped() {
+        publish(1);
+        publish(2);
+        publish(3);
+        publish(4);
+        mFanout.onNotificationSent("a", GattServerLink.STATUS_SUCCESS);
+
+        assertEquals(Arrays.asList(1, 4), mSent);
+        assertEquals(2, mFanout.getSkippedCount());
+    }
+
+    @Test
+    public void rejectedNotification_isRetried() {
+        mAccepting = false;
+        publish(1);
+        assertTrue(mSent.isEmpty());
+        assertEquals(1, mFanout.getRejectedCount());
+        assertEquals(1, mTasks.size());
+
+        // Still congested, offered again later.
+        runTasks();
+        assertEquals(1, mTasks.size());
+
+        mAccepting = true;
+        runTasks();
+        assertEquals(Arrays.asList(1), mSent);
+    }
+
+    @Test
+    public void lostAcknowledgement_timesOut() {
+        publish(1);
+        publish(2);
+        assertEquals(Arrays.asList(1), mSent);
+
+        // The ack timeout armed by the first notification.
+        runTasks();
+        assertEquals(Arrays.asList(1, 2), mSent);
+        assertEquals(1, mFanout.getAckTimeoutCount());
+
+        // Acknowledged in time, the timeout only re-arms for it.
+        mFanout.onNotificationSent("a", GattServerLink.STATUS_SUCCESS);
+        publish(3);
+        runTasks();
+        assertEquals(Arrays.asList(1, 2, 3), mSent);
+        assertEquals(1, mFanout.getAckTimeoutCount());
+    }
+
+    @Test
+    public void removedDevice_isNotRetried() {
+        mAccepting = false;
+        publish(1);
+        mFanout.removeDevice("a");
+        mAccepting = true;
+        runTasks();
+
+        assertTrue(mSent.isEmpty());
+        assertTrue(mTasks.isEmpty());
+    }
+}
@@ -0,0 +1,34 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class PeerDirectoryTest {
+    private static final UUID SERVICE = UUID.fromString("00001805-0000-1000-8000-00805f9b34fb");
+    private static final UUID DATA = UUID.fromString("00002a2b-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void encode_roundTrips() {
+        PeerDirectory.Peer peer = new PeerDirectory.Peer("00:11:22:33:44:55", 1571234567890L,
+                true, Collections.singleton(SERVICE + "/" + DATA));
+        PeerDirectory.Peer decoded = PeerDirectory.decode(peer.getAddress(),
+                PeerDirectory.encode(peer));
+
+        assertNotNull(decoded);
+        assertEquals(1571234567890L, decoded.getLastSeen());
+        assertTrue(decoded.isBonded());
+        assertTrue(decoded.hasCharacteristic(SERVICE, DATA));
+        assertFalse(decoded.hasCharacteristic(DATA, SERVICE));
+    }
+
+    @Test
+    public void decode_rejectsMalformedValues() {
+        assertNull(PeerDirectory.decode("a", "garbage"));
+        assertNull(PeerDirectory.decode("a", "x;1;"));
+        assertFalse(PeerDirectory.decode("a", "5;0;").isLayoutKnown());
+    }
+}
@@ -0,0 +1,32 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+
+    @Test
+    public void delayGrowsWithinJitterBoundsUpToCap() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 200, new Random(42));
+        long[] nominal = {100, 200, 400, 800, 1000, 1000};
+        for (int attempt = 0; attempt < nominal.length; attempt++) {
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.getDelay(attempt);
+                assertTrue(delay >= nominal[attempt] / 2);
+                assertTrue(delay <= nominal[attempt]);
+            }
+        }
+        long capped = policy.getDelay(100);
+        assertTrue(capped >= 500 && capped <= 1000);
+    }
+
+    @Test
+    public void budgetIsEnforced() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 3, new Random(42));
+        assertTrue(policy.getDelay(2) >= 0);
+        assertEquals(-1, policy.getDelay(3));
+    }
+}
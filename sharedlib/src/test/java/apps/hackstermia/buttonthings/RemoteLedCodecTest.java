@@ -0,0 +1,87 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RemoteLedCodecTest {
+    @Test
+    public void encode_roundTrips() {
+        byte[] frame = new byte[RemoteLedCodec.FRAME_LENGTH];
+        long timestamp = 1571234567890L;
+
+        assertEquals(RemoteLedCodec.FRAME_LENGTH,
+                RemoteLedCodec.encode(frame, 0, true, 0xBEEF, timestamp));
+
+        assertEquals(RemoteLedCodec.VERSION, RemoteLedCodec.getVersion(frame));
+        assertTrue(RemoteLedCodec.isLedOn(frame));
+        assertEquals(0xBEEF, RemoteLedCodec.getSequence(frame));
+        assertEquals(timestamp, RemoteLedCodec.getTimestamp(frame));
+    }
+
+    @Test
+    public void encodeChannels_roundTrips() {
+        byte[] frame = new byte[RemoteLedCodec.CHANNEL_FRAME_LENGTH];
+
+        assertEquals(RemoteLedCodec.CHANNEL_FRAME_LENGTH,
+                RemoteLedCodec.encodeChannels(frame, 0, 32, 0x80000005, 0x80000004, 7, 42L));
+
+        assertEquals(RemoteLedCodec.VERSION_CHANNELS, RemoteLedCodec.getVersion(frame));
+        assertEquals(32, RemoteLedCodec.getChannelCount(frame));
+        assertEquals(0x80000005, RemoteLedCodec.getChannelStates(frame));
+        assertEquals(0x80000004, RemoteLedCodec.getChangedChannels(frame));
+        assertTrue(RemoteLedCodec.isLedOn(frame));
+        assertEquals(7, RemoteLedCodec.getSequence(frame));
+        assertEquals(42L, RemoteLedCodec.getTimestamp(frame));
+
+        // A version 1 frame is channel 0 alone.
+        byte[] single = new byte[RemoteLedCodec.FRAME_LENGTH];
+        RemoteLedCodec.encode(single, 0, true, 1, 0);
+        assertEquals(1, RemoteLedCodec.getChannelCount(single));
+        assertEquals(1, RemoteLedCodec.getChannelStates(single));
+        assertEquals(1, RemoteLedCodec.getChangedChannels(single));
+    }
+
+    @Test
+    public void decode_acceptsLegacyText() {
+        assertEquals(RemoteLedCodec.VERSION_LEGACY, RemoteLedCodec.getVersion("true".getBytes()));
+        assertTrue(RemoteLedCodec.isLedOn("true".getBytes()));
+        assertFalse(RemoteLedCodec.isLedOn("false".getBytes()));
+        assertEquals(0, RemoteLedCodec.getSequence("false".getBytes()));
+    }
+
+    @Test
+    public void decode_rejectsTruncatedFrames() {
+        assertEquals(RemoteLedCodec.VERSION_INVALID, RemoteLedCodec.getVersion(null));
+        assertEquals(RemoteLedCodec.VERSION_INVALID,
+                RemoteLedCodec.getVersion(new byte[]{RemoteLedCodec.VERSION, 1}));
+    }
+
+    @Test
+    public void encodeBroadcast_roundTrips() {
+        byte[] data = new byte[RemoteLedCodec.BROADCAST_LENGTH];
+
+        assertEquals(RemoteLedCodec.BROADCAST_LENGTH,
+                RemoteLedCodec.encodeBroadcast(data, 0, true, 0x1234, 0xCAFE));
+
+        assertTrue(RemoteLedCodec.isBroadcast(data));
+        assertTrue(RemoteLedCodec.isBroadcastLedOn(data));
+        assertEquals(0x1234, RemoteLedCodec.getBroadcastSequence(data));
+        assertEquals(0xCAFE, RemoteLedCodec.getBroadcastDeviceId(data));
+        assertEquals(-1, RemoteLedCodec.getBroadcastDeviceId(new byte[]{RemoteLedCodec.VERSION}));
+    }
+
+    @Test
+    public void isNewer_handlesWrapAround() {
+        assertTrue(RemoteLedCodec.isNewer(1, 0));
+        assertTrue(RemoteLedCodec.isNewer(0, 0xFFFF));
+        assertFalse(RemoteLedCodec.isNewer(0xFFFF, 0));
+        assertFalse(RemoteLedCodec.isNewer(5, 5));
+    }
+
+    @Test
+    public void appendHex_formatsBytes() {
+        assertEquals("01 AB ",
+                RemoteLedCodec.appendHex(new byte[]{1, (byte) 0xAB}, new StringBuilder()).toString());
+    }
+}
@@ -0,0 +1,118 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RemoteLedServerTest {
+    private static final UUID DATA = RemoteLedProfile.REMOTE_LED_DATA;
+
+    private final List<String> mNotified = new ArrayList<>();
+    private final List<Integer> mStatuses = new ArrayList<>();
+    private final List<byte[]> mResponses = new ArrayList<>();
+    private RemoteLedServer<String> mServer;
+
+    @Before
+    public void setUp() {
+        mServer = new RemoteLedServer<>(new GattServerLink<String>() {
+            @Override
+            public boolean notifyCharacteristicChanged(String device, UUID characteristic,
+                                                       byte[] value, int length,
+                                                       boolean confirm) {
+                mNotified.add(device + ":" + RemoteLedCodec.getSequence(value));
+                return true;
+            }
+
+            @Override
+            public void sendResponse(String device, int requestId, int status, int offset,
+                                     byte[] value) {
+                mStatuses.add(status);
+                mResponses.add(value);
+            }
+        });
+    }
+
+    private byte[] frame(int sequence) {
+        byte[] frame = new byte[RemoteLedCodec.FRAME_LENGTH];
+        RemoteLedCodec.encode(frame, 0, true, sequence, 1000);
+        return frame;
+    }
+
+    @Test
+    public void notifiesSubscribersOnly() {
+        mServer.onDescriptorWriteRequest("a", 1, DATA, RemoteLedProfile.CLIENT_CONFIG, false,
+                true, 0, SubscriberRegistry.encodeClientConfig(SubscriberRegistry.FLAG_NOTIFY));
+        assertEquals(Integer.valueOf(GattServerLink.STATUS_SUCCESS), mStatuses.get(0));
+        assertEquals(1, mServer.getSubscriberCount());
+
+        mServer.publish(mServer.setValue(frame(1), RemoteLedCodec.FRAME_LENGTH));
+        // Held back until the first notification is acknowledged.
+        mServer.publish(mServer.setValue(frame(2), RemoteLedCodec.FRAME_LENGTH));
+        mServer.onNotificationSent("a", GattServerLink.STATUS_SUCCESS);
+        assertEquals("[a:1, a:2]", mNotified.toString());
+
+        mServer.onConnectionStateChange("a", false);
+        assertEquals(0, mServer.getSubscriberCount());
+    }
+
+    @Test
+    public void readsHonourOffset() {
+        mServer.setValue(frame(3), RemoteLedCodec.FRAME_LENGTH);
+        mServer.onCharacteristicReadRequest("a", 1, 2, DATA);
+        mServer.onCharacteristicReadRequest("a", 2, RemoteLedCodec.FRAME_LENGTH + 1, DATA);
+
+        assertEquals(RemoteLedCodec.FRAME_LENGTH - 2, mResponses.get(0).length);
+        assertEquals(Integer.valueOf(GattServerLink.STATUS_INVALID_OFFSET), mStatuses.get(1));
+    }
+
+    @Test
+    public void longRead_staysOnFirstSnapshot() {
+        mServer.setValue(frame(5), RemoteLedCodec.FRAME_LENGTH);
+        mServer.onCharacteristicReadRequest("a", 1, 0, DATA);
+        // The value changes between the parts of the read.
+        mServer.setValue(frame(6), RemoteLedCodec.FRAME_LENGTH);
+        mServer.onCharacteristicReadRequest("a", 2, 2, DATA);
+        // Another device's read starts on the new value.
+        mServer.onCharacteristicReadRequest("b", 3, 0, DATA);
+
+        byte[] first = frame(5);
+        byte[] tail = mResponses.get(1);
+        for (int i = 0; i < tail.length; i++) {
+            assertEquals(first[i + 2], tail[i]);
+        }
+        assertEquals(6, RemoteLedCodec.getSequence(mResponses.get(2)));
+
+        // Once disconnected, the next read is served from the current value.
+        mServer.onConnectionStateChange("a", false);
+        mServer.onCharacteristicReadRequest("a", 4, 0, DATA);
+        assertEquals(6, RemoteLedCodec.getSequence(mResponses.get(3)));
+    }
+
+    @Test
+    public void commandsNeedListener() {
+        mServer.onCharacteristicWriteRequest("a", 1, RemoteLedProfile.REMOTE_LED_COMMAND,
+                false, true, 0, frame(4));
+        final List<String> commands = new ArrayList<>();
+        mServer.setCommandListener(new RemoteLedServer.CommandListener<String>() {
+            @Override
+            public boolean onCommand(String device, byte[] value) {
+                commands.add(device + ":" + RemoteLedCodec.getSequence(value));
+                return true;
+            }
+        });
+        mServer.onCharacteristicWriteRequest("a", 2, RemoteLedProfile.REMOTE_LED_COMMAND,
+                true, true, 0, frame(5));
+        mServer.onCharacteristicWriteRequest("a", 3, RemoteLedProfile.REMOTE_LED_COMMAND,
+                false, true, 0, frame(6));
+
+        assertEquals("[a:6]", commands.toString());
+        assertEquals("[" + GattServerLink.STATUS_FAILURE + ", "
+                + GattServerLink.STATUS_REQUEST_NOT_SUPPORTED + ", "
+                + GattServerLink.STATUS_SUCCESS + "]", mStatuses.toString());
+    }
+}
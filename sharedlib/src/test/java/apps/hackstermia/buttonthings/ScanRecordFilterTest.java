@@ -0,0 +1,40 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ScanRecordFilterTest {
+
+    @Test
+    public void matchesShortServiceUuid() {
+        ScanRecordFilter filter = new ScanRecordFilter(RemoteLedProfile.REMOTE_LED_SERVICE);
+        // Flags, then a complete list of 0x180f and 0x1805.
+        byte[] record = {0x02, 0x01, 0x06, 0x05, 0x03, 0x0f, 0x18, 0x05, 0x18, 0x00, 0x00};
+        assertTrue(filter.matches(record));
+        record[7] = 0x06;
+        assertFalse(filter.matches(record));
+        assertFalse(filter.matches(null));
+        // Truncated structure.
+        assertFalse(filter.matches(new byte[]{0x09, 0x03, 0x05, 0x18}));
+    }
+
+    @Test
+    public void matchesFullServiceUuid() {
+        UUID uuid = UUID.fromString("b8a10001-5f2c-4d3a-9c61-3a1f0e7d2b40");
+        ScanRecordFilter filter = new ScanRecordFilter(uuid);
+        byte[] record = new byte[18];
+        record[0] = 17;
+        record[1] = 0x07;
+        long lsb = uuid.getLeastSignificantBits();
+        long msb = uuid.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            record[2 + i] = (byte) (lsb >>> (8 * i));
+            record[10 + i] = (byte) (msb >>> (8 * i));
+        }
+        assertTrue(filter.matches(record));
+        assertFalse(new ScanRecordFilter(RemoteLedProfile.REMOTE_LED_SERVICE).matches(record));
+    }
+}
@@ -0,0 +1,49 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class TraceBufferTest {
+    private static final String[] STEPS = {"notify", "receive"};
+
+    @Test
+    public void dumpListsSpansOldestFirst() {
+        TraceBuffer buffer = new TraceBuffer(STEPS, 4);
+        buffer.record(0, 1234, 5000000, 20000);
+        buffer.record(1, 1234, 7000000, 3000);
+
+        assertEquals("  2 of 2 spans, start and duration in us\n"
+                + "  +0 notify id=1234 dur=20\n"
+                + "  +2000 receive id=1234 dur=3\n", dump(buffer));
+    }
+
+    @Test
+    public void oldestSpansAreOverwritten() {
+        TraceBuffer buffer = new TraceBuffer(STEPS, 2);
+        for (int i = 1; i <= 5; i++) {
+            buffer.record(i % 2, i, i * 1000L, 0);
+        }
+
+        assertEquals(5, buffer.getRecordedCount());
+        assertEquals("  2 of 5 spans, start and duration in us\n"
+                + "  +0 notify id=4 dur=0\n"
+                + "  +1 receive id=5 dur=0\n", dump(buffer));
+
+        buffer.clear();
+        buffer.record(7, 9, 0, 0);
+        assertEquals("  1 of 1 spans, start and duration in us\n"
+                + "  +0 step 7 id=9 dur=0\n", dump(buffer));
+    }
+
+    private static String dump(TraceBuffer buffer) {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        buffer.dump(writer, "  ");
+        writer.flush();
+        return out.toString();
+    }
+}
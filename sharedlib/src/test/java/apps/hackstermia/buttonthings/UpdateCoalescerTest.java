@@ -0,0 +1,86 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UpdateCoalescerTest {
+    private final List<Runnable> mTasks = new ArrayList<>();
+    private final List<Integer> mDelivered = new ArrayList<>();
+    private boolean mAccepting = true;
+    private UpdateCoalescer mCoalescer;
+
+    @Before
+    public void setUp() {
+        TaskScheduler scheduler = new TaskScheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                mTasks.add(task);
+            }
+        };
+        mCoalescer = new UpdateCoalescer(scheduler, 10, 0, new UpdateCoalescer.Sink() {
+            @Override
+            public boolean onUpdate(int state) {
+                mDelivered.add(state);
+                return mAccepting;
+            }
+        });
+    }
+
+    private void runTasks() {
+        List<Runnable> tasks = new ArrayList<>(mTasks);
+        mTasks.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void burst_deliversLatestOnly() {
+        mCoalescer.submit(1);
+        mCoalescer.submit(0);
+        mCoalescer.submit(1);
+        assertEquals(1, mTasks.size());
+
+        runTasks();
+
+        assertEquals(1, mDelivered.size());
+        assertEquals(1, (int) mDelivered.get(0));
+        assertEquals(2, mCoalescer.getMergedCount());
+    }
+
+    @Test
+    public void unchangedState_isNotDeliveredAgain() {
+        mCoalescer.submit(1);
+        runTasks();
+        mCoalescer.submit(1);
+        runTasks();
+
+        assertEquals(1, mCoalescer.getDeliveredCount());
+        assertEquals(1, mCoalescer.getMergedCount());
+    }
+
+    @Test
+    public void rejectedState_isRetriedUntilAccepted() {
+        mAccepting = false;
+        mCoalescer.submit(1);
+        runTasks();
+        // The retry is already scheduled, a resubmit of the rejected state merges into it.
+        mCoalescer.submit(1);
+        assertEquals(1, mTasks.size());
+
+        mAccepting = true;
+        runTasks();
+        mCoalescer.submit(1);
+        runTasks();
+
+        assertEquals(Arrays.asList(1, 1), mDelivered);
+        assertEquals(1, mCoalescer.getRejectedCount());
+        assertTrue(mTasks.isEmpty());
+    }
+}
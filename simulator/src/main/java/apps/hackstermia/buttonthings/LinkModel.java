@@ -0,0 +1,114 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Radio conditions of every simulated link.  Packets wait for the next connection event of
+ * their link, each event carries a limited number of packets per direction, and a lost
+ * packet is retransmitted in the following event.  A link that loses too many attempts in a
+ * row drops, as it would on a supervision timeout.
+ */
+public class LinkModel {
+
+    private long mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(2);
+    private long mJitterNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    private double mLossRate = 0.01;
+    // ATT MTU before any exchange.
+    private int mMtu = 23;
+    private long mConnectionIntervalNanos = TimeUnit.MILLISECONDS.toNanos(15);
+    private int mPacketsPerEvent = 4;
+    private int mMaxRetransmissions = 32;
+    private int mMaxPeripheralLinks = 8;
+    private int mMaxCentralLinks = 8;
+
+    /**
+     * Set the stack processing delay added to every delivered packet, and the random jitter
+     * on top of it.
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        mJitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+    }
+
+    public long getLatencyNanos() {
+        return mLatencyNanos;
+    }
+
+    public long getJitterNanos() {
+        return mJitterNanos;
+    }
+
+    /**
+     * Set the probability of losing a single transmission attempt, from 0 to 1.
+     */
+    public void setLossRate(double lossRate) {
+        mLossRate = lossRate;
+    }
+
+    public double getLossRate() {
+        return mLossRate;
+    }
+
+    /**
+     * Set the ATT MTU.  Notifications longer than MTU - 3 bytes are truncated, as the stack
+     * does.
+     */
+    public void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public void setConnectionInterval(long intervalMillis, int packetsPerEvent) {
+        mConnectionIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        mPacketsPerEvent = packetsPerEvent;
+    }
+
+    public long getConnectionIntervalNanos() {
+        return mConnectionIntervalNanos;
+    }
+
+    public int getPacketsPerEvent() {
+        return mPacketsPerEvent;
+    }
+
+    /**
+     * Set the number of failed attempts in a row after which a link drops.
+     */
+    public void setMaxRetransmissions(int maxRetransmissions) {
+        mMaxRetransmissions = maxRetransmissions;
+    }
+
+    public int getMaxRetransmissions() {
+        return mMaxRetransmissions;
+    }
+
+    /**
+     * Set the number of concurrent links a controller supports, as peripheral and as
+     * central.  Connections beyond that are rejected.
+     */
+    public void setMaxLinks(int maxPeripheralLinks, int maxCentralLinks) {
+        mMaxPeripheralLinks = maxPeripheralLinks;
+        mMaxCentralLinks = maxCentralLinks;
+    }
+
+    public int getMaxPeripheralLinks() {
+        return mMaxPeripheralLinks;
+    }
+
+    public int getMaxCentralLinks() {
+        return mMaxCentralLinks;
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + TimeUnit.NANOSECONDS.toMillis(mLatencyNanos)
+                + "+-" + TimeUnit.NANOSECONDS.toMillis(mJitterNanos) + " ms loss=" + mLossRate
+                + " mtu=" + mMtu
+                + " interval=" + TimeUnit.NANOSECONDS.toMillis(mConnectionIntervalNanos)
+                + " ms packets/event=" + mPacketsPerEvent
+                + " links=" + mMaxPeripheralLinks + "/" + mMaxCentralLinks;
+    }
+}
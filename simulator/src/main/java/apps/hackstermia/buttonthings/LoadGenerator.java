@@ -0,0 +1,271 @@
+package apps.hackstermia.buttonthings;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs thousands of virtual boards and phones against each other over a
+ * {@link SimulatedRadio} and reports notification throughput, latency percentiles and link
+ * failures.  Options are given as name=value arguments, see {@link #setOption}.
+ */
+public class LoadGenerator {
+
+    private final LinkModel mModel = new LinkModel();
+    private int mBoardCount = 1000;
+    private int mPhoneCount = 100;
+    private int mLinksPerPhone = 4;
+    // Button presses per board and commands per phone, per second.
+    private double mPressRate = 1;
+    private double mCommandRate = 1;
+    private long mDurationMillis = 10000;
+    // Same rate limit as the things app.
+    private long mNotifyMinInterval = 50;
+    private long mSeed = 1;
+
+    private final LatencyHistogram mNotifyLatency = new LatencyHistogram("notify");
+    private final LatencyHistogram mCommandLatency = new LatencyHistogram("command");
+    private final List<VirtualBoard> mBoards = new ArrayList<>();
+    private final List<VirtualPhone> mPhones = new ArrayList<>();
+    private SimulatedRadio mRadio;
+    private volatile boolean mRunning;
+    private long mElapsedNanos;
+    private long mPressCount;
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            for (String arg : args) {
+                generator.setOption(arg);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Options: boards= phones= links= pressRate= commandRate="
+                    + " duration=<s> latency=<ms> jitter=<ms> loss=<0..1> mtu= interval=<ms>"
+                    + " packetsPerEvent= maxRetransmissions= maxConnections= notifyInterval=<ms>"
+                    + " seed=");
+            System.exit(2);
+        }
+        generator.run();
+        generator.printReport(System.out);
+    }
+
+    public LinkModel getModel() {
+        return mModel;
+    }
+
+    /**
+     * Apply one name=value option.
+     *
+     * @throws IllegalArgumentException if the option is unknown or its value malformed.
+     */
+    public void setOption(String option) {
+        final int split = option.indexOf('=');
+        if (split < 0) {
+            throw new IllegalArgumentException("Expected name=value: " + option);
+        }
+        final String name = option.substring(0, split);
+        final String value = option.substring(split + 1);
+        switch (name) {
+            case "boards":
+                mBoardCount = Integer.parseInt(value);
+                break;
+            case "phones":
+                mPhoneCount = Integer.parseInt(value);
+                break;
+            case "links":
+                mLinksPerPhone = Integer.parseInt(value);
+                break;
+            case "pressRate":
+                mPressRate = Double.parseDouble(value);
+                break;
+            case "commandRate":
+                mCommandRate = Double.parseDouble(value);
+                break;
+            case "duration":
+                mDurationMillis = (long) (Double.parseDouble(value) * 1000);
+                break;
+            case "latency":
+                mModel.setLatency(Long.parseLong(value),
+                        TimeUnit.NANOSECONDS.toMillis(mModel.getJitterNanos()));
+                break;
+            case "jitter":
+                mModel.setLatency(TimeUnit.NANOSECONDS.toMillis(mModel.getLatencyNanos()),
+                        Long.parseLong(value));
+                break;
+            case "loss":
+                mModel.setLossRate(Double.parseDouble(value));
+                break;
+            case "mtu":
+                mModel.setMtu(Integer.parseInt(value));
+                break;
+            case "interval":
+                mModel.setConnectionInterval(Long.parseLong(value), mModel.getPacketsPerEvent());
+                break;
+            case "packetsPerEvent":
+                mModel.setConnectionInterval(
+                        TimeUnit.NANOSECONDS.toMillis(mModel.getConnectionIntervalNanos()),
+                        Integer.parseInt(value));
+                break;
+            case "maxRetransmissions":
+                mModel.setMaxRetransmissions(Integer.parseInt(value));
+                break;
+            case "maxConnections":
+                mModel.setMaxLinks(Integer.parseInt(value), Integer.parseInt(value));
+                break;
+            case "notifyInterval":
+                mNotifyMinInterval = Long.parseLong(value);
+                break;
+            case "seed":
+                mSeed = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + name);
+        }
+    }
+
+    /**
+     * Connect every phone to its boards, generate load for the configured duration and stop
+     * the radio.
+     */
+    public void run() throws InterruptedException {
+        mRadio = new SimulatedRadio(mModel, mSeed);
+        for (int i = 0; i < mBoardCount; i++) {
+            mBoards.add(new VirtualBoard(mRadio, "board-" + i, mNotifyMinInterval,
+                    mCommandLatency));
+        }
+        for (int i = 0; i < mPhoneCount; i++) {
+            mPhones.add(new VirtualPhone(mRadio, "phone-" + i, mNotifyLatency));
+        }
+        mRunning = true;
+        mRadio.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Phones spread over the boards, each board is watched by about the same
+                // number of phones.
+                for (int i = 0; i < mPhones.size(); i++) {
+                    for (int link = 0; link < mLinksPerPhone && link < mBoards.size(); link++) {
+                        mPhones.get(i).addBoard(
+                                mBoards.get((i * mLinksPerPhone + link) % mBoards.size()));
+                    }
+                }
+                for (int i = 0; i < mBoards.size() && mPressRate > 0; i++) {
+                    schedulePress(mBoards.get(i));
+                }
+                for (int i = 0; i < mPhones.size() && mCommandRate > 0; i++) {
+                    scheduleCommand(mPhones.get(i));
+                }
+            }
+        });
+
+        final long start = System.nanoTime();
+        Thread.sleep(mDurationMillis);
+        mRunning = false;
+        mRadio.shutdown();
+        mElapsedNanos = System.nanoTime() - start;
+    }
+
+    public SimulatedRadio getRadio() {
+        return mRadio;
+    }
+
+    public LatencyHistogram getNotifyLatency() {
+        return mNotifyLatency;
+    }
+
+    public LatencyHistogram getCommandLatency() {
+        return mCommandLatency;
+    }
+
+    public long getReceivedCount() {
+        long received = 0;
+        for (VirtualPhone phone : mPhones) {
+            received += phone.getReceivedCount();
+        }
+        return received;
+    }
+
+    public void printReport(PrintStream out) {
+        final double seconds = mElapsedNanos / 1e9;
+        long connected = 0;
+        long commands = 0;
+        long malformed = 0;
+        for (VirtualPhone phone : mPhones) {
+            connected += phone.getConnectedCount();
+            commands += phone.getCommandCount();
+            malformed += phone.getMalformedCount();
+        }
+        long published = 0;
+        long notified = 0;
+        long skipped = 0;
+        for (VirtualBoard board : mBoards) {
+            published += board.getPublishCount();
+            notified += board.getServer().getNotificationFanout().getSentCount();
+            skipped += board.getServer().getNotificationFanout().getSkippedCount();
+        }
+        final long received = getReceivedCount();
+
+        out.println("model: " + mModel);
+        out.println(String.format(Locale.US,
+                "boards=%d phones=%d links=%d connected=%d rejected=%d",
+                mBoardCount, mPhoneCount, mLinksPerPhone, connected, mRadio.getRejectedCount()));
+        out.println(String.format(Locale.US,
+                "presses=%d commands=%d published=%d notified=%d skipped=%d received=%d"
+                        + " malformed=%d",
+                mPressCount, commands, published, notified, skipped, received, malformed));
+        out.println(String.format(Locale.US, "throughput: %.0f notifications/s",
+                received / seconds));
+        printLatency(out, mNotifyLatency);
+        printLatency(out, mCommandLatency);
+        printLatency(out, mRadio.getAirLatency());
+        out.println(String.format(Locale.US,
+                "packets=%d retransmissions=%d dropped links=%d truncated=%d errors=%d",
+                mRadio.getPacketCount(), mRadio.getRetransmissionCount(),
+                mRadio.getDroppedCount(), mRadio.getTruncatedCount(), mRadio.getErrorCount()));
+        out.println(String.format(Locale.US, "radio: %d events in %.1f s, %.0f events/s",
+                mRadio.getEventCount(), seconds, mRadio.getEventCount() / seconds));
+        if (mRadio.getFirstError() != null) {
+            mRadio.getFirstError().printStackTrace(out);
+        }
+    }
+
+    private void schedulePress(final VirtualBoard board) {
+        mRadio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunning) {
+                    board.press();
+                    mPressCount++;
+                    schedulePress(board);
+                }
+            }
+        }, nextInterval(mPressRate));
+    }
+
+    private void scheduleCommand(final VirtualPhone phone) {
+        mRadio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunning) {
+                    phone.sendCommand();
+                    scheduleCommand(phone);
+                }
+            }
+        }, nextInterval(mCommandRate));
+    }
+
+    // Exponentially distributed, so events of each device form a Poisson process.
+    private long nextInterval(double ratePerSecond) {
+        return (long) (-Math.log(1 - mRadio.getRandom().nextDouble()) * 1000 / ratePerSecond);
+    }
+
+    private static void printLatency(PrintStream out, LatencyHistogram histogram) {
+        out.println(String.format(Locale.US,
+                "%s latency: count=%d p50=%.2f p99=%.2f p99.9=%.2f max=%.2f ms",
+                histogram.getName(), histogram.getCount(),
+                histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6,
+                histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6));
+    }
+}
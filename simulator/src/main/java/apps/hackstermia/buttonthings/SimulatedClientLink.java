@@ -0,0 +1,169 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * One simulated link from a central to a board's {@link SimulatedServerLink}, seen from the
+ * central.  Requests travel over the {@link SimulatedRadio} to the board's
+ * {@link RemoteLedServer}, notifications and read responses travel back.  Everything runs on
+ * the radio thread.
+ */
+public class SimulatedClientLink implements GattClientLink {
+
+    private final SimulatedRadio mRadio;
+    private final String mCentral;
+    private final SimulatedServerLink mServer;
+    private final long mAnchor;
+    private volatile Listener mListener;
+    private volatile boolean mConnected;
+    private volatile boolean mClosed;
+    private int mNextRequestId;
+    // Characteristics of the reads waiting for a response, by request id.
+    private final Map<Integer, UUID> mPendingReads = new HashMap<>();
+
+    final SimulatedRadio.Direction mUplink = new SimulatedRadio.Direction();
+    final SimulatedRadio.Direction mDownlink = new SimulatedRadio.Direction();
+
+    SimulatedClientLink(SimulatedRadio radio, String central, SimulatedServerLink server,
+                        Listener listener, long anchor) {
+        mRadio = radio;
+        mCentral = central;
+        mServer = server;
+        mListener = listener;
+        mAnchor = anchor;
+    }
+
+    /**
+     * Return the address of the board at the other end.
+     */
+    @Override
+    public String getAddress() {
+        return mServer.getAddress();
+    }
+
+    public String getCentral() {
+        return mCentral;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Return true once the link is down for good.
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Disconnect the link, the board sees the central go away.
+     */
+    public void disconnect() {
+        mRadio.disconnect(this, false);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(final UUID characteristic, boolean enabled) {
+        if (!mConnected) {
+            return false;
+        }
+        final int requestId = mNextRequestId++;
+        final byte[] value = SubscriberRegistry.encodeClientConfig(
+                enabled ? SubscriberRegistry.FLAG_NOTIFY : SubscriberRegistry.FLAG_NONE);
+        mRadio.transmit(this, true, null, new Runnable() {
+            @Override
+            public void run() {
+                mServer.getServer().onDescriptorWriteRequest(mCentral, requestId,
+                        characteristic, RemoteLedProfile.CLIENT_CONFIG, false, true, 0, value);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(final UUID characteristic, byte[] value,
+                                       final boolean withResponse) {
+        if (!mConnected) {
+            return false;
+        }
+        final int requestId = mNextRequestId++;
+        final byte[] copy = new byte[mRadio.truncate(value.length)];
+        System.arraycopy(value, 0, copy, 0, copy.length);
+        mRadio.transmit(this, true, null, new Runnable() {
+            @Override
+            public void run() {
+                mServer.getServer().onCharacteristicWriteRequest(mCentral, requestId,
+                        characteristic, false, withResponse, 0, copy);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean readCharacteristic(final UUID characteristic) {
+        if (!mConnected) {
+            return false;
+        }
+        final int requestId = mNextRequestId++;
+        mPendingReads.put(requestId, characteristic);
+        mRadio.transmit(this, true, null, new Runnable() {
+            @Override
+            public void run() {
+                mServer.getServer().onCharacteristicReadRequest(mCentral, requestId, 0,
+                        characteristic);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void close() {
+        mListener = null;
+    }
+
+    long getAnchor() {
+        return mAnchor;
+    }
+
+    void onConnected() {
+        if (mClosed) {
+            return;
+        }
+        mConnected = true;
+        mServer.attach(this);
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onConnectionStateChange(this, true);
+        }
+    }
+
+    void onDisconnected() {
+        final boolean wasConnected = mConnected;
+        mConnected = false;
+        mClosed = true;
+        mPendingReads.clear();
+        mServer.detach(this);
+        final Listener listener = mListener;
+        if (wasConnected && listener != null) {
+            listener.onConnectionStateChange(this, false);
+        }
+    }
+
+    void onValue(UUID characteristic, byte[] value) {
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onCharacteristicChanged(this, characteristic, value);
+        }
+    }
+
+    void onResponse(int requestId, int status, byte[] value) {
+        final UUID characteristic = mPendingReads.remove(requestId);
+        if (characteristic != null && status == GattServerLink.STATUS_SUCCESS) {
+            onValue(characteristic, value);
+        }
+    }
+}
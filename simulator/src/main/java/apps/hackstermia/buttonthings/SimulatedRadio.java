@@ -0,0 +1,283 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries packets between virtual phones and boards in real time, on a single "radio"
+ * thread.  Every callback of the simulated links, servers and devices runs on that thread,
+ * like the binder thread of a real stack.  Link behaviour follows a {@link LinkModel}.
+ */
+public class SimulatedRadio implements TaskScheduler {
+
+    /**
+     * Link-layer state of one direction of a link, on the radio thread only.
+     */
+    static final class Direction {
+        // Connection event the last packet went out in, and packets sent in it.
+        long mLastEvent;
+        int mUsedInEvent;
+        // Delivery time of the last packet, later packets never overtake it.
+        long mLastDelivery;
+    }
+
+    private final LinkModel mModel;
+    private final Random mRandom;
+    private final ScheduledExecutorService mExecutor;
+    // Open links per device address, on the radio thread only.
+    private final Map<String, Integer> mLinkCounts = new HashMap<>();
+    private final LatencyHistogram mAirLatency = new LatencyHistogram("air");
+
+    private final AtomicLong mEventCount = new AtomicLong();
+    private final AtomicLong mPacketCount = new AtomicLong();
+    private final AtomicLong mRetransmissionCount = new AtomicLong();
+    private final AtomicLong mTruncatedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private volatile RuntimeException mFirstError;
+
+    public SimulatedRadio(LinkModel model, long seed) {
+        mModel = model;
+        mRandom = new Random(seed);
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "radio");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public LinkModel getModel() {
+        return mModel;
+    }
+
+    /**
+     * Return a random number from the radio's seeded generator, on the radio thread only.
+     */
+    public Random getRandom() {
+        return mRandom;
+    }
+
+    public void execute(Runnable task) {
+        scheduleNanos(task, 0);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        scheduleNanos(task, TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    }
+
+    public void scheduleNanos(final Runnable task, long delayNanos) {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mEventCount.incrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // The executor would swallow it, keep it for the report instead.
+                    if (mErrorCount.getAndIncrement() == 0) {
+                        mFirstError = e;
+                    }
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Connect a central to a board's server, on the radio thread.  The link comes up after
+     * one connection interval and reports to the listener.
+     *
+     * @return the link, or null if either side has no link left.
+     */
+    public SimulatedClientLink connect(String central, SimulatedServerLink server,
+                                       GattClientLink.Listener listener) {
+        if (getLinkCount(central) >= mModel.getMaxCentralLinks()
+                || getLinkCount(server.getAddress()) >= mModel.getMaxPeripheralLinks()) {
+            mRejectedCount.incrementAndGet();
+            return null;
+        }
+        addLinkCount(central, 1);
+        addLinkCount(server.getAddress(), 1);
+        final SimulatedClientLink link = new SimulatedClientLink(this, central, server,
+                listener, System.nanoTime());
+        scheduleNanos(new Runnable() {
+            @Override
+            public void run() {
+                link.onConnected();
+            }
+        }, mModel.getConnectionIntervalNanos());
+        return link;
+    }
+
+    /**
+     * Tear a link down on the radio thread, e.g. once it lost too many packets.
+     */
+    void disconnect(SimulatedClientLink link, boolean dropped) {
+        if (link.isClosed()) {
+            return;
+        }
+        addLinkCount(link.getCentral(), -1);
+        addLinkCount(link.getAddress(), -1);
+        if (dropped) {
+            mDroppedCount.incrementAndGet();
+        }
+        link.onDisconnected();
+    }
+
+    /**
+     * Send a packet over a link, on the radio thread.  The packet goes out in the next
+     * connection event with room for it, retransmitted until it gets through.
+     *
+     * @param uplink true from central to peripheral.
+     * @param onSent run once the peer acknowledged the packet at the link layer, may be null.
+     * @param onDelivered run once the packet reached the peer's host.
+     */
+    void transmit(final SimulatedClientLink link, boolean uplink, Runnable onSent,
+                  final Runnable onDelivered) {
+        final long now = System.nanoTime();
+        final long interval = mModel.getConnectionIntervalNanos();
+        final Direction direction = uplink ? link.mUplink : link.mDownlink;
+
+        // Connection events of the link are every interval from the moment it connected.
+        long event = Math.max(now, direction.mLastEvent);
+        long sinceAnchor = event - link.getAnchor();
+        event = link.getAnchor() + (sinceAnchor + interval - 1) / interval * interval;
+        if (event == direction.mLastEvent
+                && direction.mUsedInEvent >= mModel.getPacketsPerEvent()) {
+            event += interval;
+        }
+        int failures = 0;
+        while (mRandom.nextDouble() < mModel.getLossRate()) {
+            mRetransmissionCount.incrementAndGet();
+            if (++failures > mModel.getMaxRetransmissions()) {
+                scheduleAt(event, new Runnable() {
+                    @Override
+                    public void run() {
+                        disconnect(link, true);
+                    }
+                });
+                return;
+            }
+            event += interval;
+        }
+        if (event != direction.mLastEvent) {
+            direction.mLastEvent = event;
+            direction.mUsedInEvent = 0;
+        }
+        direction.mUsedInEvent++;
+        mPacketCount.incrementAndGet();
+
+        long deliverAt = event + mModel.getLatencyNanos()
+                + (long) (mRandom.nextDouble() * mModel.getJitterNanos());
+        deliverAt = Math.max(deliverAt, direction.mLastDelivery);
+        direction.mLastDelivery = deliverAt;
+        if (onSent != null) {
+            scheduleAt(event, whileOpen(link, onSent));
+        }
+        scheduleAt(deliverAt, whileOpen(link, new Runnable() {
+            @Override
+            public void run() {
+                mAirLatency.record(System.nanoTime() - now);
+                onDelivered.run();
+            }
+        }));
+    }
+
+    /**
+     * Cut a value to what fits into one packet at the model's MTU.
+     *
+     * @return the number of bytes sent.
+     */
+    int truncate(int length) {
+        final int max = mModel.getMtu() - 3;
+        if (length > max) {
+            mTruncatedCount.incrementAndGet();
+            return max;
+        }
+        return length;
+    }
+
+    /**
+     * Stop the radio thread, dropping every event not yet run.
+     */
+    public void shutdown() throws InterruptedException {
+        mExecutor.shutdownNow();
+        mExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Return the time from handing packets to the radio until their delivery.
+     */
+    public LatencyHistogram getAirLatency() {
+        return mAirLatency;
+    }
+
+    public long getEventCount() {
+        return mEventCount.get();
+    }
+
+    public long getPacketCount() {
+        return mPacketCount.get();
+    }
+
+    public long getRetransmissionCount() {
+        return mRetransmissionCount.get();
+    }
+
+    public long getTruncatedCount() {
+        return mTruncatedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /**
+     * Return the first exception thrown by an event, null if there was none.
+     */
+    public RuntimeException getFirstError() {
+        return mFirstError;
+    }
+
+    private void scheduleAt(long nanos, Runnable task) {
+        scheduleNanos(task, nanos - System.nanoTime());
+    }
+
+    private static Runnable whileOpen(final SimulatedClientLink link, final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (!link.isClosed()) {
+                    task.run();
+                }
+            }
+        };
+    }
+
+    private int getLinkCount(String address) {
+        Integer count = mLinkCounts.get(address);
+        return count == null ? 0 : count;
+    }
+
+    private void addLinkCount(String address, int delta) {
+        mLinkCounts.put(address, getLinkCount(address) + delta);
+    }
+}
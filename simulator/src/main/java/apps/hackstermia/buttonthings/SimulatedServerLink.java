@@ -0,0 +1,97 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The GATT server of one virtual board.  Centrals are identified by their address, the
+ * board's {@link RemoteLedServer} is driven by the {@link SimulatedClientLink}s connected to
+ * it.  Everything runs on the radio thread.
+ */
+public class SimulatedServerLink implements GattServerLink<String> {
+
+    private final SimulatedRadio mRadio;
+    private final String mAddress;
+    private RemoteLedServer<String> mServer;
+    // Connected links by central address.
+    private final Map<String, SimulatedClientLink> mLinks = new HashMap<>();
+
+    public SimulatedServerLink(SimulatedRadio radio, String address) {
+        mRadio = radio;
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public void setServer(RemoteLedServer<String> server) {
+        mServer = server;
+    }
+
+    public RemoteLedServer<String> getServer() {
+        return mServer;
+    }
+
+    public int getLinkCount() {
+        return mLinks.size();
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(final String device, final UUID characteristic,
+                                               byte[] value, int length, final boolean confirm) {
+        final SimulatedClientLink link = mLinks.get(device);
+        if (link == null) {
+            return false;
+        }
+        final byte[] copy = new byte[mRadio.truncate(length)];
+        System.arraycopy(value, 0, copy, 0, copy.length);
+        // Notifications are acknowledged once sent, indications once the peer confirmed.
+        mRadio.transmit(link, false, confirm ? null : sentTo(device), new Runnable() {
+            @Override
+            public void run() {
+                link.onValue(characteristic, copy);
+                if (confirm) {
+                    mRadio.transmit(link, true, null, sentTo(device));
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void sendResponse(String device, final int requestId, final int status, int offset,
+                             final byte[] value) {
+        final SimulatedClientLink link = mLinks.get(device);
+        if (link == null) {
+            return;
+        }
+        mRadio.transmit(link, false, null, new Runnable() {
+            @Override
+            public void run() {
+                link.onResponse(requestId, status, value);
+            }
+        });
+    }
+
+    void attach(SimulatedClientLink link) {
+        mLinks.put(link.getCentral(), link);
+        mServer.onConnectionStateChange(link.getCentral(), true);
+    }
+
+    void detach(SimulatedClientLink link) {
+        if (mLinks.remove(link.getCentral()) != null) {
+            mServer.onConnectionStateChange(link.getCentral(), false);
+        }
+    }
+
+    private Runnable sentTo(final String device) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mServer.onNotificationSent(device, GattServerLink.STATUS_SUCCESS);
+            }
+        };
+    }
+}
@@ -0,0 +1,81 @@
+package apps.hackstermia.buttonthings;
+
+/**
+ * A simulated button board.  Serves the Remote LED Service through the same
+ * {@link RemoteLedServer} as the things app, publishes its LED state on every button press
+ * and applies commands written by phones.  Frames are stamped with {@code System.nanoTime()}
+ * instead of the wall clock, all virtual devices share that clock.  Radio thread only.
+ */
+public class VirtualBoard {
+
+    private final SimulatedServerLink mLink;
+    private final RemoteLedServer<String> mServer;
+    private final LatencyHistogram mCommandLatency;
+    private final byte[] mFrame = new byte[RemoteLedCodec.FRAME_LENGTH];
+    private int mSequence;
+    private boolean mLedOn;
+    private long mPublishCount;
+
+    /**
+     * @param notifyMinInterval the notification rate limit per subscriber, 0 for none.
+     * @param commandLatency receives the time from a phone writing a command until the
+     *                       board applies it.
+     */
+    public VirtualBoard(SimulatedRadio radio, String address, long notifyMinInterval,
+                        LatencyHistogram commandLatency) {
+        mLink = new SimulatedServerLink(radio, address);
+        mServer = new RemoteLedServer<>(mLink);
+        mLink.setServer(mServer);
+        mCommandLatency = commandLatency;
+        if (notifyMinInterval > 0) {
+            mServer.setRateLimit(notifyMinInterval, radio);
+        }
+        mServer.setCommandListener(new RemoteLedServer.CommandListener<String>() {
+            @Override
+            public boolean onCommand(String device, byte[] value) {
+                if (RemoteLedCodec.getVersion(value) == RemoteLedCodec.VERSION_INVALID) {
+                    return false;
+                }
+                mCommandLatency.record(System.nanoTime() - RemoteLedCodec.getTimestamp(value));
+                publish(RemoteLedCodec.isLedOn(value));
+                return true;
+            }
+        });
+        RemoteLedCodec.encode(mFrame, 0, false, mSequence, 0);
+        mServer.setValue(mFrame, RemoteLedCodec.FRAME_LENGTH);
+    }
+
+    public String getAddress() {
+        return mLink.getAddress();
+    }
+
+    public SimulatedServerLink getLink() {
+        return mLink;
+    }
+
+    public RemoteLedServer<String> getServer() {
+        return mServer;
+    }
+
+    /**
+     * Toggle the LED as a button press would, and notify the subscribers.
+     */
+    public void press() {
+        publish(!mLedOn);
+    }
+
+    /**
+     * Return the number of LED states published.
+     */
+    public long getPublishCount() {
+        return mPublishCount;
+    }
+
+    private void publish(boolean ledOn) {
+        mLedOn = ledOn;
+        mSequence = RemoteLedCodec.nextSequence(mSequence);
+        RemoteLedCodec.encode(mFrame, 0, ledOn, mSequence, System.nanoTime());
+        mServer.publish(mServer.setValue(mFrame, RemoteLedCodec.FRAME_LENGTH));
+        mPublishCount++;
+    }
+}
@@ -0,0 +1,136 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A simulated phone.  Keeps links to a set of boards, subscribes to their LED state and
+ * writes commands to them, reconnecting links that drop.  Radio thread only.
+ */
+public class VirtualPhone implements GattClientLink.Listener {
+
+    // Wait this long before reconnecting a dropped link.
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final SimulatedRadio mRadio;
+    private final String mAddress;
+    private final LatencyHistogram mNotifyLatency;
+    private final List<VirtualBoard> mBoards = new ArrayList<>();
+    private final List<SimulatedClientLink> mLinks = new ArrayList<>();
+    private final byte[] mCommand = new byte[RemoteLedCodec.FRAME_LENGTH];
+    private int mSequence;
+    private int mNextLink;
+    private long mReceivedCount;
+    private long mMalformedCount;
+    private long mCommandCount;
+
+    /**
+     * @param notifyLatency receives the time from a board publishing a state until the phone
+     *                      receives its notification.
+     */
+    public VirtualPhone(SimulatedRadio radio, String address, LatencyHistogram notifyLatency) {
+        mRadio = radio;
+        mAddress = address;
+        mNotifyLatency = notifyLatency;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Keep a link to the board, connecting right away.
+     */
+    public void addBoard(VirtualBoard board) {
+        mBoards.add(board);
+        connect(board);
+    }
+
+    /**
+     * Write a command to the next connected board, without response.
+     *
+     * @return false if no link is up.
+     */
+    public boolean sendCommand() {
+        for (int i = 0; i < mLinks.size(); i++) {
+            final SimulatedClientLink link = mLinks.get(mNextLink++ % mLinks.size());
+            if (link.isConnected()) {
+                mSequence = RemoteLedCodec.nextSequence(mSequence);
+                RemoteLedCodec.encode(mCommand, 0, (mSequence & 1) != 0, mSequence,
+                        System.nanoTime());
+                mCommandCount++;
+                return link.writeCharacteristic(RemoteLedProfile.REMOTE_LED_COMMAND, mCommand,
+                        false);
+            }
+        }
+        return false;
+    }
+
+    public int getConnectedCount() {
+        int count = 0;
+        for (SimulatedClientLink link : mLinks) {
+            if (link.isConnected()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * Return the number of values received cut short, e.g. by a small MTU.
+     */
+    public long getMalformedCount() {
+        return mMalformedCount;
+    }
+
+    public long getCommandCount() {
+        return mCommandCount;
+    }
+
+    @Override
+    public void onConnectionStateChange(GattClientLink link, boolean connected) {
+        if (connected) {
+            link.setCharacteristicNotification(RemoteLedProfile.REMOTE_LED_DATA, true);
+            return;
+        }
+        mLinks.remove(link);
+        for (final VirtualBoard board : mBoards) {
+            if (board.getAddress().equals(link.getAddress())) {
+                mRadio.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        connect(board);
+                    }
+                }, RECONNECT_DELAY_MS);
+            }
+        }
+    }
+
+    @Override
+    public void onCharacteristicChanged(GattClientLink link, UUID characteristic, byte[] value) {
+        if (!RemoteLedProfile.REMOTE_LED_DATA.equals(characteristic)) {
+            return;
+        }
+        if (RemoteLedCodec.getVersion(value) == RemoteLedCodec.VERSION_INVALID) {
+            mMalformedCount++;
+            return;
+        }
+        mReceivedCount++;
+        final long publishedAt = RemoteLedCodec.getTimestamp(value);
+        if (publishedAt != 0) {
+            mNotifyLatency.record(System.nanoTime() - publishedAt);
+        }
+    }
+
+    private void connect(VirtualBoard board) {
+        SimulatedClientLink link = mRadio.connect(mAddress, board.getLink(), this);
+        if (link != null) {
+            mLinks.add(link);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LoadGeneratorTest {
+
+    private static LoadGenerator run(String... options) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        for (String option : options) {
+            generator.setOption(option);
+        }
+        generator.run();
+        assertEquals(0, generator.getRadio().getErrorCount());
+        return generator;
+    }
+
+    @Test
+    public void losslessLinksDeliverInOrder() throws InterruptedException {
+        LoadGenerator generator = run("boards=8", "phones=4", "links=2", "pressRate=20",
+                "commandRate=10", "duration=1", "loss=0", "latency=2", "jitter=0",
+                "interval=10");
+
+        assertTrue(generator.getReceivedCount() > 0);
+        assertTrue(generator.getCommandLatency().getCount() > 0);
+        assertEquals(0, generator.getRadio().getDroppedCount());
+        assertEquals(0, generator.getRadio().getRetransmissionCount());
+        // Never faster than the processing delay.
+        assertTrue(generator.getNotifyLatency().getMin() >= TimeUnit.MILLISECONDS.toNanos(2));
+    }
+
+    @Test
+    public void lossyLinksDropAndRejectBeyondLimit() throws InterruptedException {
+        LoadGenerator generator = run("boards=2", "phones=4", "links=2", "pressRate=50",
+                "commandRate=0", "duration=1", "loss=0.5", "maxRetransmissions=2",
+                "maxConnections=3");
+
+        assertTrue(generator.getRadio().getRetransmissionCount() > 0);
+        assertTrue(generator.getRadio().getDroppedCount() > 0);
+        assertTrue(generator.getRadio().getRejectedCount() > 0);
+    }
+}
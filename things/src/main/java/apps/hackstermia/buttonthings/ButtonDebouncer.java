@@ -0,0 +1,52 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leading-edge software debounce.  The first edge of a burst is accepted immediately so it
+ * adds no latency, edges within the debounce window after it are ignored.  Callers should
+ * re-sample the pin with {@link #accept} once the window has passed, in case the level
+ * settled somewhere other than the accepted state.
+ */
+public class ButtonDebouncer {
+
+    private final long mWindowNanos;
+    private boolean mHasState;
+    private boolean mState;
+    private long mAcceptedAt;
+    private long mIgnoredCount;
+
+    public ButtonDebouncer(long windowMillis) {
+        mWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    public long getWindowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mWindowNanos);
+    }
+
+    /**
+     * @param pressed the pin level sampled at the edge.
+     * @param edgeNanos monotonic timestamp of the edge.
+     * @return true if the edge is a genuine state change the app should handle.
+     */
+    public synchronized boolean accept(boolean pressed, long edgeNanos) {
+        if (mHasState && pressed == mState) {
+            return false;
+        }
+        if (mHasState && edgeNanos - mAcceptedAt < mWindowNanos) {
+            mIgnoredCount++;
+            return false;
+        }
+        mHasState = true;
+        mState = pressed;
+        mAcceptedAt = edgeNanos;
+        return true;
+    }
+
+    /**
+     * Return the number of edges discarded as bounce.
+     */
+    public synchronized long getIgnoredCount() {
+        return mIgnoredCount;
+    }
+}
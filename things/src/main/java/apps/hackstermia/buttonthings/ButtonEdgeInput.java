@@ -0,0 +1,139 @@
+package apps.hackstermia.buttonthings;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
+import com.google.android.things.pio.PeripheralManager;
+
+import java.io.IOException;
+
+/**
+ * Reads the button straight from GPIO edge callbacks on a dedicated thread, bypassing the
+ * {@code ButtonInputDriver} and the input framework.  Edges are debounced in software,
+ * stamped with a monotonic clock as soon as the callback runs, and delivered to the
+ * listener regardless of which activity has focus.
+ */
+public class ButtonEdgeInput {
+    private static final String TAG = ButtonEdgeInput.class.getSimpleName();
+
+    /**
+     * Receives debounced button changes on the input thread.
+     */
+    public interface Listener {
+        /**
+         * @param edgeNanos {@link SystemClock#elapsedRealtimeNanos()} at the edge.
+         */
+        void onButtonChanged(boolean pressed, long edgeNanos);
+    }
+
+    private final String mPinName;
+    private final ButtonDebouncer mDebouncer;
+    private final Listener mListener;
+    private final LatencyHistogram mLatency = new LatencyHistogram("gpio edge to handler");
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private Gpio mGpio;
+
+    /**
+     * @param pinName the GPIO the button is wired to, pressed when low.
+     * @param debounceMillis edges this close to the previous accepted one are ignored.
+     */
+    public ButtonEdgeInput(String pinName, long debounceMillis, Listener listener) {
+        mPinName = pinName;
+        mDebouncer = new ButtonDebouncer(debounceMillis);
+        mListener = listener;
+    }
+
+    /**
+     * Open the pin and start delivering edges.
+     */
+    public void open() throws IOException {
+        mThread = new HandlerThread("ButtonInput", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        mGpio = PeripheralManager.getInstance().openGpio(mPinName);
+        mGpio.setDirection(Gpio.DIRECTION_IN);
+        // Pressed when low, so an active-low pin reads true while pressed.
+        mGpio.setActiveType(Gpio.ACTIVE_LOW);
+        mGpio.setEdgeTriggerType(Gpio.EDGE_BOTH);
+        mGpio.registerGpioCallback(mHandler, mGpioCallback);
+    }
+
+    public void close() {
+        if (mGpio != null) {
+            mGpio.unregisterGpioCallback(mGpioCallback);
+            try {
+                mGpio.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing button GPIO", e);
+            } finally {
+                mGpio = null;
+            }
+        }
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Return the time from edge capture to the listener being invoked.
+     */
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    public long getBounceCount() {
+        return mDebouncer.getIgnoredCount();
+    }
+
+    private void sample(long edgeNanos) {
+        final Gpio gpio = mGpio;
+        if (gpio == null) {
+            return;
+        }
+        boolean pressed;
+        try {
+            pressed = gpio.getValue();
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading button GPIO", e);
+            return;
+        }
+        if (mDebouncer.accept(pressed, edgeNanos)) {
+            mLatency.record(SystemClock.elapsedRealtimeNanos() - edgeNanos);
+            mListener.onButtonChanged(pressed, edgeNanos);
+        } else {
+            // The level may settle on the other state inside the window, look again after it.
+            mHandler.removeCallbacks(mResample);
+            mHandler.postDelayed(mResample, mDebouncer.getWindowMillis() + 1);
+        }
+    }
+
+    private final Runnable mResample = new Runnable() {
+        @Override
+        public void run() {
+            sample(SystemClock.elapsedRealtimeNanos());
+        }
+    };
+
+    private final GpioCallback mGpioCallback = new GpioCallback() {
+        @Override
+        public boolean onGpioEdge(Gpio gpio) {
+            sample(SystemClock.elapsedRealtimeNanos());
+            // Keep receiving edges.
+            return true;
+        }
+
+        @Override
+        public void onGpioError(Gpio gpio, int error) {
+            Log.w(TAG, gpio + ": Error event " + error);
+        }
+    };
+}
@@ -0,0 +1,294 @@
+package apps.hackstermia.buttonthings;
+
+import java.io.IOException;
+
+/**
+ * Owns a set of output pins and drives them from a dedicated thread, so a stalled sysfs
+ * or ioctl write never blocks the UI or Bluetooth callbacks.  Commands go through a bounded
+ * queue, writes matching the cached pin state are skipped, and every write is timed.
+ */
+public class GpioActuator {
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+    // How long close() waits for the actuator thread to release the pins.
+    private static final long CLOSE_TIMEOUT_MS = 500;
+
+    /**
+     * Opens output pins, see {@link PeripheralPinBackend} for the on-device implementation.
+     */
+    public interface PinBackend {
+        OutputPin openOutput(String name, boolean initialValue) throws IOException;
+    }
+
+    /**
+     * A single opened output pin.
+     */
+    public interface OutputPin {
+        void setValue(boolean value) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * Receives errors raised on the actuator thread.
+     */
+    public interface ErrorListener {
+        void onError(String pin, IOException e);
+    }
+
+    /**
+     * Notified on the actuator thread after a pin was written.
+     */
+    public interface WriteListener {
+        void onPinWritten(int pin, boolean value);
+    }
+
+    private final PinBackend mBackend;
+    private final String[] mPinNames;
+    private final boolean[] mInitialValues;
+    private final OutputPin[] mPins;
+    private final boolean[] mValues;
+    private final Thread mThread;
+    private volatile ErrorListener mErrorListener;
+    private volatile WriteListener mWriteListener;
+
+    // Command ring buffer, each entry is (pin << 1) | value.  Guarded by "this".
+    private final int[] mQueue;
+    private int mHead;
+    private int mSize;
+    private boolean mClosed;
+
+    // Written on the actuator thread only.
+    private volatile long mWriteCount;
+    private volatile long mSkippedCount;
+    private volatile long mLastWriteNanos;
+    private volatile long mMaxWriteNanos;
+    private volatile long mTotalWriteNanos;
+    // Guarded by "this".
+    private long mDroppedCount;
+
+    public GpioActuator(PinBackend backend, String[] pinNames, boolean[] initialValues) {
+        this(backend, pinNames, initialValues, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public GpioActuator(PinBackend backend, String[] pinNames, boolean[] initialValues,
+                        int queueCapacity) {
+        mBackend = backend;
+        mPinNames = pinNames.clone();
+        mInitialValues = initialValues.clone();
+        mPins = new OutputPin[pinNames.length];
+        mValues = new boolean[pinNames.length];
+        mQueue = new int[queueCapacity];
+        mThread = new Thread(mLoop, "GpioActuator");
+        mThread.setDaemon(true);
+    }
+
+    public void setErrorListener(ErrorListener listener) {
+        mErrorListener = listener;
+    }
+
+    public void setWriteListener(WriteListener listener) {
+        mWriteListener = listener;
+    }
+
+    /**
+     * Start the actuator thread, which opens the pins before processing commands.
+     */
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Queue a write of the given pin.  Never blocks.
+     *
+     * @return false if the queue is full and the command was dropped.
+     */
+    public boolean setValue(int pin, boolean value) {
+        if (pin < 0 || pin >= mPinNames.length) {
+            throw new IllegalArgumentException("Unknown pin " + pin);
+        }
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+            if (mSize == mQueue.length) {
+                mDroppedCount++;
+                return false;
+            }
+            mQueue[(mHead + mSize) % mQueue.length] = (pin << 1) | (value ? 1 : 0);
+            mSize++;
+            notify();
+        }
+        return true;
+    }
+
+    /**
+     * Queue writes of several pins at once, pin n taking bit n of the given states.  Either
+     * all or none of the writes are queued.  Never blocks.
+     *
+     * @param changed the pins to write, bit n for pin n.  Pins beyond the pin count are
+     *                ignored.
+     * @return false if the queue lacks room and nothing was queued.
+     */
+    public boolean setChannels(int states, int changed) {
+        if (mPinNames.length < 32) {
+            changed &= (1 << mPinNames.length) - 1;
+        }
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+            if (mSize + Integer.bitCount(changed) > mQueue.length) {
+                mDroppedCount++;
+                return false;
+            }
+            for (int pin = 0; changed != 0; pin++, changed >>>= 1) {
+                if ((changed & 1) != 0) {
+                    mQueue[(mHead + mSize) % mQueue.length] = (pin << 1) | ((states >>> pin) & 1);
+                    mSize++;
+                }
+            }
+            notify();
+        }
+        return true;
+    }
+
+    /**
+     * Stop the actuator thread once queued commands have been written, then close the pins.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notify();
+        }
+        try {
+            mThread.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    public int getPinCount() {
+        return mPinNames.length;
+    }
+
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Return the number of commands skipped because the pin already had that value.
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * Return the number of commands dropped because the queue was full.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized int getQueueDepth() {
+        return mSize;
+    }
+
+    public long getLastWriteNanos() {
+        return mLastWriteNanos;
+    }
+
+    public long getMaxWriteNanos() {
+        return mMaxWriteNanos;
+    }
+
+    public long getTotalWriteNanos() {
+        return mTotalWriteNanos;
+    }
+
+    private int take() throws InterruptedException {
+        synchronized (this) {
+            while (mSize == 0 && !mClosed) {
+                wait();
+            }
+            if (mSize == 0) {
+                return -1;
+            }
+            int command = mQueue[mHead];
+            mHead = (mHead + 1) % mQueue.length;
+            mSize--;
+            return command;
+        }
+    }
+
+    private void write(int pin, boolean value) {
+        if (mPins[pin] == null) {
+            return;
+        }
+        if (mValues[pin] == value) {
+            mSkippedCount++;
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            mPins[pin].setValue(value);
+            mValues[pin] = value;
+        } catch (IOException e) {
+            reportError(pin, e);
+        }
+        final long elapsed = System.nanoTime() - start;
+        mWriteCount++;
+        mLastWriteNanos = elapsed;
+        mTotalWriteNanos += elapsed;
+        if (elapsed > mMaxWriteNanos) {
+            mMaxWriteNanos = elapsed;
+        }
+        WriteListener listener = mWriteListener;
+        if (listener != null && mValues[pin] == value) {
+            listener.onPinWritten(pin, value);
+        }
+    }
+
+    private void reportError(int pin, IOException e) {
+        ErrorListener listener = mErrorListener;
+        if (listener != null) {
+            listener.onError(mPinNames[pin], e);
+        }
+    }
+
+    private final Runnable mLoop = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < mPinNames.length; i++) {
+                try {
+                    mPins[i] = mBackend.openOutput(mPinNames[i], mInitialValues[i]);
+                    mValues[i] = mInitialValues[i];
+                } catch (IOException e) {
+                    reportError(i, e);
+                }
+            }
+            try {
+                int command;
+                while ((command = take()) >= 0) {
+                    write(command >> 1, (command & 1) != 0);
+                }
+            } catch (InterruptedException e) {
+                // Fall through and release the pins.
+            }
+            for (int i = 0; i < mPins.length; i++) {
+                if (mPins[i] == null) continue;
+                try {
+                    mPins[i].close();
+                } catch (IOException e) {
+                    reportError(i, e);
+                } finally {
+                    mPins[i] = null;
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,72 @@
+package apps.hackstermia.buttonthings;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The states of a board's LED channels, bit n for channel n.  Every change, from the button
+ * or from a peer, is written to the LEDs and published over the link, so the advertisement,
+ * the readable value and the notifications always follow the LEDs.
+ */
+public class LedChannels {
+
+    /**
+     * Receives the states of all channels after each change, on the changing thread.
+     */
+    public interface Output {
+        /**
+         * Write the states to the LEDs.
+         */
+        void write(int channels);
+
+        /**
+         * Broadcast, store and notify the states, see {@link RemoteLedLink#submitState}.
+         */
+        void publish(int channels);
+    }
+
+    private final int mMask;
+    private final Output mOutput;
+    private final AtomicInteger mChannels = new AtomicInteger();
+
+    /**
+     * @param channelCount the channels driven, 1 to {@link RemoteLedCodec#MAX_CHANNELS}.
+     */
+    public LedChannels(int channelCount, Output output) {
+        mMask = channelCount == 32 ? -1 : (1 << channelCount) - 1;
+        mOutput = output;
+    }
+
+    /**
+     * Set the states without writing or publishing them, e.g. to the ones restored at
+     * startup.
+     */
+    public void restore(int channels) {
+        mChannels.set(channels & mMask);
+    }
+
+    public int get() {
+        return mChannels.get();
+    }
+
+    public int getMask() {
+        return mMask;
+    }
+
+    /**
+     * Update the changed channels to the given states, the others keep theirs.
+     *
+     * @return the states of all channels.
+     */
+    public int set(int states, int changed) {
+        changed &= mMask;
+        int current;
+        int next;
+        do {
+            current = mChannels.get();
+            next = (current & ~changed) | (states & changed);
+        } while (!mChannels.compareAndSet(current, next));
+        mOutput.write(next);
+        mOutput.publish(next);
+        return next;
+    }
+}
@@ -2,54 +2,77 @@ package apps.hackstermia.buttonthings;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattServerCallback;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-import java.util.UUID;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 
 import com.google.android.things.contrib.driver.button.Button;
 import com.google.android.things.contrib.driver.button.ButtonInputDriver;
-import com.google.android.things.pio.Gpio;
-import com.google.android.things.pio.PeripheralManager;
 
 public class MainActivity extends Activity {
     private static final String TAG = MainActivity.class.getSimpleName();
 
-    private Set<BluetoothDevice> mRegisteredDevices = new HashSet<>();
-
-    private Gpio mLedGpio;
+    // Updates arriving within this window are merged into the latest one.
+    private static final long LED_COALESCE_WINDOW_MS = 5;
+    // Read the button from raw GPIO edges instead of ButtonInputDriver key events.
+    private static final boolean USE_DIRECT_BUTTON_INPUT = false;
+    private static final long BUTTON_DEBOUNCE_MS = 20;
+    // Directory of the event journal, below the app's files directory.
+    private static final String JOURNAL_DIR = "journal";
+
+    // Channel, and actuator pin, of the LED the button drives.
+    private static final int LED_PIN = 0;
+
+    // Channels mapped to GPIO pins by the led_channel_pins resource.
+    private int mChannelCount = 1;
+    // Current channel states, written to the LEDs and published over the link.
+    private LedChannels mLedChannels;
+    // Channel states last handed to the actuator, on the LED thread only.
+    private int mWrittenChannels;
+
+    private volatile GpioActuator mActuator;
+    // Button edges, LED writes and remote states, the LED state is restored from it.
+    private volatile EventJournal mJournal;
     private ButtonInputDriver mButtonInputDriver;
+    private ButtonEdgeInput mButtonEdgeInput;
+    private final LatencyHistogram mKeyLatency = new LatencyHistogram("key event to handler");
+    private final MetricsRegistry mMetrics = MetricsRegistry.getDefault();
+    private final LatencyHistogram mGpioWriteTime = mMetrics.histogram("gpio.write");
+    private final MetricsRegistry.Counter mGpioErrors = mMetrics.counter("gpio.errors");
+    // Gauges this activity registered, removed again when it is destroyed.
+    private final Map<String, MetricsRegistry.Gauge> mGauges = new HashMap<>();
+    // Time of the latest change handed to the LED coalescer, the trace id of its write.
+    private volatile long mLedEventTime;
+    // System.nanoTime() of the last LED frame received, 0 once its GPIO write was timed.
+    private volatile long mReceivedAtNanos;
 
     private BluetoothAdapter mBluetoothAdapter;
-    private boolean mScanning;
-    private Handler mHandler;
+    // Runs the LED coalescer, frames arrive from the link thread and never wait for the UI.
+    private HandlerThread mLedThread;
+    private UpdateCoalescer mLedCoalescer;
 
+    private boolean mServiceBound;
     private BluetoothLeService mBluetoothLeService;
-    private boolean mConnected = false;
-    private BluetoothGattCharacteristic mNotifyCharacteristic;
-
-    private String mDeviceAddress;
+    // The service's link layer, null until the service is bound.
+    private volatile RemoteLedLink mLink;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -58,107 +81,116 @@ public class MainActivity extends Activity {
 
         try {
             Log.i(TAG, "Configuring GPIO pins");
-            mLedGpio = PeripheralManager.getInstance().openGpio(BoardDefaults.getGPIOForLED());
-            mLedGpio.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
-
-            Log.i(TAG, "Registering button driver");
-            // Initialize and register the InputDriver that will emit SPACE key events
-            // on GPIO state changes.
-            mButtonInputDriver = new ButtonInputDriver(
-                    BoardDefaults.getGPIOForButton(),
-                    Button.LogicState.PRESSED_WHEN_LOW,
-                    KeyEvent.KEYCODE_SPACE);
-            mHandler = new Handler();
-            mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-            if (mBluetoothAdapter != null) {
-                if (mBluetoothAdapter.isEnabled()) {
-                    Log.d(TAG, "Bluetooth Adapter is already enabled.");
-                    initScan();
-                } else {
-                    Log.d(TAG, "Bluetooth adapter not enabled. Enabling.");
-                    mBluetoothAdapter.enable();
-                }
+            String[] pins = getResources().getStringArray(R.array.led_channel_pins);
+            if (pins.length == 0) {
+                pins = new String[]{BoardDefaults.getGPIOForLED()};
+            } else if (pins.length > RemoteLedCodec.MAX_CHANNELS) {
+                Log.w(TAG, "Only the first " + RemoteLedCodec.MAX_CHANNELS + " channels are used");
+                pins = Arrays.copyOf(pins, RemoteLedCodec.MAX_CHANNELS);
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error configuring GPIO pins", e);
-        }
-    }
-
-    /**
-     * Listens for Bluetooth adapter events to enable/disable
-     * advertising and server functionality.
-     */
-    private BroadcastReceiver mBluetoothReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
-
-            switch (state) {
-                case BluetoothAdapter.STATE_ON:
-                    BluetoothHelper.startAdvertising();
-                    BluetoothHelper.startServer(MainActivity.this, mGattServerCallback);
-                    break;
-                case BluetoothAdapter.STATE_OFF:
-                    BluetoothHelper.stopServer();
-                    BluetoothHelper.stopAdvertising();
-                    break;
-                default:
-                    // Do nothing
+            mChannelCount = pins.length;
+            mLedChannels = new LedChannels(mChannelCount, mChannelOutput);
+            // Channels start in their state before the reboot, advertised once the link
+            // starts.
+            final int channels = restoreChannels();
+
+            // The channel pins are opened and written on the actuator's own thread.
+            final boolean[] initialValues = new boolean[mChannelCount];
+            for (int i = 0; i < mChannelCount; i++) {
+                initialValues[i] = (channels & (1 << i)) != 0;
             }
-        }
-    };
-
-    private void initScan() {
-        if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
-            Log.e(TAG, "Bluetooth adapter not available or not enabled.");
-            return;
-        }
-        //setupBTProfiles();
-        Log.d(TAG, "Set up Bluetooth Adapter name and profile");
-        mBluetoothAdapter.setName(BluetoothHelper.ANDROID_THINGS_DEVICE_NAME);
-        scanLeDevice();
-    }
-
-    private void scanLeDevice() {
-        // Stops scanning after a pre-defined scan period.
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                mScanning = false;
-                mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            }
-        }, BluetoothHelper.SCAN_PERIOD);
-
-        mScanning = true;
-        mBluetoothAdapter.startLeScan(mLeScanCallback);
-    }
-
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
+            final GpioActuator actuator =
+                    new GpioActuator(new PeripheralPinBackend(), pins, initialValues);
+            mActuator = actuator;
+            mActuator.setErrorListener(new GpioActuator.ErrorListener() {
                 @Override
-                public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    Boolean isDeviceFound = false;
-                    if(device != null){
-                        final String deviceName = device.getName();
-                        if (deviceName != null && deviceName.length() > 0) {
-                            //Log.d(TAG, deviceName);
-                            if(deviceName.equals(BluetoothHelper.MOBILE_DEVICE_NAME)){
-                                isDeviceFound = true;
-                                mDeviceAddress = device.getAddress();
-                            }
-                        }
+                public void onError(String pin, IOException e) {
+                    mGpioErrors.increment();
+                    Log.e(TAG, "Error updating GPIO " + pin, e);
+                }
+            });
+            mActuator.setWriteListener(new GpioActuator.WriteListener() {
+                @Override
+                public void onPinWritten(int pin, boolean value) {
+                    // Called on the actuator thread right after the write it times.
+                    final long elapsed = actuator.getLastWriteNanos();
+                    mGpioWriteTime.record(elapsed);
+                    if (Tracer.isEnabled()) {
+                        Tracer.record(Tracer.STEP_GPIO_WRITE, mLedEventTime,
+                                System.nanoTime() - elapsed, elapsed);
                     }
-
-                    if(isDeviceFound && !mConnected){
-                        Intent gattServiceIntent = new Intent(MainActivity.this, BluetoothLeService.class);
-                        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
-                        mConnected = true;
-                        BluetoothHelper.startAdvertising();
-                        BluetoothHelper.startServer(MainActivity.this, mGattServerCallback);
+                    final long receivedAt = mReceivedAtNanos;
+                    if (pin == LED_PIN && receivedAt != 0) {
+                        mReceivedAtNanos = 0;
+                        recordLatency(LatencyTracker.STAGE_GPIO_WRITE,
+                                System.nanoTime() - receivedAt);
                     }
                 }
-            };
+            });
+            mActuator.start();
+            addGauge("gpio.queue.depth", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return actuator.getQueueDepth();
+                }
+            });
+            addGauge("gpio.dropped", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return actuator.getDroppedCount();
+                }
+            });
+            // Set up before the button, its first edge is written through it.
+            mLedThread = new HandlerThread("LedWriter", Process.THREAD_PRIORITY_FOREGROUND);
+            mLedThread.start();
+            mLedCoalescer = new UpdateCoalescer(
+                    new HandlerTaskScheduler(new Handler(mLedThread.getLooper())),
+                    LED_COALESCE_WINDOW_MS, 0,
+                    new UpdateCoalescer.Sink() {
+                        @Override
+                        public boolean onUpdate(int state) {
+                            final long span = Tracer.begin(Tracer.STEP_LED_WRITE);
+                            final boolean written = writeChannels(state);
+                            Tracer.end(Tracer.STEP_LED_WRITE, mLedEventTime, span);
+                            return written;
+                        }
+                    });
+
+            if (USE_DIRECT_BUTTON_INPUT) {
+                Log.i(TAG, "Opening button GPIO");
+                mButtonEdgeInput = new ButtonEdgeInput(BoardDefaults.getGPIOForButton(),
+                        BUTTON_DEBOUNCE_MS, new ButtonEdgeInput.Listener() {
+                            @Override
+                            public void onButtonChanged(boolean pressed, long edgeNanos) {
+                                recordLatency(LatencyTracker.STAGE_EDGE,
+                                        SystemClock.elapsedRealtimeNanos() - edgeNanos);
+                                setLedValue(pressed);
+                            }
+                        });
+                mButtonEdgeInput.open();
+            } else {
+                Log.i(TAG, "Registering button driver");
+                // Initialize and register the InputDriver that will emit SPACE key events
+                // on GPIO state changes.
+                mButtonInputDriver = new ButtonInputDriver(
+                        BoardDefaults.getGPIOForButton(),
+                        Button.LogicState.PRESSED_WHEN_LOW,
+                        KeyEvent.KEYCODE_SPACE);
+            }
+            mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+            if (mBluetoothAdapter != null && !mBluetoothAdapter.isEnabled()) {
+                // The link comes up once the adapter is on.
+                Log.d(TAG, "Bluetooth adapter not enabled. Enabling.");
+                mBluetoothAdapter.enable();
+            }
+            // The service runs the link in the foreground, independent of this activity.
+            Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+            startForegroundService(gattServiceIntent);
+            mServiceBound = bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+        } catch (IOException e) {
+            Log.e(TAG, "Error configuring GPIO pins", e);
+        }
+    }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -187,176 +219,72 @@ public class MainActivity extends Activity {
             if (!mBluetoothLeService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
+                return;
             }
-
-            Boolean result = mBluetoothLeService.connect(mDeviceAddress);
-            Log.d(TAG, "Connect request result=" + result);
-            mConnected = true;
-            if(mScanning) {
-                mScanning = false;
-                mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            final RemoteLedLink link = mBluetoothLeService.getLink();
+            link.setListener(mLinkListener);
+            // A recreated activity finds the link running, the state it restored is the same.
+            final int channels = mLedChannels.get();
+            link.start(RemoteLedLink.ROLE_BOARD, BluetoothHelper.ANDROID_THINGS_DEVICE_NAME,
+                    mChannelCount, channels);
+            mLink = link;
+            if (mLedChannels.get() != channels) {
+                // Changed while binding, before it could be published.
+                link.submitState(mLedChannels.get());
             }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mLink = null;
             mBluetoothLeService = null;
         }
     };
 
-    /**
-     * Send a remote led service notification to any devices that are subscribed
-     * to the characteristic.
-     */
-    private void notifyRegisteredDevices(Boolean toggle) {
-        if (mRegisteredDevices.isEmpty()) {
-            Log.i(TAG, "No subscribers registered");
-            return;
-        }
-
-        Log.i(TAG, "Sending update to " + mRegisteredDevices.size() + " subscribers");
-        for (BluetoothDevice device : mRegisteredDevices) {
-            BluetoothGattCharacteristic ledDataCharacteristic = BluetoothHelper.getBluetoothGattServer()
-                    .getService(RemoteLedProfile.REMOTE_LED_SERVICE)
-                    .getCharacteristic(RemoteLedProfile.REMOTE_LED_DATA);
-            ledDataCharacteristic.setValue(toggle.toString());
-            BluetoothHelper.getBluetoothGattServer().notifyCharacteristicChanged(device, ledDataCharacteristic, false);
-        }
-    }
-
-    /**
-     * Callback to handle incoming requests to the GATT server.
-     * All read/write requests for characteristics and descriptors are handled here.
-     */
-    private BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
-
-        @Override
-        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.i(TAG, "BluetoothDevice CONNECTED: " + device);
-                mRegisteredDevices.add(device);
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.i(TAG, "BluetoothDevice DISCONNECTED: " + device);
-                //Remove device from any active subscriptions
-                mRegisteredDevices.remove(device);
-            }
-        }
-
-        @Override
-        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
-                                                BluetoothGattCharacteristic characteristic) {
-            long now = System.currentTimeMillis();
-            if (RemoteLedProfile.REMOTE_LED_DATA.equals(characteristic.getUuid())) {
-                Log.i(TAG, "Read data");
-                BluetoothHelper.getBluetoothGattServer().sendResponse(device,
-                        requestId,
-                        BluetoothGatt.GATT_SUCCESS,
-                        0,
-                        null);
-            } else {
-                // Invalid characteristic
-                Log.w(TAG, "Invalid Characteristic Read: " + characteristic.getUuid());
-                BluetoothHelper.getBluetoothGattServer().sendResponse(device,
-                        requestId,
-                        BluetoothGatt.GATT_FAILURE,
-                        0,
-                        null);
-            }
-        }
-
+    private final RemoteLedLink.Listener mLinkListener = new RemoteLedLink.Listener() {
         @Override
-        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
-                                            BluetoothGattDescriptor descriptor) {
-            BluetoothHelper.getBluetoothGattServer().sendResponse(device,
-                    requestId,
-                    BluetoothGatt.GATT_FAILURE,
-                    0,
-                    null);
+        public boolean onLedFrame(String address, byte[] value) {
+            return applyLedFrame(value);
         }
 
         @Override
-        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
-                                             BluetoothGattDescriptor descriptor,
-                                             boolean preparedWrite, boolean responseNeeded,
-                                             int offset, byte[] value) {
-            if (responseNeeded) {
-                BluetoothHelper.getBluetoothGattServer().sendResponse(device,
-                        requestId,
-                        BluetoothGatt.GATT_FAILURE,
-                        0,
-                        null);
-            }
+        public void onLedStateBroadcast(String address, int deviceId, boolean ledOn,
+                                        int sequence) {
+            // Boards do not follow other boards' broadcasts.
         }
     };
 
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
-
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                mConnected = false;
-
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Show all the supported services and characteristics on the user interface.
-                List<BluetoothGattService> services = mBluetoothLeService.getSupportedGattServices();
-                if(services != null){
-                    for (BluetoothGattService gattService : services) {
-                        if(gattService.getUuid().equals(RemoteLedProfile.REMOTE_LED_SERVICE)){
-                            final BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(RemoteLedProfile.REMOTE_LED_DATA);
-                            if (characteristic != null) {
-                                final int charaProp = characteristic.getProperties();
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
-                                    // If there is an active notification on a characteristic, clear
-                                    // it first so it doesn't update the data field on the user interface.
-                                    if (mNotifyCharacteristic != null) {
-                                        mBluetoothLeService.setCharacteristicNotification(
-                                                mNotifyCharacteristic, false);
-                                        mNotifyCharacteristic = null;
-                                    }
-                                    mBluetoothLeService.readCharacteristic(characteristic);
-                                }
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                                    mNotifyCharacteristic = characteristic;
-                                    mBluetoothLeService.setCharacteristicNotification(
-                                            characteristic, true);
-                                }
-                            }
-                        }
-                    }
-                }
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                String data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                if(data.contains("false")){
-                    setLedValue(false);
-                }else if(data.contains("true")){
-                    setLedValue(true);
-                }
-                notifyRegisteredDevices(true);
-            }
-        }
-    };
+    /**
+     * Set the LED from a data frame, received as a notification or written as a command,
+     * and pass the new state on to our subscribers.  The link has checked and timed it.
+     *
+     * @return always true.
+     */
+    private boolean applyLedFrame(byte[] value) {
+        mReceivedAtNanos = System.nanoTime();
+        // The write keeps the sender's id, so the trace follows the change to the GPIO.
+        mLedEventTime = RemoteLedCodec.getTimestamp(value);
+        // A whole scene arrives in one frame, only the channels it changed are written.
+        final int channels = mLedChannels.set(RemoteLedCodec.getChannelStates(value),
+                RemoteLedCodec.getChangedChannels(value));
+        journal(EventJournal.TYPE_REMOTE_STATE, channels, RemoteLedCodec.getSequence(value));
+        return true;
+    }
 
 
     @Override
     protected void onStart() {
         super.onStart();
-        mButtonInputDriver.register();
-        registerReceiver(mGattUpdateReceiver, BluetoothHelper.makeGattUpdateIntentFilter());
+        if (mButtonInputDriver != null) {
+            mButtonInputDriver.register();
+        }
     }
 
 
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_SPACE) {
+            recordKeyLatency(event);
             // Turn on the LED
             setLedValue(true);
             return true;
@@ -367,6 +295,7 @@ public class MainActivity extends Activity {
     @Override
     public boolean onKeyUp(int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_SPACE) {
+            recordKeyLatency(event);
             // Turn off the LED
             setLedValue(false);
             return true;
@@ -375,27 +304,140 @@ public class MainActivity extends Activity {
         return super.onKeyUp(keyCode, event);
     }
 
+    private void recordKeyLatency(KeyEvent event) {
+        final long latency = TimeUnit.MILLISECONDS.toNanos(
+                SystemClock.uptimeMillis() - event.getEventTime());
+        mKeyLatency.record(latency);
+        recordLatency(LatencyTracker.STAGE_EDGE, latency);
+    }
+
+    /**
+     * Record a stage in the link's latency tracker, dropped until the service is bound.
+     */
+    private void recordLatency(int stage, long nanos) {
+        final RemoteLedLink link = mLink;
+        if (link != null) {
+            link.getLatency().record(stage, nanos);
+        }
+    }
+
     /**
-     * Update the value of the LED output.
+     * Update the value of the LED output.  Bursts of calls, e.g. from a bouncing button,
+     * are coalesced into a single write of the latest value.
      */
     private void setLedValue(boolean value) {
+        final long span = Tracer.begin(Tracer.STEP_BUTTON);
+        mLedEventTime = System.currentTimeMillis();
+        final int channels = mLedChannels.set(value ? 1 << LED_PIN : 0, 1 << LED_PIN);
+        journal(EventJournal.TYPE_BUTTON, channels, value ? 1 : 0);
+        Tracer.end(Tracer.STEP_BUTTON, mLedEventTime, span);
+    }
+
+    // Local and remote changes alike reach the LEDs and, once the service is bound, the
+    // advertisement, the readable value and the subscribers.
+    private final LedChannels.Output mChannelOutput = new LedChannels.Output() {
+        @Override
+        public void write(int channels) {
+            mLedCoalescer.submit(channels);
+        }
+
+        @Override
+        public void publish(int channels) {
+            final RemoteLedLink link = mLink;
+            if (link != null) {
+                link.submitState(channels);
+            }
+        }
+    };
+
+    /**
+     * @return false if the actuator queue is full, the coalescer then retries the latest state.
+     */
+    private boolean writeChannels(int channels) {
+        final GpioActuator actuator = mActuator;
+        if (actuator == null || actuator.isClosed()) {
+            // Shutting down, there is nothing left to write to.
+            return true;
+        }
+        final int changed = channels ^ mWrittenChannels;
+        if (actuator.setChannels(channels, changed)) {
+            mWrittenChannels = channels;
+            journal(EventJournal.TYPE_LED_WRITE, channels, changed);
+            return true;
+        }
+        Log.w(TAG, "GPIO command queue full, retrying LED update");
+        return false;
+    }
+
+    /**
+     * Open the event journal and take the channel states from it.
+     *
+     * @return the restored states, all off if there is no journal.
+     */
+    private int restoreChannels() {
         try {
-            mLedGpio.setValue(value);
+            mJournal = EventJournal.open(new File(getFilesDir(), JOURNAL_DIR));
         } catch (IOException e) {
-            Log.e(TAG, "Error updating GPIO value", e);
+            Log.e(TAG, "Unable to open event journal, channels start off", e);
+            return 0;
+        }
+        final int channels = mJournal.getState() & mLedChannels.getMask();
+        Log.i(TAG, "Restored channels 0x" + Integer.toHexString(channels) + " in "
+                + TimeUnit.NANOSECONDS.toMicros(mJournal.getRestoreNanos()) + " us");
+        mLedChannels.restore(channels);
+        mWrittenChannels = channels;
+        return channels;
+    }
+
+    private void journal(int type, int channels, int value) {
+        final EventJournal journal = mJournal;
+        if (journal != null) {
+            journal.append(type, channels, value, System.currentTimeMillis());
         }
     }
 
     @Override
-    protected void onPause(){
-        super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.println(prefix + "Button input: "
+                + (mButtonEdgeInput != null ? "gpio edge" : "key event"));
+        writer.println(prefix + "  " + mKeyLatency);
+        if (mButtonEdgeInput != null) {
+            writer.println(prefix + "  " + mButtonEdgeInput.getLatency());
+            writer.println(prefix + "  bounces filtered=" + mButtonEdgeInput.getBounceCount());
+        }
+        writer.println(prefix + "Event journal: " + mJournal);
+        writer.println(prefix + "Metrics:");
+        mMetrics.dump(writer, prefix + "  ");
+        Tracer.dump(writer, prefix);
+    }
+
+    private void addGauge(String name, MetricsRegistry.Gauge gauge) {
+        mGauges.put(name, gauge);
+        mMetrics.gauge(name, gauge);
     }
 
     @Override
     protected void onDestroy(){
         super.onDestroy();
 
+        // No more frames once the actuator is closed.
+        final RemoteLedLink link = mLink;
+        mLink = null;
+        if (link != null) {
+            link.removeListener(mLinkListener);
+        }
+
+        for (Map.Entry<String, MetricsRegistry.Gauge> gauge : mGauges.entrySet()) {
+            mMetrics.removeGauge(gauge.getKey(), gauge.getValue());
+        }
+        mGauges.clear();
+
+        if (mButtonEdgeInput != null) {
+            mButtonEdgeInput.close();
+            mButtonEdgeInput = null;
+        }
+
         if (mButtonInputDriver != null) {
             mButtonInputDriver.unregister();
             try {
@@ -407,24 +449,29 @@ public class MainActivity extends Activity {
             }
         }
 
-        if (mLedGpio != null) {
-            try {
-                mLedGpio.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing LED GPIO", e);
-            } finally{
-                mLedGpio = null;
-            }
-            mLedGpio = null;
+        if (mActuator != null) {
+            mActuator.close();
+            mActuator = null;
         }
 
-        if (BluetoothHelper.getBluetoothManager().getAdapter().isEnabled()) {
-            BluetoothHelper.stopServer();
-            BluetoothHelper.stopAdvertising();
+        if (mLedThread != null) {
+            mLedThread.quitSafely();
+            mLedThread = null;
         }
 
-        unregisterReceiver(mBluetoothReceiver);
-        unbindService(mServiceConnection);
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+
+        if (mServiceBound) {
+            unbindService(mServiceConnection);
+            mServiceBound = false;
+        }
         mBluetoothLeService = null;
+        if (isFinishing()) {
+            // Leaving the app takes the link down, a configuration change does not.
+            stopService(new Intent(this, BluetoothLeService.class));
+        }
     }
 }
@@ -0,0 +1,32 @@
+package apps.hackstermia.buttonthings;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.PeripheralManager;
+
+import java.io.IOException;
+
+/**
+ * {@link GpioActuator.PinBackend} opening real pins through the {@link PeripheralManager}.
+ */
+public class PeripheralPinBackend implements GpioActuator.PinBackend {
+
+    @Override
+    public GpioActuator.OutputPin openOutput(String name, boolean initialValue)
+            throws IOException {
+        final Gpio gpio = PeripheralManager.getInstance().openGpio(name);
+        gpio.setDirection(initialValue
+                ? Gpio.DIRECTION_OUT_INITIALLY_HIGH
+                : Gpio.DIRECTION_OUT_INITIALLY_LOW);
+        return new GpioActuator.OutputPin() {
+            @Override
+            public void setValue(boolean value) throws IOException {
+                gpio.setValue(value);
+            }
+
+            @Override
+            public void close() throws IOException {
+                gpio.close();
+            }
+        };
+    }
+}
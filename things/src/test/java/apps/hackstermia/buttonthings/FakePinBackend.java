@@ -0,0 +1,52 @@
+package apps.hackstermia.buttonthings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-memory {@link GpioActuator.PinBackend} recording every write, for off-device tests.
+ */
+public class FakePinBackend implements GpioActuator.PinBackend {
+
+    private final List<String> mWrites = Collections.synchronizedList(new ArrayList<String>());
+    private volatile long mWriteDelayMillis;
+
+    /**
+     * Make every write block for the given time, to simulate a stalled sysfs write.
+     */
+    public void setWriteDelay(long millis) {
+        mWriteDelayMillis = millis;
+    }
+
+    /**
+     * Return the writes seen so far, formatted as "pin=value".
+     */
+    public List<String> getWrites() {
+        synchronized (mWrites) {
+            return new ArrayList<>(mWrites);
+        }
+    }
+
+    @Override
+    public GpioActuator.OutputPin openOutput(final String name, boolean initialValue) {
+        return new GpioActuator.OutputPin() {
+            @Override
+            public void setValue(boolean value) throws IOException {
+                if (mWriteDelayMillis > 0) {
+                    try {
+                        Thread.sleep(mWriteDelayMillis);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                mWrites.add(name + "=" + value);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
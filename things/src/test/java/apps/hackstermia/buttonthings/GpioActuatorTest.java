@@ -0,0 +1,68 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class GpioActuatorTest {
+    private FakePinBackend mBackend;
+    private GpioActuator mActuator;
+
+    @Before
+    public void setUp() {
+        mBackend = new FakePinBackend();
+        mActuator = new GpioActuator(mBackend, new String[]{"LED"}, new boolean[]{false}, 4);
+    }
+
+    @After
+    public void tearDown() {
+        mActuator.close();
+    }
+
+    @Test
+    public void redundantWrites_areSkipped() {
+        mActuator.start();
+        mActuator.setValue(0, false);
+        mActuator.setValue(0, true);
+        mActuator.setValue(0, true);
+        mActuator.setValue(0, false);
+        mActuator.close();
+
+        assertEquals(Arrays.asList("LED=true", "LED=false"), mBackend.getWrites());
+        assertEquals(2, mActuator.getWriteCount());
+        assertEquals(2, mActuator.getSkippedCount());
+    }
+
+    @Test
+    public void setChannels_writesChangedPinsOnly() {
+        GpioActuator actuator = new GpioActuator(mBackend, new String[]{"A", "B", "C"},
+                new boolean[]{false, false, false}, 2);
+        // Queued before the thread starts, so nothing drains in between.
+        assertTrue(actuator.setChannels(0x7, 0x3));
+        // Needs three slots, only one is left.
+        assertFalse(actuator.setChannels(0x7, 0x7));
+        actuator.start();
+        actuator.close();
+
+        assertEquals(Arrays.asList("A=true", "B=true"), mBackend.getWrites());
+    }
+
+    @Test
+    public void stalledWrites_neverBlockCaller() {
+        mBackend.setWriteDelay(100);
+        mActuator.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            mActuator.setValue(0, i % 2 == 0);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("setValue blocked for " + elapsedMillis + " ms", elapsedMillis < 100);
+        assertTrue(mActuator.getDroppedCount() > 0);
+    }
+}
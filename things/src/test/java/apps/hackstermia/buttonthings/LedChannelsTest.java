@@ -0,0 +1,51 @@
+package apps.hackstermia.buttonthings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LedChannelsTest {
+    private final List<Integer> mWritten = new ArrayList<>();
+    private final List<Integer> mPublished = new ArrayList<>();
+    private LedChannels mChannels;
+
+    @Before
+    public void setUp() {
+        mChannels = new LedChannels(3, new LedChannels.Output() {
+            @Override
+            public void write(int channels) {
+                mWritten.add(channels);
+            }
+
+            @Override
+            public void publish(int channels) {
+                mPublished.add(channels);
+            }
+        });
+    }
+
+    @Test
+    public void localChange_isWrittenAndPublished() {
+        mChannels.restore(0x4);
+        assertTrue(mPublished.isEmpty());
+
+        // A button press on channel 0 keeps the other channels as they are.
+        assertEquals(0x5, mChannels.set(0x1, 0x1));
+        assertEquals(0x4, mChannels.set(0x0, 0x1));
+
+        assertEquals(Arrays.asList(0x5, 0x4), mWritten);
+        assertEquals(Arrays.asList(0x5, 0x4), mPublished);
+    }
+
+    @Test
+    public void channelsOutsideMask_areIgnored() {
+        assertEquals(0x2, mChannels.set(0xFA, 0xFF));
+        mChannels.restore(0xFF);
+        assertEquals(0x7, mChannels.get());
+    }
+}